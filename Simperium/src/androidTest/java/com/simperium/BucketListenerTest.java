@@ -94,6 +94,24 @@ public class BucketListenerTest extends TestCase {
         assertTrue(mListener.changed);
     }
 
+    public void testRolledBackRemoteChangesNotifyIndex()
+    throws Exception {
+        Note note = mBucket.newObject();
+        note.setTitle("Hola mundo");
+        note.save();
+
+        JSONObject remote = new JSONObject(note.getDiffableValue().toString());
+        remote.put("title", "Hello world");
+
+        mBucket.addOnNetworkChangeListener(mListener);
+        mBucket.beginRemoteChanges();
+        mBucket.applyRemoteChange(RemoteChangesUtil.buildRemoteChange(note, remote));
+        assertEquals(Bucket.ChangeType.MODIFY, mListener.changeType);
+
+        mBucket.endRemoteChanges(false);
+        assertEquals(Bucket.ChangeType.INDEX, mListener.changeType);
+    }
+
     public void testOnBeforeUpdateListener()
     throws Exception {
 
@@ -120,6 +138,7 @@ public class BucketListenerTest extends TestCase {
         public boolean saved = false;
         public boolean changed = false;
         public boolean beforeUpdate = false;
+        public Bucket.ChangeType changeType;
 
         @Override
         public void onDeleteObject(Bucket<Note> bucket, Note object){
@@ -134,6 +153,7 @@ public class BucketListenerTest extends TestCase {
         @Override
         public void onChange(Bucket<Note> bucket, Bucket.ChangeType type, String key){
             changed = true;
+            changeType = type;
         }
 
         @Override
@@ -11,6 +11,7 @@ import com.simperium.models.Note;
 
 import com.simperium.storage.MemoryStore;
 
+import com.simperium.test.MockBucketStore;
 import com.simperium.test.MockCache;
 import com.simperium.test.MockChannel;
 import com.simperium.test.MockGhostStore;
@@ -176,4 +177,137 @@ public class BucketTest extends TestCase {
 
     }
 
+    public void testIndexObjectsWrittenInBatches()
+    throws Exception {
+
+        mBucket.setIndexBatchSize(2, 60000);
+
+        mBucket.addObjectWithGhost(new Ghost("note-1", 1, new JSONObject()));
+        assertFalse(mBucket.containsKey("note-1"));
+
+        // second ghost fills the batch
+        mBucket.addObjectWithGhost(new Ghost("note-2", 1, new JSONObject()));
+        assertTrue(mBucket.containsKey("note-1"));
+        assertTrue(mBucket.containsKey("note-2"));
+
+        mBucket.addObjectWithGhost(new Ghost("note-3", 1, new JSONObject()));
+        assertFalse(mBucket.containsKey("note-3"));
+
+        // completing the index writes the partial batch before the cv
+        mBucket.indexComplete("mock-cv");
+        assertTrue(mBucket.containsKey("note-3"));
+        assertEquals("mock-cv", mBucket.getChangeVersion());
+
+    }
+
+    /**
+     * Batches already handed to the executor are written before the index's
+     * change version is saved and dropped when the bucket is reset
+     */
+    public void testIndexCompleteWaitsForQueuedBatches()
+    throws Exception {
+
+        MockExecutor.Playable executor = new MockExecutor.Playable();
+        Bucket<Note> bucket = new Bucket<Note>(executor, BUCKET_NAME, mSchema, mUser,
+            new MockBucketStore<Note>(), new MockGhostStore(), new MockCache<Note>());
+        bucket.setChannel(new MockChannel(bucket));
+        bucket.setIndexBatchSize(2, 60000);
+
+        bucket.addObjectWithGhost(new Ghost("note-1", 1, new JSONObject()));
+        bucket.addObjectWithGhost(new Ghost("note-2", 1, new JSONObject()));
+        assertFalse(bucket.containsKey("note-1"));
+
+        bucket.indexComplete("mock-cv");
+        assertTrue(bucket.containsKey("note-1"));
+        assertTrue(bucket.containsKey("note-2"));
+
+        bucket.addObjectWithGhost(new Ghost("note-3", 1, new JSONObject()));
+        bucket.addObjectWithGhost(new Ghost("note-4", 1, new JSONObject()));
+        bucket.reset();
+        executor.play();
+        assertFalse(bucket.containsKey("note-3"));
+        assertFalse(bucket.containsKey("note-4"));
+
+    }
+
+    /**
+     * The resume mark is only saved once every object before it is written
+     */
+    public void testSaveIndexMarkWaitsForQueuedBatches()
+    throws Exception {
+
+        MockExecutor.Playable executor = new MockExecutor.Playable();
+        MockGhostStore ghostStore = new MockGhostStore(){
+            @Override
+            public void saveGhost(Bucket bucket, Ghost ghost){
+                if (ghost.getSimperiumKey().equals("broken")) {
+                    throw new RuntimeException("Unable to save ghost");
+                }
+                super.saveGhost(bucket, ghost);
+            }
+        };
+        Bucket<Note> bucket = new Bucket<Note>(executor, BUCKET_NAME, mSchema, mUser,
+            new MockBucketStore<Note>(), ghostStore, new MockCache<Note>());
+        bucket.setChannel(new MockChannel(bucket));
+        bucket.setIndexBatchSize(2, 60000);
+
+        bucket.addObjectWithGhost(new Ghost("note-1", 1, new JSONObject()));
+        bucket.addObjectWithGhost(new Ghost("note-2", 1, new JSONObject()));
+        bucket.saveIndexMark("mock-cv", "mark-1");
+        assertTrue(bucket.containsKey("note-2"));
+        assertEquals("mark-1", bucket.getIndexMark());
+
+        bucket.addObjectWithGhost(new Ghost("broken", 1, new JSONObject()));
+        bucket.addObjectWithGhost(new Ghost("note-3", 1, new JSONObject()));
+        try {
+            executor.play();
+            fail("Batch should fail to be written");
+        } catch (RuntimeException e) {
+            // the executor thread would have died
+        }
+        executor.pause();
+
+        bucket.addObjectWithGhost(new Ghost("note-4", 1, new JSONObject()));
+        bucket.saveIndexMark("mock-cv", "mark-2");
+        assertTrue(bucket.containsKey("note-4"));
+        assertEquals("mark-1", bucket.getIndexMark());
+
+    }
+
+    public void testCursorLoadsGhostsLazily()
+    throws Exception {
+
+        final int[] ghostQueries = new int[1];
+        MockGhostStore ghostStore = new MockGhostStore(){
+            @Override
+            public Ghost getGhost(Bucket bucket, String key) throws GhostMissingException {
+                ghostQueries[0] ++;
+                return super.getGhost(bucket, key);
+            }
+        };
+        Bucket<Note> bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, mSchema, mUser,
+            new MockBucketStore<Note>(), ghostStore, new MockCache<Note>());
+        bucket.setChannel(new MockChannel(bucket));
+        bucket.start();
+
+        bucket.addObjectWithGhost(new Ghost("note-1", 3, new JSONObject()));
+        bucket.addObjectWithGhost(new Ghost("note-2", 1, new JSONObject()));
+        bucket.indexComplete("mock-cv");
+        ghostQueries[0] = 0;
+
+        Bucket.ObjectCursor<Note> cursor = bucket.allObjects();
+        while (cursor.moveToNext()) {
+            cursor.getObject().getContent();
+        }
+        assertEquals(0, ghostQueries[0]);
+
+        // reading the version hydrates the ghost
+        cursor.moveToFirst();
+        Note note = cursor.getObject();
+        assertNotNull(note.getVersion());
+        assertEquals(1, ghostQueries[0]);
+        cursor.close();
+
+    }
+
 }
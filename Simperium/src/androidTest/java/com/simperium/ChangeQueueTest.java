@@ -0,0 +1,57 @@
+package com.simperium.client;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ChangeQueueTest extends TestCase {
+
+    private ChangeQueue mQueue;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new ChangeQueue();
+    }
+
+    public void testRemoveSendableSkipsPendingKeys()
+    throws Exception {
+        Change first = change("a");
+        Change second = change("a");
+        Change other = change("b");
+
+        mQueue.add(first);
+        mQueue.add(other);
+        mQueue.add(second);
+
+        Map<String,Change> pending = new HashMap<String,Change>();
+        pending.put("b", other);
+
+        List<Change> sendable = mQueue.removeSendable(pending);
+        assertEquals(1, sendable.size());
+        assertSame(first, sendable.get(0));
+        assertEquals(2, mQueue.size());
+
+        pending.put("a", first);
+        assertFalse(mQueue.hasSendable(pending));
+    }
+
+    public void testRemoveKey()
+    throws Exception {
+        mQueue.add(change("a"));
+        mQueue.add(change("a"));
+        mQueue.add(change("b"));
+
+        assertEquals(2, mQueue.removeKey("a").size());
+        assertEquals(1, mQueue.size());
+        assertEquals(0, mQueue.removeKey("a").size());
+    }
+
+    private static Change change(String key){
+        return new Change(Change.OPERATION_MODIFY, "bucket", key, 0, new JSONObject(), new JSONObject());
+    }
+
+}
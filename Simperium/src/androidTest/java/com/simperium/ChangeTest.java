@@ -63,6 +63,19 @@ public class ChangeTest extends TestCase {
         assertEquals(mNote.getDiffableValue().toString(), change.toJSONObject().getJSONObject("d").toString());
     }
 
+    public void testChangeIsSnapshot()
+    throws Exception {
+
+        Change change = new Change(Change.OPERATION_MODIFY, mNote);
+        String diff = change.getDiff().toString();
+
+        mNote.setTitle("Hola mundo");
+
+        assertEquals(diff, change.getDiff().toString());
+        assertEquals("Hello world", change.getTarget().getString("title"));
+        assertFalse(change.getOrigin().has("title"));
+    }
+
     public static void assertValidChangeObject(Syncable object, Change change)
     throws Exception {
 
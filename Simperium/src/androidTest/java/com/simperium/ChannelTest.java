@@ -15,6 +15,7 @@ import com.simperium.util.ChannelUtil;
 import com.simperium.util.RemoteChangesUtil;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
@@ -484,6 +485,143 @@ public class ChannelTest extends BaseSimperiumTest {
         assertEquals(1, index.getJSONArray("pending").getJSONObject(0).getInt("sv"));
     }
 
+    /**
+     * Index downloads keep several entity requests in flight instead of waiting
+     * for each reply before sending the next request.
+     */
+    public void testPipelineIndexEntityRequests()
+    throws Exception {
+
+        start();
+        clearMessages();
+
+        // no index data in the listener so requests go unanswered
+        sendMessage("i:{\"current\":\"mock-cv\",\"index\":[{\"id\":\"mock1\",\"v\":1},{\"id\":\"mock2\",\"v\":1},{\"id\":\"mock3\",\"v\":1}]}");
+
+        assertEquals(3, mListener.messages.size());
+        assertEquals("e:mock1.1", mListener.messages.get(0).toString());
+        assertEquals("e:mock3.1", mListener.messages.get(2).toString());
+        assertFalse(mChannel.haveCompleteIndex());
+
+        // replies can arrive in any order
+        sendMessage("e:mock3.1\n{\"data\":{\"title\":\"3\"}}");
+        sendMessage("e:mock1.1\n{\"data\":{\"title\":\"1\"}}");
+        assertFalse(mChannel.haveCompleteIndex());
+
+        // an unknown version releases its request
+        sendMessage("e:mock2.1\n?");
+        waitForIndex();
+
+        assertTrue(mBucket.containsKey("mock1"));
+        assertTrue(mBucket.containsKey("mock3"));
+
+    }
+
+    /**
+     * With inline data the index pages carry the objects so no entity requests
+     * are sent and the next page asks for data again.
+     */
+    public void testIndexWithInlineData()
+    throws Exception {
+
+        mChannel.setIndexInlineData(true);
+        start();
+        clearMessages();
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"mark\":\"next\",\"index\":[{\"id\":\"mock1\",\"v\":1,\"d\":{\"title\":\"1\"}}]}");
+
+        assertEquals(1, mListener.messages.size());
+        assertTrue(mListener.lastMessage.toString().startsWith("i:1:next::"));
+        assertFalse(mChannel.haveCompleteIndex());
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"index\":[{\"id\":\"mock2\",\"v\":3,\"d\":{\"title\":\"2\"}}]}");
+        waitForIndex();
+
+        assertTrue(mBucket.containsKey("mock1"));
+        assertTrue(mBucket.containsKey("mock2"));
+        assertEquals(Integer.valueOf(3), mBucket.get("mock2").getVersion());
+
+    }
+
+    /**
+     * Pages without object data keep the fixed page size however large the
+     * page was
+     */
+    public void testIndexPageSizeWithoutInlineData()
+    throws Exception {
+
+        start();
+        clearMessages();
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"mark\":\"next\",\"index\":[{\"id\":\"mock1\",\"v\":1}]}");
+        sendMessage("e:mock1.1\n{\"data\":{\"title\":\"1\"}}");
+
+        boolean requested = false;
+        for (Channel.MessageEvent message : mListener.messages) {
+            requested = requested || message.toString().equals("i::next::50");
+        }
+        assertTrue(requested);
+
+    }
+
+    /**
+     * The mark of the next page is saved once every object before it is stored
+     * and cleared when the index completes.
+     */
+    public void testSaveIndexMark()
+    throws Exception {
+
+        mChannel.setIndexInlineData(true);
+        start();
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"mark\":\"next\",\"index\":[{\"id\":\"mock1\",\"v\":1,\"d\":{\"title\":\"1\"}}]}");
+
+        assertEquals("next", mBucket.getIndexMark());
+        assertEquals("mock-cv", mBucket.getIndexChangeVersion());
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"index\":[{\"id\":\"mock2\",\"v\":1,\"d\":{\"title\":\"2\"}}]}");
+        waitForIndex();
+
+        assertNull(mBucket.getIndexMark());
+    }
+
+    /**
+     * A channel started with a saved index mark continues from that mark
+     */
+    public void testResumeIndexFromSavedMark()
+    throws Exception {
+
+        mBucket.saveIndexMark("mock-cv", "saved");
+
+        start();
+
+        assertTrue(mListener.lastMessage.toString().contains("\"cmd\":\"i::saved::50\""));
+
+        sendMessage("i:{\"current\":\"mock-cv\",\"index\":[{\"id\":\"mock1\",\"v\":1,\"d\":{\"title\":\"1\"}}]}");
+        waitForIndex();
+
+        assertTrue(mBucket.containsKey("mock1"));
+        assertEquals("mock-cv", mBucket.getChangeVersion());
+    }
+
+    /**
+     * If the bucket moved to a new cv since the mark was saved the index starts over
+     */
+    public void testRestartIndexWhenSavedMarkIsStale()
+    throws Exception {
+
+        mBucket.saveIndexMark("old-cv", "saved");
+
+        start();
+        clearMessages();
+
+        sendMessage("i:{\"current\":\"new-cv\",\"index\":[{\"id\":\"mock1\",\"v\":1}]}");
+
+        assertEquals("i::::50", mListener.lastMessage.toString());
+        assertNull(mBucket.getIndexMark());
+        assertFalse(mChannel.haveCompleteIndex());
+    }
+
     public void testSendLog()
     throws Exception {
         String message = "message";
@@ -710,6 +848,55 @@ public class ChannelTest extends BaseSimperiumTest {
 
     }
 
+    /**
+     * Remote changes are applied in the order they were received whether or
+     * not their ghosts were patched ahead of time
+     */
+    public void testApplyRemoteChangesInOrder()
+    throws Exception {
+
+        Map<String,String> map = new HashMap<String,String>();
+        map.put("a.1", "{\"data\":{\"title\":\"0\"}}");
+        map.put("b.1", "{\"data\":{\"title\":\"0\"}}");
+        map.put("c.1", "{\"data\":{\"title\":\"0\"}}");
+        startWithIndex(map);
+        // patch ahead of time however many processors there are
+        mChannel.setRemoteChangeThreads(2);
+
+        JSONArray changes = new JSONArray();
+        int cv = 0;
+        for (int version = 1; version <= 5; version++) {
+            for (String key : new String[]{ "a", "b", "c" }) {
+                if (key.equals("c") && version == 3) {
+                    // can't be applied, c's later changes still are
+                    changes.put(modifyOperation(key, 99, "invalid", ++cv));
+                }
+                changes.put(modifyOperation(key, version, String.format(Locale.US, "%s %d", key, version), ++cv));
+            }
+        }
+        mChannel.receiveMessage(String.format("c:%s", changes));
+
+        waitFor(200);
+
+        for (String key : new String[]{ "a", "b", "c" }) {
+            Note note = mBucket.get(key);
+            assertEquals(String.format(Locale.US, "%s 5", key), note.getTitle());
+            assertEquals(6, (int) note.getVersion());
+        }
+        assertEquals(String.format(Locale.US, "cv-%d", cv), mBucket.getChangeVersion());
+        assertTrue(mChannel.getPreparedChangeCount() > 0);
+
+    }
+
+    private static JSONObject modifyOperation(String key, int sourceVersion, String title, int cv)
+    throws JSONException {
+        JSONObject diff = new JSONObject();
+        diff.put("title", new JSONObject().put("o", "r").put("v", title));
+        JSONObject change = RemoteChangesUtil.modifyOperation(key, sourceVersion, diff);
+        change.put(RemoteChange.CHANGE_VERSION_KEY, String.format(Locale.US, "cv-%d", cv));
+        return change;
+    }
+
     public void testDequeueEmptyChanges()
     throws Exception {
 
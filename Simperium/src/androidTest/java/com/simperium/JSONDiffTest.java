@@ -1,5 +1,6 @@
 package com.simperium;
 
+import com.simperium.util.Document;
 import com.simperium.util.JSONDiff;
 
 import junit.framework.TestCase;
@@ -388,6 +389,46 @@ public class JSONDiffTest extends TestCase {
 
     }
 
+    public void testDocumentDiffMatchesJSONDiff()
+    throws Exception {
+
+        JSONObject origin = object("title", "Hello world", "nested", object("a", "b"));
+        origin.put("tags", list("one", "two"));
+        JSONObject target = object("title", "Hello World!", "nested", object("a", "b"));
+        target.put("tags", list("one"));
+        target.put("pinned", true);
+
+        JSONObject expected = JSONDiff.diff(origin, target);
+        JSONObject diff = JSONDiff.diff(Document.fromJSON(origin), Document.fromJSON(target));
+
+        assertTrue(JSONDiff.equals(expected, diff));
+
+    }
+
+    public void testDocumentApplySharesUnchangedValues()
+    throws Exception {
+
+        Document origin = Document.fromJSON(object("title", "Hello world", "nested", object("a", "b")));
+        JSONObject patch = JSONDiff.diff(origin.toJSON(), object("title", "Hello World!", "nested", object("a", "b")));
+
+        Document patched = JSONDiff.apply(origin, patch.getJSONObject(JSONDiff.DIFF_VALUE_KEY));
+
+        assertEquals("Hello World!", patched.get("title"));
+        assertEquals("Hello world", origin.get("title"));
+        assertSame(origin.get("nested"), patched.get("nested"));
+
+    }
+
+    public void testDocumentCopiesPutJSONValues()
+    throws Exception {
+
+        JSONObject nested = object("a", "b");
+        Document document = Document.EMPTY.with("nested", nested);
+        nested.put("a", "c");
+
+        assertEquals("b", ((Document) document.get("nested")).get("a"));
+
+    }
 
     /*
      * Convenient object building methods for test use
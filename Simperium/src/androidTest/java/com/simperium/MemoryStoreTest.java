@@ -0,0 +1,142 @@
+package com.simperium.storage;
+
+import com.simperium.client.Bucket;
+import com.simperium.client.Query;
+
+import com.simperium.models.Note;
+
+import com.simperium.storage.StorageProvider.BucketStore;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MemoryStoreTest extends TestCase {
+
+    private Note.Schema mSchema;
+    private BucketStore<Note> mStore;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mSchema = new Note.Schema();
+        mStore = new MemoryStore().createStore("notes", mSchema);
+    }
+
+    public void testSearchWithConditionsSortersAndLimit()
+    throws Exception {
+
+        save("a", 1, "one");
+        save("b", 4, "four");
+        save("c", 3, "three");
+        save("d", 2, "two");
+        save("e", 4, "four again");
+
+        Query<Note> query = new Query<Note>();
+        query.where("position", Query.ComparisonType.GREATER_THAN, 1);
+        query.order("position", Query.SortType.DESCENDING);
+
+        assertEquals(Arrays.asList("b", "e", "c", "d"), keys(mStore.search(query)));
+        assertEquals(4, mStore.count(query));
+
+        query.limit(2).offset(1);
+        assertEquals(Arrays.asList("e", "c"), keys(mStore.search(query)));
+        assertEquals(4, mStore.count(query));
+
+        query.clearLimit().clearOffset().after(new Object[]{ 4 }, "e");
+        assertEquals(Arrays.asList("c", "d"), keys(mStore.search(query)));
+    }
+
+    public void testUpdateAndDeleteMaintainIndexes()
+    throws Exception {
+
+        Note a = save("a", 1, "one");
+        Note b = save("b", 2, "two");
+
+        a.put("position", 5);
+        mStore.save(a, mSchema.indexesFor(a));
+        mStore.delete(b);
+
+        Query<Note> query = new Query<Note>();
+        query.where("position", Query.ComparisonType.LESS_THAN, 3);
+        assertEquals(0, mStore.count(query));
+
+        query = new Query<Note>();
+        query.where("position", Query.ComparisonType.EQUAL_TO, 5);
+        assertEquals(Arrays.asList("a"), keys(mStore.search(query)));
+
+        // unsorted results keep the order objects were first saved in
+        save("c", 0, "zero");
+        assertEquals(Arrays.asList("a", "c"), keys(mStore.all()));
+    }
+
+    public void testNullAndMultipleValues()
+    throws Exception {
+
+        Note a = save("a", 1, "one");
+        a.addTags("red", "blue");
+        mStore.save(a, mSchema.indexesFor(a));
+        save("b", 2, "two");
+
+        Query<Note> query = new Query<Note>();
+        query.where("tags", Query.ComparisonType.EQUAL_TO, "blue");
+        assertEquals(Arrays.asList("a"), keys(mStore.search(query)));
+
+        query = new Query<Note>();
+        query.where("title", Query.ComparisonType.EQUAL_TO, null);
+        assertEquals(2, mStore.count(query));
+
+        query = new Query<Note>();
+        query.where("content", Query.ComparisonType.NOT_EQUAL_TO, "one");
+        assertEquals(Arrays.asList("b"), keys(mStore.search(query)));
+    }
+
+    public void testFullTextMatch()
+    throws Exception {
+
+        save("a", 1, "Hola mundo");
+        save("b", 2, "Adios mundo");
+
+        Query<Note> query = new Query<Note>();
+        query.where(new Query.FullTextMatch("content", "hol*"));
+        assertEquals(Arrays.asList("a"), keys(mStore.search(query)));
+
+        query = new Query<Note>();
+        query.where(new Query.FullTextMatch("mundo"));
+        assertEquals(2, mStore.count(query));
+    }
+
+    public void testIncludedFields()
+    throws Exception {
+
+        save("a", 7, "seven");
+
+        Query<Note> query = new Query<Note>();
+        query.include("position");
+        Bucket.ObjectCursor<Note> cursor = mStore.search(query);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(7, cursor.getInt(cursor.getColumnIndexOrThrow("position")));
+        assertEquals("seven", cursor.getObject().getContent());
+        cursor.close();
+    }
+
+    private Note save(String key, int position, String content){
+        Note note = mSchema.buildWithDefaults(key, new org.json.JSONObject());
+        note.put("position", position);
+        note.setContent(content);
+        mStore.save(note, mSchema.indexesFor(note));
+        return note;
+    }
+
+    private static List<String> keys(Bucket.ObjectCursor<Note> cursor){
+        List<String> keys = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            keys.add(cursor.getSimperiumKey());
+        }
+        cursor.close();
+        return keys;
+    }
+
+}
@@ -7,6 +7,7 @@ import android.test.ActivityInstrumentationTestCase2;
 
 import com.simperium.android.LoginActivity;
 import com.simperium.android.PersistentStore;
+import com.simperium.TestHelpers;
 import com.simperium.client.Bucket;
 import com.simperium.client.BucketSchema;
 import com.simperium.client.GhostStorageProvider;
@@ -165,6 +166,119 @@ public class PersistentStoreTest extends PersistentStoreBaseTest {
         cursor.close();
     }
 
+    /**
+     * Preparing a store only reindexes when the schema's index fingerprint
+     * differs from the one the indexes were built with
+     */
+    public void testReindexOnlyWhenFingerprintChanges()
+    throws Exception {
+        Note note = mBucket.newObject("hola");
+        note.put("title", "Hello");
+        note.save();
+
+        waitForFingerprint(mSchema.getIndexFingerprint());
+
+        // drop the indexes so a reindex would be noticed
+        mDatabase.delete(PersistentStore.INDEXES_TABLE, null, null);
+
+        BucketStore<Note> store = mStore.createStore(BUCKET_NAME, mSchema);
+        Bucket<Note> bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, mSchema, mUser, store, mGhostStore, mCache);
+        store.prepare(bucket);
+        Thread.sleep(200);
+        assertEquals(0, countIndexes());
+
+        mSchema.setIndexVersion(2);
+        store = mStore.createStore(BUCKET_NAME, mSchema);
+        bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, mSchema, mUser, store, mGhostStore, mCache);
+        store.prepare(bucket);
+
+        waitForFingerprint(mSchema.getIndexFingerprint());
+        assertTrue(countIndexes() > 0);
+    }
+
+    /**
+     * Reindexing spans several pages and restores the indexes of every object
+     */
+    public void testReindexEveryPage()
+    throws Exception {
+        int total = PersistentStore.REINDEX_BATCH_SIZE * 2 + 10;
+        for (int i = 0; i < total; i++) {
+            Note note = mBucket.newObject(String.format("note-%d", i));
+            note.setTitle(String.format("Note %d", i));
+            note.save();
+        }
+        mDatabase.delete(PersistentStore.INDEXES_TABLE, null, null);
+
+        mSchema.setIndexVersion(3);
+        BucketStore<Note> store = mStore.createStore(BUCKET_NAME, mSchema);
+        Bucket<Note> bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, mSchema, mUser, store, mGhostStore, mCache);
+        store.prepare(bucket);
+
+        waitForFingerprint(mSchema.getIndexFingerprint());
+
+        Cursor cursor = mDatabase.rawQuery("SELECT COUNT(DISTINCT key) FROM indexes WHERE bucket=?", new String[]{ BUCKET_NAME });
+        cursor.moveToFirst();
+        assertEquals(total, cursor.getInt(0));
+        cursor.close();
+    }
+
+    private int countIndexes(){
+        Cursor cursor = mDatabase.query(PersistentStore.INDEXES_TABLE, null, null, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void waitForFingerprint(final String fingerprint)
+    throws InterruptedException {
+        TestHelpers.waitUntil(new TestHelpers.Flag(){
+            @Override
+            public boolean isComplete(){
+                Cursor cursor = mDatabase.query(PersistentStore.INDEX_FINGERPRINTS_TABLE, new String[]{ "fingerprint" },
+                    "bucket=?", new String[]{ BUCKET_NAME }, null, null, null);
+                boolean matches = cursor.moveToFirst() && fingerprint.equals(cursor.getString(0));
+                cursor.close();
+                return matches;
+            }
+        }, "Reindex did not finish", 2000);
+    }
+
+    public void testSavingOnlyRewritesChangedIndexes()
+    throws Exception {
+
+        Note note = mBucket.newObject("hola");
+        note.put("col1", "Hello");
+        note.put("col2", 237);
+        note.save();
+
+        long objectRowId = rowId(PersistentStore.OBJECTS_TABLE, "key=?", "hola");
+        long col1RowId = rowId(PersistentStore.INDEXES_TABLE, "name=?", "col1");
+        long col2RowId = rowId(PersistentStore.INDEXES_TABLE, "name=?", "col2");
+
+        note.put("col2", 238);
+        note.save();
+
+        // object row is replaced in place
+        assertEquals(objectRowId, rowId(PersistentStore.OBJECTS_TABLE, "key=?", "hola"));
+        // unchanged index row is untouched, changed index row is rewritten
+        assertEquals(col1RowId, rowId(PersistentStore.INDEXES_TABLE, "name=?", "col1"));
+        assertFalse(col2RowId == rowId(PersistentStore.INDEXES_TABLE, "name=?", "col2"));
+
+        Cursor cursor = mDatabase.query(PersistentStore.INDEXES_TABLE, new String[]{"value"}, "name=?", new String[]{"col2"}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(238, cursor.getInt(0));
+        cursor.close();
+    }
+
+    private long rowId(String table, String where, String arg){
+        Cursor cursor = mDatabase.query(table, new String[]{"rowid"}, where, new String[]{ arg }, null, null, null);
+        cursor.moveToFirst();
+        long rowId = cursor.getLong(0);
+        cursor.close();
+        return rowId;
+    }
+
     public void testObjectSearching()
     throws Exception {
         // clear out the database
@@ -69,6 +69,43 @@ public class QueueSerializerTest extends ActivityInstrumentationTestCase2<LoginA
 
     }
 
+    public void testQueueThenDequeueCancelsOut() throws Exception {
+        BucketObject object = mBucket.newObject();
+        object.setProperty("title", "Hola Mundo");
+
+        Change change = new Change(Change.OPERATION_MODIFY, object);
+
+        mSerializer.onQueueChange(change);
+        mSerializer.onDequeueChange(change);
+        mSerializer.sync();
+
+        Cursor cursor = mDatabase.query(QueueSerializer.TABLE_NAME, null, QueueSerializer.UPDATE_CLAUSE,
+            new String[]{ change.getBucketName(), change.getChangeId() }, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testSyncWritesJournal() throws Exception {
+        BucketObject object = mBucket.newObject();
+        object.setProperty("title", "Hola Mundo");
+
+        Change change = new Change(Change.OPERATION_MODIFY, object);
+
+        mSerializer.onQueueChange(change);
+        mSerializer.onSendChange(change);
+        mSerializer.sync();
+
+        Cursor cursor = mDatabase.query(QueueSerializer.TABLE_NAME, new String[]{ QueueSerializer.FIELD_STATUS },
+            QueueSerializer.UPDATE_CLAUSE, new String[]{ change.getBucketName(), change.getChangeId() }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("P", cursor.getString(0));
+        cursor.close();
+
+        mSerializer.onAcknowledgeChange(change);
+        assertEquals(0, mSerializer.restore(mBucket).pending.size());
+    }
+
     public static void assertTableExists(SQLiteDatabase database, String tableName) {
         Cursor cursor = database.query("sqlite_master", new String[]{"name"}, "type=? AND name=?", new String[]{"table", tableName}, "name", null, null, null);
         assertEquals(String.format("Table %s does not exist in %s", tableName, database), 1, cursor.getCount());
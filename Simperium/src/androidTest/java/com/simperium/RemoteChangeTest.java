@@ -6,8 +6,12 @@ import com.simperium.test.MockBucket;
 
 import com.simperium.models.Note;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import static android.test.MoreAsserts.*;
@@ -50,6 +54,72 @@ public class RemoteChangeTest extends TestCase {
         assertFalse(change.isAddOperation());
     }
 
+    public void testStreamRemoteChanges()
+    throws Exception {
+        String changesJSON = "[{\"cv\":\"mock-cv\",\"ccids\":[\"abc\"],\"ev\":2,\"sv\":1,\"id\":\"mock\",\"clientid\":\"mock-client\",\"o\":\"M\",\"v\":{\"title\":{\"o\":\"r\",\"v\":\"]}\"}}}," +
+            "{\"ccids\":[\"def\"],\"id\":\"invalid\"}," +
+            "{\"ccids\":[\"ghi\"],\"id\":\"mock\",\"clientid\":\"mock-client\",\"error\":409}]";
+
+        final List<RemoteChange> changes = new ArrayList<RemoteChange>();
+        final List<JSONException> errors = new ArrayList<JSONException>();
+        RemoteChangeParser.parse(changesJSON, new RemoteChangeParser.Listener(){
+
+            @Override
+            public void onRemoteChange(RemoteChange change){
+                changes.add(change);
+            }
+
+            @Override
+            public void onInvalidChange(JSONException exception){
+                errors.add(exception);
+            }
+
+        });
+
+        assertEquals(2, changes.size());
+        assertEquals(1, errors.size());
+
+        RemoteChange change = changes.get(0);
+        assertTrue(change.isModifyOperation());
+        assertEquals("mock-cv", change.getChangeVersion());
+        assertEquals(Integer.valueOf(2), change.getObjectVersion());
+        assertTrue(change.hasChangeId("abc"));
+        assertEquals("]}", change.getPatch().getJSONObject("title").getString("v"));
+
+        assertEquals(RemoteChange.ResponseCode.DUPLICATE_CHANGE, changes.get(1).getResponseCode());
+    }
+
+    /**
+     * A field with the wrong type only invalidates its own change
+     */
+    public void testStreamRemoteChangesWithWrongFieldTypes()
+    throws Exception {
+        String changesJSON = "[{\"cv\":\"cv-1\",\"ccids\":[\"abc\"],\"ev\":\"two\",\"id\":\"mock\",\"clientid\":\"mock-client\",\"o\":\"M\",\"v\":{}}," +
+            "{\"cv\":\"cv-2\",\"ccids\":[\"def\"],\"ev\":1,\"id\":{\"key\":\"mock\"},\"clientid\":\"mock-client\",\"o\":\"M\",\"v\":{}}," +
+            "{\"cv\":\"cv-3\",\"ccids\":[1],\"ev\":1,\"id\":\"mock\",\"clientid\":\"mock-client\",\"o\":\"M\",\"v\":{}}," +
+            "{\"cv\":\"cv-4\",\"ccids\":[\"ghi\"],\"ev\":1,\"id\":\"mock\",\"clientid\":\"mock-client\",\"o\":\"M\",\"v\":{}}]";
+
+        final List<RemoteChange> changes = new ArrayList<RemoteChange>();
+        final List<JSONException> errors = new ArrayList<JSONException>();
+        RemoteChangeParser.parse(changesJSON, new RemoteChangeParser.Listener(){
+
+            @Override
+            public void onRemoteChange(RemoteChange change){
+                changes.add(change);
+            }
+
+            @Override
+            public void onInvalidChange(JSONException exception){
+                errors.add(exception);
+            }
+
+        });
+
+        assertEquals(1, changes.size());
+        assertEquals(3, errors.size());
+        assertEquals("cv-4", changes.get(0).getChangeVersion());
+    }
+
     /**
      * first we need an existing object
      */
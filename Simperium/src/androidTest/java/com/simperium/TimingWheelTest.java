@@ -0,0 +1,63 @@
+package com.simperium;
+
+import com.simperium.util.TimingWheel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+    private TimingWheel mWheel;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // small wheel so timeouts wrap around it
+        mWheel = new TimingWheel("test-wheel", 10, 4);
+    }
+
+    public void testScheduledTasksRun()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Runnable task = new Runnable(){
+            @Override
+            public void run(){
+                latch.countDown();
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        mWheel.schedule(task, 20);
+        mWheel.schedule(task, 100);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    public void testCancelledTaskDoesNotRun()
+    throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        TimingWheel.Timeout timeout = mWheel.schedule(new Runnable(){
+            @Override
+            public void run(){
+                ran.set(true);
+            }
+        }, 30);
+        mWheel.schedule(new Runnable(){
+            @Override
+            public void run(){
+                latch.countDown();
+            }
+        }, 60);
+
+        assertTrue(timeout.cancel());
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertFalse(timeout.cancel());
+    }
+
+}
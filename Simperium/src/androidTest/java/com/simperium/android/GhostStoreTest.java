@@ -0,0 +1,183 @@
+package com.simperium.android;
+
+import android.database.Cursor;
+
+import com.simperium.client.Bucket;
+import com.simperium.client.Ghost;
+import com.simperium.models.Note;
+import com.simperium.test.MockChannel;
+import com.simperium.test.MockExecutor;
+import com.simperium.util.RemoteChangesUtil;
+
+import org.json.JSONObject;
+
+public class GhostStoreTest extends PersistentStoreBaseTest {
+
+    private GhostStore mGhosts;
+
+    @Override
+    protected void setUp()
+    throws Exception {
+        super.setUp();
+        mGhosts = new GhostStore(mDatabase, true);
+    }
+
+    /**
+     * A ghost equal to its object row is stored as a reference and survives
+     * the row changing or being deleted
+     */
+    public void testGhostReferencesObjectRow()
+    throws Exception {
+
+        Note note = mBucket.newObject("referenced");
+        note.setTitle("Hola");
+        note.save();
+
+        JSONObject synced = new JSONObject(note.getDiffableValue().toString());
+        mGhosts.saveGhost(mBucket, new Ghost("referenced", 1, synced));
+        assertEquals("=", storedPayload("referenced"));
+
+        note.setTitle("Adios");
+        note.save();
+        assertEquals("Hola", mGhosts.getGhost(mBucket, "referenced").getDiffableValue().getString("title"));
+
+        note.delete();
+        assertEquals("Hola", mGhosts.getGhost(mBucket, "referenced").getDiffableValue().getString("title"));
+    }
+
+    /**
+     * A ghost that differs from its object row by a little is stored as a diff
+     */
+    public void testGhostStoredAsDiff()
+    throws Exception {
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+
+        Note note = mBucket.newObject("diffed");
+        note.setContent(content.toString());
+        note.setTitle("Hola");
+        note.save();
+
+        JSONObject synced = new JSONObject(note.getDiffableValue().toString());
+        note.setTitle("Adios");
+        note.save();
+
+        mGhosts.saveGhost(mBucket, new Ghost("diffed", 2, synced));
+        assertTrue(storedPayload("diffed").startsWith("~"));
+
+        Ghost ghost = mGhosts.getGhost(mBucket, "diffed");
+        assertEquals("Hola", ghost.getDiffableValue().getString("title"));
+        assertEquals(content.toString(), ghost.getDiffableValue().getString("content"));
+        assertEquals(2, (int) ghost.getVersion());
+
+        // once the ghost catches up with the row it is a reference again
+        mGhosts.saveGhost(mBucket, new Ghost("diffed", 3, new JSONObject(note.getDiffableValue().toString())));
+        assertEquals("=", storedPayload("diffed"));
+    }
+
+    /**
+     * Ghosts saved by applying remote changes reference the object row the
+     * change wrote instead of copying the row they replaced
+     */
+    public void testRemoteChangeStoresReference()
+    throws Exception {
+
+        Bucket<Note> bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, mSchema, mUser, mNoteStore, mGhosts, mCache);
+        bucket.setChannel(new MockChannel(bucket));
+        bucket.setIndexBatchSize(1, 0);
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        JSONObject data = new JSONObject();
+        data.put("title", "Hola");
+        data.put("content", content.toString());
+        bucket.addObjectWithGhost(new Ghost("remote", 1, data));
+        assertEquals("=", storedPayload("remote"));
+
+        Note note = bucket.get("remote");
+        JSONObject remote = new JSONObject(note.getDiffableValue().toString());
+        remote.put("title", "Adios");
+        bucket.applyRemoteChange(RemoteChangesUtil.buildRemoteChange(note, remote));
+        assertEquals("=", storedPayload("remote"));
+        assertNull(storedBase("remote"));
+
+        // with local modifications the row and the ghost differ by a little
+        note.setContent(content.toString() + "local line\n");
+        note.save();
+        remote = new JSONObject(note.getUnmodifiedValue().toString());
+        remote.put("title", "Hola otra vez");
+        bucket.applyRemoteChange(RemoteChangesUtil.buildRemoteChange(note, remote));
+        assertTrue(storedPayload("remote").startsWith("~"));
+        assertNull(storedBase("remote"));
+
+        Ghost ghost = mGhosts.getGhost(bucket, "remote");
+        assertEquals(3, (int) ghost.getVersion());
+        assertEquals("Hola otra vez", ghost.getDiffableValue().getString("title"));
+        assertEquals(content.toString(), ghost.getDiffableValue().getString("content"));
+    }
+
+    /**
+     * Change versions set during a batch are served from memory and saved
+     * once when it ends
+     */
+    public void testChangeVersionBatch()
+    throws Exception {
+
+        assertFalse(mGhosts.hasChangeVersion(mBucket));
+        mGhosts.setChangeVersion(mBucket, "cv1");
+        assertTrue(mGhosts.hasChangeVersion(mBucket, "cv1"));
+
+        mGhosts.beginChangeVersionBatch(mBucket);
+        mGhosts.setChangeVersion(mBucket, "cv2");
+        mGhosts.setChangeVersion(mBucket, "cv3");
+        assertEquals("cv3", mGhosts.getChangeVersion(mBucket));
+        assertEquals("cv1", storedChangeVersion());
+        mGhosts.endChangeVersionBatch(mBucket, true);
+        assertEquals("cv3", storedChangeVersion());
+
+        mGhosts.beginChangeVersionBatch(mBucket);
+        mGhosts.setChangeVersion(mBucket, "cv4");
+        mGhosts.endChangeVersionBatch(mBucket, false);
+        assertEquals("cv3", mGhosts.getChangeVersion(mBucket));
+
+        assertEquals("cv3", new GhostStore(mDatabase).getChangeVersion(mBucket));
+    }
+
+    private String storedChangeVersion(){
+        Cursor cursor = mDatabase.rawQuery("SELECT changeVersion FROM changeVersions WHERE bucketName=?",
+            new String[]{ BUCKET_NAME });
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String storedBase(String key){
+        Cursor cursor = mDatabase.rawQuery("SELECT base FROM ghosts WHERE bucketName=? AND simperiumKey=?",
+            new String[]{ BUCKET_NAME, key });
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String storedPayload(String key){
+        Cursor cursor = mDatabase.rawQuery("SELECT payload FROM ghosts WHERE bucketName=? AND simperiumKey=?",
+            new String[]{ BUCKET_NAME, key });
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
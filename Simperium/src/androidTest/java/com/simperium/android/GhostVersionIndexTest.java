@@ -0,0 +1,82 @@
+package com.simperium.android;
+
+import junit.framework.TestCase;
+
+public class GhostVersionIndexTest extends TestCase {
+
+    public void testPutAndGet(){
+        GhostVersionIndex index = new GhostVersionIndex();
+
+        index.put("note-1", 1);
+        index.put("note-2", 5);
+        index.put("note-1", 3);
+
+        assertEquals(2, index.size());
+        assertEquals(3, index.get("note-1"));
+        assertEquals(5, index.get("note-2"));
+        assertEquals(GhostVersionIndex.NO_VERSION, index.get("note-3"));
+        assertFalse(index.contains("note-3"));
+    }
+
+    public void testRemove(){
+        GhostVersionIndex index = new GhostVersionIndex();
+
+        index.put("note-1", 1);
+        index.put("note-2", 2);
+        index.remove("note-1");
+        index.remove("missing");
+
+        assertEquals(1, index.size());
+        assertFalse(index.contains("note-1"));
+        assertEquals(2, index.get("note-2"));
+
+        index.put("note-1", 4);
+        assertEquals(4, index.get("note-1"));
+    }
+
+    /**
+     * Keys survive growing the table and rebuilding the filter after removals
+     */
+    public void testGrowAndRebuild(){
+        GhostVersionIndex index = new GhostVersionIndex();
+
+        for (int i = 0; i < 5000; i++) {
+            index.put("key-" + i, i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            index.remove("key-" + i);
+        }
+
+        assertEquals(2500, index.size());
+        for (int i = 0; i < 5000; i++) {
+            int expected = i % 2 == 0 ? GhostVersionIndex.NO_VERSION : i;
+            assertEquals(expected, index.get("key-" + i));
+        }
+    }
+
+    public void testBloomFilterHasNoFalseNegatives(){
+        GhostVersionIndex index = new GhostVersionIndex(1000);
+
+        for (int i = 0; i < 1000; i++) {
+            index.put("key-" + i, 1);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(index.mightContain("key-" + i));
+            if (index.mightContain("other-" + i)) falsePositives ++;
+        }
+        assertTrue(falsePositives < 100);
+    }
+
+    public void testClear(){
+        GhostVersionIndex index = new GhostVersionIndex();
+
+        index.put("note-1", 1);
+        index.clear();
+
+        assertEquals(0, index.size());
+        assertFalse(index.contains("note-1"));
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.simperium.android;
+
+import com.simperium.client.LiveQuery;
+import com.simperium.client.Query;
+import com.simperium.models.Note;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LiveQueryTest extends PersistentStoreBaseTest {
+
+    private List<String> mEvents = new ArrayList<String>();
+
+    private LiveQuery.Listener<Note> mListener = new LiveQuery.Listener<Note>(){
+
+        @Override
+        public void onInsert(LiveQuery<Note> query, int position, String key){
+            mEvents.add(String.format("insert %d %s", position, key));
+        }
+
+        @Override
+        public void onUpdate(LiveQuery<Note> query, int position, String key){
+            mEvents.add(String.format("update %d %s", position, key));
+        }
+
+        @Override
+        public void onMove(LiveQuery<Note> query, int from, int to, String key){
+            mEvents.add(String.format("move %d %d %s", from, to, key));
+        }
+
+        @Override
+        public void onRemove(LiveQuery<Note> query, int position, String key){
+            mEvents.add(String.format("remove %d %s", position, key));
+        }
+
+        @Override
+        public void onReload(LiveQuery<Note> query){
+            mEvents.add("reload");
+        }
+
+    };
+
+    public void testChangesAreAppliedWithoutQuerying()
+    throws Exception {
+
+        Note a = saveNote("a", 1);
+        Note b = saveNote("b", 2);
+        Note c = saveNote("c", 3);
+
+        Query<Note> query = new Query<Note>();
+        query.where("position", Query.ComparisonType.GREATER_THAN_OR_EQUAL, 2);
+        query.order("position");
+        LiveQuery<Note> live = new LiveQuery<Note>(mBucket, query);
+        live.start(mListener);
+
+        assertEquals(keys("b", "c"), live.getKeys());
+
+        Note d = saveNote("d", 2);
+        c.put("position", 0);
+        c.save();
+        b.put("position", 5);
+        b.save();
+        b.setTitle("same position");
+        b.save();
+        a.setTitle("not matched");
+        a.save();
+        d.delete();
+
+        assertEquals(keys("reload", "insert 1 d", "remove 2 c", "move 0 1 b", "update 1 b", "remove 0 d"), mEvents);
+        assertEquals(keys("b"), live.getKeys());
+        assertEquals(1, live.getReloadCount());
+
+        live.stop();
+    }
+
+    /**
+     * A full limited window can't know which row replaces a removed one
+     */
+    public void testLimitedWindow()
+    throws Exception {
+
+        saveNote("a", 1);
+        Note b = saveNote("b", 2);
+        saveNote("c", 3);
+
+        Query<Note> query = new Query<Note>();
+        query.order("position").limit(2);
+        LiveQuery<Note> live = new LiveQuery<Note>(mBucket, query);
+        live.start(mListener);
+
+        saveNote("d", 0);
+        saveNote("e", 9);
+        assertEquals(keys("d", "a"), live.getKeys());
+        assertEquals(1, live.getReloadCount());
+
+        b.put("position", -1);
+        b.save();
+        assertEquals(keys("b", "d"), live.getKeys());
+        assertEquals(1, live.getReloadCount());
+
+        b.delete();
+        assertEquals(keys("d", "a"), live.getKeys());
+        assertEquals(2, live.getReloadCount());
+
+        live.stop();
+    }
+
+    private Note saveNote(String key, int position)
+    throws Exception {
+        Note note = mBucket.newObject(key);
+        note.put("position", position);
+        note.save();
+        return note;
+    }
+
+    private static List<String> keys(String ... keys){
+        List<String> list = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+}
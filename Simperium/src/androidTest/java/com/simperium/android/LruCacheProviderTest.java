@@ -0,0 +1,60 @@
+package com.simperium.android;
+
+import com.simperium.models.Note;
+
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+public class LruCacheProviderTest extends TestCase {
+
+    public void testEntryBoundedCacheEvicts()
+    throws Exception {
+        LruCacheProvider provider = new LruCacheProvider(LruCacheProvider.Config.entries(2));
+        LruCacheProvider.LruObjectCache<Note> cache = provider.buildCache("notes");
+
+        cache.put("a", new Note("a", new JSONObject()));
+        cache.put("b", new Note("b", new JSONObject()));
+        cache.put("c", new Note("c", new JSONObject()));
+
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.evictionCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertSame(cache, provider.getCache("notes"));
+    }
+
+    public void testByteBoundedCacheWeighsObjects()
+    throws Exception {
+        LruCacheProvider provider = new LruCacheProvider(LruCacheProvider.Config.entries(2));
+        provider.configureBucket("notes", LruCacheProvider.Config.bytes(1024));
+        LruCacheProvider.LruObjectCache<Note> cache = provider.buildCache("notes");
+
+        JSONObject properties = new JSONObject();
+        properties.put("content", new String(new char[400]));
+        cache.put("large", new Note("large", properties));
+        cache.put("small", new Note("small", new JSONObject()));
+
+        assertEquals(LruCacheProvider.estimateSize(properties) + LruCacheProvider.estimateSize(new JSONObject()), cache.size());
+
+        cache.put("large-2", new Note("large-2", properties));
+        assertNull(cache.get("large"));
+        assertNotNull(cache.get("small"));
+    }
+
+    public void testSoftTierServesEvictedObjects()
+    throws Exception {
+        LruCacheProvider provider = new LruCacheProvider(LruCacheProvider.Config.entries(1).softReferences(true));
+        LruCacheProvider.LruObjectCache<Note> cache = provider.buildCache("notes");
+
+        Note a = new Note("a", new JSONObject());
+        cache.put("a", a);
+        cache.put("b", new Note("b", new JSONObject()));
+
+        assertSame(a, cache.get("a"));
+        assertEquals(1, cache.softHitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+}
@@ -2,11 +2,15 @@ package com.simperium.android;
 
 import android.test.MoreAsserts;
 
+import com.simperium.TestHelpers;
 import com.simperium.android.PersistentStore.QueryBuilder;
 import com.simperium.android.PersistentStore.DataStore;
+import com.simperium.client.Bucket;
 import com.simperium.client.Query;
 
 import com.simperium.models.Note;
+import com.simperium.test.MockChannel;
+import com.simperium.test.MockExecutor;
 
 public class PersistentStoreQueryBuilderTest extends PersistentStoreBaseTest {
 
@@ -47,6 +51,191 @@ public class PersistentStoreQueryBuilderTest extends PersistentStoreBaseTest {
 
     }
 
+    /**
+     * Numeric subjects are bound and cast instead of written into the SQL so
+     * queries that only differ in subjects reuse the same compiled SQL
+     */
+    public void testNumericSubjectsAreBound()
+    throws Exception {
+
+        Query query = new Query();
+        query.where("position", Query.ComparisonType.GREATER_THAN, 1);
+        QueryBuilder first = buildQuery(query);
+
+        query = new Query();
+        query.where("position", Query.ComparisonType.GREATER_THAN, 5);
+        QueryBuilder second = buildQuery(query);
+
+        String condition = " FROM `objects`  LEFT JOIN indexes AS i0 ON objects.bucket = i0.bucket AND objects.key = i0.key AND i0.name=? WHERE objects.bucket = ? AND (  i0.value IS NOT NULL AND i0.value >  CAST(? AS INTEGER)) ";
+
+        assertEquals(condition, first.statement);
+        assertSame(first.statement, second.statement);
+        MoreAsserts.assertEquals(new String[]{ "position", "bucket", "1" }, first.args);
+        MoreAsserts.assertEquals(new String[]{ "position", "bucket", "5" }, second.args);
+
+        Note note = mBucket.newObject("bound");
+        note.put("position", 3);
+        note.save();
+
+        Bucket.ObjectCursor<Note> cursor = mNoteStore.search(new Query<Note>().where("position", Query.ComparisonType.GREATER_THAN, 1));
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        cursor = mNoteStore.search(new Query<Note>().where("position", Query.ComparisonType.GREATER_THAN, 5));
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+    }
+
+    /**
+     * Materialized index names are read from the bucket's index table with a
+     * single join instead of a join on indexes per name
+     */
+    public void testMaterializedIndexQuery()
+    throws Exception {
+
+        Note.Schema schema = new Note.Schema();
+        schema.setMaterializedIndexes("title");
+        final DataStore<Note> store = (DataStore<Note>) mStore.createStore(BUCKET_NAME, schema);
+        Bucket<Note> bucket = new Bucket<Note>(MockExecutor.immediate(), BUCKET_NAME, schema, mUser, store, mGhostStore, mCache);
+        bucket.setChannel(new MockChannel(bucket));
+        store.prepare(bucket);
+
+        TestHelpers.waitUntil(new TestHelpers.Flag(){
+            @Override
+            public boolean isComplete(){
+                return store.isMaterialized("title");
+            }
+        }, "Materialized table was not built", 2000);
+
+        Note note = bucket.newObject("hola");
+        note.setTitle("lol");
+        note.save();
+        bucket.newObject("adios").save();
+
+        Query<Note> query = new Query<Note>();
+        query.where("title", Query.ComparisonType.EQUAL_TO, "lol");
+        query.order("title");
+        QueryBuilder builder = new QueryBuilder(store, query);
+
+        String[] args = new String[] {
+            "bucket", // bucket name
+            "lol" // value to compare to
+        };
+        String condition = " FROM `objects`  JOIN `bucket_idx` AS m ON m.key = objects.key WHERE objects.bucket = ? AND (  m.`i_title` IS NOT NULL AND m.`i_title` =  ?) ORDER BY m.`i_title` ASC";
+
+        MoreAsserts.assertEquals(args, builder.args);
+        assertEquals(condition, builder.statement);
+
+        Bucket.ObjectCursor<Note> cursor = store.search(query);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+    }
+
+    public void testSeekAfterQuery()
+    throws Exception {
+
+        Query query = new Query();
+        query.order("position", Query.SortType.DESCENDING);
+        query.after(new Object[]{ 3 }, "note-b");
+        query.limit(2);
+        QueryBuilder builder = buildQuery(query);
+
+        String condition = " FROM `objects`  LEFT JOIN indexes AS i0 ON objects.bucket = i0.bucket AND objects.key = i0.key AND i0.name=? WHERE objects.bucket = ? AND ( (i0.value < CAST(? AS INTEGER) OR i0.value IS NULL) OR (i0.value = CAST(? AS INTEGER) AND objects.key > ?) ) ORDER BY i0.value DESC, objects.key ASC";
+
+        assertEquals(condition, builder.statement);
+        MoreAsserts.assertEquals(new String[]{ "position", "bucket", "3", "3", "note-b" }, builder.args);
+
+        try {
+            buildQuery(new Query().order("position").after(new Object[0], "note-b"));
+            fail("Missing sort values should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+    }
+
+    /**
+     * Paging with after() visits every object once in sort order, ties on the
+     * sort value are broken by key
+     */
+    public void testPageWithSeek()
+    throws Exception {
+
+        Object[] positions = new Object[]{ 2, 5, 2, 1, 5, 3, 2 };
+        String[] expected = new String[]{ "note-3", "note-0", "note-2", "note-6", "note-5", "note-1", "note-4" };
+        savePositions(positions);
+        assertPages(Query.SortType.ASCENDING, expected);
+
+    }
+
+    /**
+     * Timestamps don't fit an Integer so org.json gives back a Long
+     */
+    public void testPageWithSeekOnLong()
+    throws Exception {
+
+        long now = 1400000000000L;
+        Object[] positions = new Object[]{ now + 2, now + 5, now + 2, now + 1, now + 5, now + 3, now + 2 };
+        savePositions(positions);
+        assertPages(Query.SortType.ASCENDING,
+            new String[]{ "note-3", "note-0", "note-2", "note-6", "note-5", "note-1", "note-4" });
+        assertPages(Query.SortType.DESCENDING,
+            new String[]{ "note-1", "note-4", "note-5", "note-0", "note-2", "note-6", "note-3" });
+
+    }
+
+    public void testPageWithSeekOnDouble()
+    throws Exception {
+
+        Object[] positions = new Object[]{ 0.1234567, 5.5, 0.1234567, 0.1234566, 5.5, 3.25, 0.1234567 };
+        savePositions(positions);
+        assertPages(Query.SortType.ASCENDING,
+            new String[]{ "note-3", "note-0", "note-2", "note-6", "note-5", "note-1", "note-4" });
+        assertPages(Query.SortType.DESCENDING,
+            new String[]{ "note-1", "note-4", "note-5", "note-0", "note-2", "note-6", "note-3" });
+
+    }
+
+    private void savePositions(Object[] positions)
+    throws Exception {
+        for (int i = 0; i < positions.length; i++) {
+            Note note = mBucket.newObject(String.format("note-%d", i));
+            note.put("position", positions[i]);
+            note.save();
+        }
+    }
+
+    /**
+     * Pages through the notes by position three at a time, continuing after
+     * the last note of each page
+     */
+    private void assertPages(Query.SortType sort, String[] expected)
+    throws Exception {
+
+        java.util.List<String> keys = new java.util.ArrayList<String>();
+        Object[] lastValues = null;
+        String lastKey = null;
+        while (true) {
+            Query<Note> query = new Query<Note>();
+            query.order("position", sort).limit(3);
+            if (lastKey != null) query.after(lastValues, lastKey);
+            Bucket.ObjectCursor<Note> cursor = mNoteStore.search(query);
+            int count = cursor.getCount();
+            while (cursor.moveToNext()) {
+                lastKey = cursor.getSimperiumKey();
+                lastValues = new Object[]{ cursor.getObject().get("position") };
+                keys.add(lastKey);
+            }
+            cursor.close();
+            if (count < 3) break;
+        }
+
+        MoreAsserts.assertEquals(expected, keys.toArray(new String[keys.size()]));
+
+    }
+
     protected QueryBuilder buildQuery(Query query) {
         return new QueryBuilder((DataStore<Note>) mNoteStore, query);
     }
@@ -127,7 +127,12 @@ public class Simperium implements User.StatusChangeListener {
     throws BucketNameInvalid {
 
         // initialize the bucket
-        ObjectCacheProvider.ObjectCache<T> cache = mObjectCacheProvider.buildCache();
+        ObjectCacheProvider.ObjectCache<T> cache;
+        if (mObjectCacheProvider instanceof ObjectCacheProvider.BucketCacheProvider) {
+            cache = ((ObjectCacheProvider.BucketCacheProvider) mObjectCacheProvider).buildCache(bucketName);
+        } else {
+            cache = mObjectCacheProvider.buildCache();
+        }
         Bucket<T> bucket = new Bucket<T>(mExecutor, bucketName, schema, user, storage, mGhostStorageProvider, cache);
 
         // initialize the communication method for the bucket
@@ -7,6 +7,7 @@ import android.database.sqlite.SQLiteDatabase;
 import com.simperium.Simperium;
 import com.simperium.Version;
 import com.simperium.client.ClientFactory;
+import com.simperium.util.TimingWheel;
 import com.simperium.util.Uuid;
 
 import java.util.concurrent.Executor;
@@ -33,6 +34,9 @@ public class AndroidClient implements ClientFactory {
     protected SQLiteDatabase mDatabase;
 
     protected ExecutorService mExecutor;
+    protected LruCacheProvider mCacheProvider = new LruCacheProvider();
+    // one timer thread for heartbeats, reconnects and change retries
+    protected TimingWheel mScheduler = new TimingWheel();
 
     public AndroidClient(Context context){
         int threads = Runtime.getRuntime().availableProcessors();
@@ -76,7 +80,7 @@ public class AndroidClient implements ClientFactory {
         }
 
         String sessionId = String.format("%s-%s", Version.LIBRARY_NAME, sessionToken);
-        return new WebSocketManager(mExecutor, appId, sessionId, new QueueSerializer(mDatabase));
+        return new WebSocketManager(mExecutor, buildScheduler(), appId, sessionId, new QueueSerializer(mDatabase));
     }
 
     @Override
@@ -86,16 +90,26 @@ public class AndroidClient implements ClientFactory {
 
     @Override
     public GhostStore buildGhostStorageProvider(){
-        return new GhostStore(mDatabase);
+        // shares the database with the PersistentStore so ghosts can reference object rows
+        return new GhostStore(mDatabase, true);
     }
 
+    /**
+     * Returns the shared cache provider so apps can configure bucket caches
+     * before creating buckets
+     */
     @Override
     public LruCacheProvider buildObjectCacheProvider(){
-        return new LruCacheProvider();
+        return mCacheProvider;
     }
 
     @Override
     public Executor buildExecutor(){
         return mExecutor;
     }
+
+    @Override
+    public TimingWheel buildScheduler(){
+        return mScheduler;
+    }
 }
\ No newline at end of file
@@ -8,41 +8,141 @@ import com.simperium.client.Bucket;
 import com.simperium.client.Ghost;
 import com.simperium.client.GhostMissingException;
 import com.simperium.client.GhostStorageProvider;
+import com.simperium.util.JSONDiff;
 import com.simperium.util.Logger;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores ghosts in the database. When objects are referenced the store must
+ * share its database with the PersistentStore: a ghost equal to its object's
+ * row is stored as a reference to it and one that differs as a diff against
+ * it. Triggers on the objects table copy the row into the ghost's base column
+ * before it changes so the ghost can still be rebuilt.
+ */
 public class GhostStore implements GhostStorageProvider {
 
     private static final String DATABASE_NAME="simperium-ghost";
     private static final String GHOSTS_TABLE_NAME="ghosts";
     private static final String VERSIONS_TABLE_NAME="changeVersions";
+    private static final String INDEX_MARKS_TABLE_NAME="indexMarks";
     private static final String CREATE_TABLE_GHOSTS="CREATE TABLE IF NOT EXISTS ghosts (id INTEGER PRIMARY KEY AUTOINCREMENT, bucketName VARCHAR(63), simperiumKey VARCHAR(255), version INTEGER, payload TEXT, UNIQUE(bucketName, simperiumKey) ON CONFLICT REPLACE)";
     private static final String CREATE_TABLE_CHANGE_VERSIONS="CREATE TABLE IF NOT EXISTS changeVersions (id INTEGER PRIMARY KEY AUTOINCREMENT, bucketName VARCHAR(63), changeVersion VARCHAR(255), UNIQUE(bucketName))";
+    private static final String CREATE_TABLE_INDEX_MARKS="CREATE TABLE IF NOT EXISTS indexMarks (id INTEGER PRIMARY KEY AUTOINCREMENT, bucketName VARCHAR(63), changeVersion VARCHAR(255), mark TEXT, UNIQUE(bucketName) ON CONFLICT REPLACE)";
     private static final Integer VERSION=1;
     private static final String BUCKET_NAME_FIELD="bucketName";
     private static final String VERSION_FIELD="version";
     private static final String OBJECT_KEY_FIELD="simperiumKey";
     private static final String PAYLOAD_FIELD="payload";
     private static final String CHANGE_VERSION_FIELD="changeVersion";
+    private static final String MARK_FIELD="mark";
+    private static final String ID_FIELD="id";
+    private static final String BASE_FIELD="base";
+    // payload of a ghost that equals its object row (or base)
+    private static final String REFERENCE_PAYLOAD="=";
+    // prefix of a payload that is a diff against the object row (or base)
+    private static final String DIFF_PAYLOAD_PREFIX="~";
+    private static final String REFERENCE_PAYLOAD_CONDITION="base IS NULL AND substr(payload, 1, 1) IN ('=', '~')";
+    // ghost versions read per query by readVersions
+    private static final int VERSION_PAGE_SIZE=500;
 
     private SQLiteDatabase database;
+    private final boolean mReferenceObjects;
+    // key to version of every ghost, per bucket name, loaded on first use
+    private final Map<String,GhostVersionIndex> mVersionIndexes = new HashMap<String,GhostVersionIndex>();
+    // ghost versions written while a bucket's index loads, null for deletes
+    private final Map<String,Map<String,Integer>> mLoadingWrites = new HashMap<String,Map<String,Integer>>();
+    // saved change version per bucket name, null when the bucket has none
+    private final Map<String,String> mChangeVersions = new HashMap<String,String>();
+    // change versions set during a batch, saved when it ends
+    private final Map<String,String> mPendingChangeVersions = new HashMap<String,String>();
+    private final Set<String> mBatchBuckets = new HashSet<String>();
 
     public GhostStore(SQLiteDatabase database) {
+        this(database, false);
+    }
+
+    /**
+     * With referenceObjects ghosts are stored as references to, or diffs
+     * against, the PersistentStore's object rows in the same database
+     */
+    public GhostStore(SQLiteDatabase database, boolean referenceObjects) {
         this.database = database;
+        mReferenceObjects = referenceObjects;
         prepare();
     }
 
     private void prepare() {
         database.execSQL(CREATE_TABLE_GHOSTS);
         database.execSQL(CREATE_TABLE_CHANGE_VERSIONS);
+        database.execSQL(CREATE_TABLE_INDEX_MARKS);
         database.execSQL(String.format("CREATE UNIQUE INDEX IF NOT EXISTS ghost_version ON ghosts (bucketName, simperiumKey, version)"));
+        if (!hasBaseColumn()) {
+            database.execSQL("ALTER TABLE ghosts ADD COLUMN base TEXT");
+        }
+        if (mReferenceObjects) {
+            prepareObjectReferences();
+        }
         database.setVersion(VERSION);
     }
 
+    private boolean hasBaseColumn() {
+        Cursor cursor = database.rawQuery("PRAGMA table_info(ghosts)", null);
+        try {
+            int nameColumn = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (BASE_FIELD.equals(cursor.getString(nameColumn))) return true;
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Triggers that keep referencing ghosts valid as object rows change. The
+     * old row becomes the ghost's base before it is replaced, updated or
+     * deleted, and a ghost whose full payload matches a newly written row
+     * turns into a reference. They stay in the database so ghosts written in
+     * this mode can always be read.
+     */
+    private void prepareObjectReferences() {
+        String objects = PersistentStore.OBJECTS_TABLE;
+        database.execSQL(String.format("CREATE TABLE IF NOT EXISTS %s (bucket, key, data)", objects));
+        database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS ghost_base_insert BEFORE INSERT ON %s BEGIN " +
+            "UPDATE ghosts SET base = (SELECT data FROM %s WHERE bucket = NEW.bucket AND key = NEW.key) " +
+            "WHERE bucketName = NEW.bucket AND simperiumKey = NEW.key AND %s; END",
+            objects, objects, REFERENCE_PAYLOAD_CONDITION));
+        database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS ghost_base_update BEFORE UPDATE OF data ON %s BEGIN " +
+            "UPDATE ghosts SET base = OLD.data WHERE bucketName = OLD.bucket AND simperiumKey = OLD.key AND %s; END",
+            objects, REFERENCE_PAYLOAD_CONDITION));
+        database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS ghost_base_delete BEFORE DELETE ON %s BEGIN " +
+            "UPDATE ghosts SET base = OLD.data WHERE bucketName = OLD.bucket AND simperiumKey = OLD.key AND %s; END",
+            objects, REFERENCE_PAYLOAD_CONDITION));
+        database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS ghost_reference AFTER INSERT ON %s BEGIN " +
+            "UPDATE ghosts SET payload = '%s', base = NULL WHERE bucketName = NEW.bucket AND simperiumKey = NEW.key " +
+            "AND (payload = NEW.data OR (payload = '%s' AND base = NEW.data)); END",
+            objects, REFERENCE_PAYLOAD, REFERENCE_PAYLOAD));
+    }
+
     protected void reset() {
         database.delete(GHOSTS_TABLE_NAME, null, null);
         database.delete(VERSIONS_TABLE_NAME, null, null);
+        database.delete(INDEX_MARKS_TABLE_NAME, null, null);
+        synchronized(mVersionIndexes) {
+            mVersionIndexes.clear();
+            mLoadingWrites.clear();
+        }
+        synchronized(mChangeVersions) {
+            mChangeVersions.clear();
+            mPendingChangeVersions.clear();
+        }
     }
 
     @Override
@@ -51,59 +151,155 @@ public class GhostStore implements GhostStorageProvider {
         String where = "bucketName=?";
         database.delete(GHOSTS_TABLE_NAME, where, args);
         database.delete(VERSIONS_TABLE_NAME, where, args);
+        database.delete(INDEX_MARKS_TABLE_NAME, where, args);
+        synchronized(mVersionIndexes) {
+            mVersionIndexes.put(bucket.getName(), new GhostVersionIndex());
+            mLoadingWrites.remove(bucket.getName());
+        }
+        synchronized(mChangeVersions) {
+            mChangeVersions.put(bucket.getName(), null);
+            mPendingChangeVersions.remove(bucket.getName());
+        }
     }
 
-    protected Cursor queryChangeVersion(Bucket bucket) {
-        String[] columns = { BUCKET_NAME_FIELD, CHANGE_VERSION_FIELD };
-        String[] args = { bucket.getName() };
+    /**
+     * Returns the bucket's change version, read from the database the first
+     * time and served from memory after that
+     */
+    @Override
+    public String getChangeVersion(Bucket bucket) {
+        String name = bucket.getName();
+        synchronized(mChangeVersions) {
+            if (mPendingChangeVersions.containsKey(name)) {
+                return mPendingChangeVersions.get(name);
+            }
+            if (mChangeVersions.containsKey(name)) {
+                return mChangeVersions.get(name);
+            }
+        }
+        // read without holding the lock, another thread may be in a transaction
+        String[] columns = { CHANGE_VERSION_FIELD };
+        String[] args = { name };
         Cursor cursor = database.query(VERSIONS_TABLE_NAME, columns, "bucketName=?", args, null, null, null);
-        int count = cursor.getCount();
-        return cursor;
+        String storedVersion = null;
+        try {
+            if (cursor.moveToFirst()) {
+                storedVersion = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized(mChangeVersions) {
+            // a version set while reading wins, a missing one is cached as null
+            if (!mChangeVersions.containsKey(name)) {
+                mChangeVersions.put(name, storedVersion);
+            }
+            if (mPendingChangeVersions.containsKey(name)) {
+                return mPendingChangeVersions.get(name);
+            }
+            return mChangeVersions.get(name);
+        }
     }
 
     @Override
     public boolean hasChangeVersion(Bucket bucket) {
-        Cursor cursor = queryChangeVersion(bucket);
-        int count = cursor.getCount();
-        cursor.close();
-        if (count > 0) {
-            return !getChangeVersion(bucket).equals("");
-        } else {
-            return false;
-        }
+        String storedVersion = getChangeVersion(bucket);
+        return storedVersion != null && !storedVersion.equals("");
     }
 
     @Override
     public boolean hasChangeVersion(Bucket bucket, String cv) {
-        // Logger.log(String.format("Do we have CV: %s", cv));
         String storedVersion = getChangeVersion(bucket);
         return storedVersion != null && storedVersion.equals(cv);
     }
 
     @Override
-    public String getChangeVersion(Bucket bucket) {
-        Cursor cursor = queryChangeVersion(bucket);
-        String storedVersion = null;
-        if (cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            storedVersion = cursor.getString(1);
+    public void setChangeVersion(Bucket bucket, String cv) {
+        synchronized(mChangeVersions) {
+            if (mBatchBuckets.contains(bucket.getName())) {
+                mPendingChangeVersions.put(bucket.getName(), cv);
+                return;
+            }
         }
-        cursor.close();
-        return storedVersion;
+        writeChangeVersion(bucket.getName(), cv);
     }
 
     @Override
-    public void setChangeVersion(Bucket bucket, String cv) {
+    public void beginChangeVersionBatch(Bucket bucket) {
+        synchronized(mChangeVersions) {
+            mBatchBuckets.add(bucket.getName());
+        }
+    }
+
+    @Override
+    public void endChangeVersionBatch(Bucket bucket, boolean successful) {
+        String name = bucket.getName();
+        boolean pending;
+        String cv;
+        synchronized(mChangeVersions) {
+            mBatchBuckets.remove(name);
+            pending = mPendingChangeVersions.containsKey(name);
+            cv = mPendingChangeVersions.remove(name);
+        }
+        if (successful && pending) {
+            writeChangeVersion(name, cv);
+        }
+        if (!successful) {
+            // ghost writes of the batch were rolled back with it
+            synchronized(mVersionIndexes) {
+                mVersionIndexes.remove(name);
+                mLoadingWrites.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Saves the change version with a single upsert, then caches it
+     */
+    private void writeChangeVersion(String bucketName, String cv) {
         ContentValues values = new ContentValues();
-        String where = "bucketName=?";
-        String[] args = { bucket.getName() };
+        values.put(BUCKET_NAME_FIELD, bucketName);
         values.put(CHANGE_VERSION_FIELD, cv);
+        database.insertWithOnConflict(VERSIONS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        synchronized(mChangeVersions) {
+            mChangeVersions.put(bucketName, cv);
+        }
+    }
+
+    @Override
+    public void setIndexMark(Bucket bucket, String cv, String mark) {
+        if (mark == null) {
+            String[] args = { bucket.getName() };
+            database.delete(INDEX_MARKS_TABLE_NAME, "bucketName=?", args);
+            return;
+        }
+        ContentValues values = new ContentValues();
         values.put(BUCKET_NAME_FIELD, bucket.getName());
-        if (hasChangeVersion(bucket)) {
-            database.update(VERSIONS_TABLE_NAME, values, where, args);
-        } else {
-            database.insert(VERSIONS_TABLE_NAME, null, values);
+        values.put(CHANGE_VERSION_FIELD, cv);
+        values.put(MARK_FIELD, mark);
+        database.insertWithOnConflict(INDEX_MARKS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public String getIndexMark(Bucket bucket) {
+        return queryIndexMark(bucket, MARK_FIELD);
+    }
+
+    @Override
+    public String getIndexChangeVersion(Bucket bucket) {
+        return queryIndexMark(bucket, CHANGE_VERSION_FIELD);
+    }
+
+    private String queryIndexMark(Bucket bucket, String field) {
+        String[] columns = { field };
+        String[] args = { bucket.getName() };
+        Cursor cursor = database.query(INDEX_MARKS_TABLE_NAME, columns, "bucketName=?", args, null, null, null);
+        String value = null;
+        if (cursor.moveToFirst()) {
+            value = cursor.getString(0);
         }
+        cursor.close();
+        return value;
     }
 
     @Override
@@ -114,24 +310,37 @@ public class GhostStore implements GhostStorageProvider {
         values.put(VERSION_FIELD, ghost.getVersion());
         values.put(OBJECT_KEY_FIELD, ghost.getSimperiumKey());
         String payload = serializeGhostData(ghost);
+        if (mReferenceObjects && payload != null) {
+            payload = referencePayload(bucket, ghost, payload);
+        }
         values.put(PAYLOAD_FIELD, payload);
 
         database.insertWithOnConflict(GHOSTS_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        indexVersion(bucket.getName(), ghost.getSimperiumKey(), ghost.getVersion());
     }
 
     @Override
     public Ghost getGhost(Bucket bucket, String key) throws GhostMissingException {
         // public Cursor query (String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy)
-        String[] columns = { BUCKET_NAME_FIELD, OBJECT_KEY_FIELD, VERSION_FIELD, PAYLOAD_FIELD };
+        String[] columns = { BUCKET_NAME_FIELD, OBJECT_KEY_FIELD, VERSION_FIELD, PAYLOAD_FIELD, BASE_FIELD };
         String where = "bucketName=? AND simperiumKey=?";
         String[] args = { bucket.getName(), key };
         Cursor cursor = database.query(GHOSTS_TABLE_NAME, columns, where, args, null, null, null);
         Ghost ghost = null;
-        if (cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            ghost = new Ghost(cursor.getString(1), cursor.getInt(2), deserializeGhostData(cursor.getString(3)));
+        try {
+            if (cursor.moveToFirst()) {
+                String payload = cursor.getString(3);
+                JSONObject data;
+                if (isReferencePayload(payload)) {
+                    data = dereferencePayload(bucket, key, payload, cursor.getString(4));
+                } else {
+                    data = deserializeGhostData(payload);
+                }
+                ghost = new Ghost(cursor.getString(1), cursor.getInt(2), data);
+            }
+        } finally {
+            cursor.close();
         }
-        cursor.close();
         if (ghost == null) {
             throw(new GhostMissingException(String.format("Ghost %s does not exist for bucket %s", bucket.getName(), key)));
         }
@@ -140,12 +349,17 @@ public class GhostStore implements GhostStorageProvider {
 
     @Override
     public boolean hasGhost(Bucket bucket, String key) {
-        try {
-            Ghost ghost = getGhost(bucket, key);
-        } catch (GhostMissingException e) {
-            return false;
+        return getGhostVersion(bucket, key) != null;
+    }
+
+    @Override
+    public Integer getGhostVersion(Bucket bucket, String key) {
+        GhostVersionIndex index = versionIndex(bucket.getName());
+        int version;
+        synchronized(mVersionIndexes) {
+            version = index.get(key);
         }
-        return true;
+        return version == GhostVersionIndex.NO_VERSION ? null : version;
     }
 
     @Override
@@ -153,6 +367,165 @@ public class GhostStore implements GhostStorageProvider {
         String where = "bucketName=? AND simperiumKey=?";
         String[] args = { bucket.getName(), key };
         database.delete(GHOSTS_TABLE_NAME, where, args);
+        indexVersion(bucket.getName(), key, null);
+    }
+
+    @Override
+    public void readVersions(Bucket bucket, VersionCallback callback) {
+        String[] columns = { ID_FIELD, OBJECT_KEY_FIELD, VERSION_FIELD };
+        String where = "bucketName=? AND id>?";
+        String limit = String.valueOf(VERSION_PAGE_SIZE);
+        long lastId = 0;
+        int count;
+        do {
+            // page by row id so every query only reads the rows it returns
+            String[] args = { bucket.getName(), String.valueOf(lastId) };
+            Cursor cursor = database.query(GHOSTS_TABLE_NAME, columns, where, args, null, null, ID_FIELD, limit);
+            count = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    callback.onVersion(cursor.getString(1), cursor.getInt(2));
+                    count ++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (count == VERSION_PAGE_SIZE);
+    }
+
+    /**
+     * Returns the bucket's version index, reading every key and version (but
+     * not the payloads) the first time. The read runs outside of any lock or
+     * transaction so it never holds up a thread writing a batch of ghosts,
+     * writes made while it runs are applied to it before it's kept. Read the
+     * returned index while holding mVersionIndexes.
+     */
+    private GhostVersionIndex versionIndex(String bucketName) {
+        Map<String,Integer> writes;
+        synchronized(mVersionIndexes) {
+            GhostVersionIndex index = mVersionIndexes.get(bucketName);
+            if (index != null) return index;
+            writes = mLoadingWrites.get(bucketName);
+            if (writes == null) {
+                writes = new HashMap<String,Integer>();
+                mLoadingWrites.put(bucketName, writes);
+            }
+        }
+
+        GhostVersionIndex loaded = readVersionIndex(bucketName);
+
+        synchronized(mVersionIndexes) {
+            GhostVersionIndex index = mVersionIndexes.get(bucketName);
+            if (index != null) return index;
+            for (Map.Entry<String,Integer> write : writes.entrySet()) {
+                if (write.getValue() == null) {
+                    loaded.remove(write.getKey());
+                } else {
+                    loaded.put(write.getKey(), write.getValue());
+                }
+            }
+            // a reset or rolled back batch while loading means the read may be stale
+            if (mLoadingWrites.get(bucketName) == writes) {
+                mLoadingWrites.remove(bucketName);
+                mVersionIndexes.put(bucketName, loaded);
+            }
+            return loaded;
+        }
+    }
+
+    private GhostVersionIndex readVersionIndex(String bucketName) {
+        String[] columns = { OBJECT_KEY_FIELD, VERSION_FIELD };
+        String[] args = { bucketName };
+        Cursor cursor = database.query(GHOSTS_TABLE_NAME, columns, "bucketName=?", args, null, null, null);
+        try {
+            GhostVersionIndex index = new GhostVersionIndex(cursor.getCount());
+            while (cursor.moveToNext()) {
+                index.put(cursor.getString(0), cursor.getInt(1));
+            }
+            return index;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Updates the loaded version index for a saved (or deleted when version is
+     * null) ghost, an index that isn't loaded yet will read the row when it is
+     */
+    private void indexVersion(String bucketName, String key, Integer version) {
+        synchronized(mVersionIndexes) {
+            GhostVersionIndex index = mVersionIndexes.get(bucketName);
+            if (index != null) {
+                if (version == null) {
+                    index.remove(key);
+                } else {
+                    index.put(key, version);
+                }
+                return;
+            }
+            Map<String,Integer> writes = mLoadingWrites.get(bucketName);
+            if (writes != null) {
+                writes.put(key, version);
+            }
+        }
+    }
+
+    /**
+     * The payload to store for the ghost: a reference when it equals its
+     * object row, a diff against the row when that is shorter, otherwise the
+     * full payload
+     */
+    private String referencePayload(Bucket bucket, Ghost ghost, String payload) {
+        String objectData = queryObjectData(bucket, ghost.getSimperiumKey());
+        if (objectData == null) return payload;
+        if (objectData.equals(payload)) return REFERENCE_PAYLOAD;
+        try {
+            JSONObject diff = JSONDiff.diff(new JSONObject(objectData), ghost.getDiffableValue());
+            if (diff.length() == 0) return REFERENCE_PAYLOAD;
+            String encoded = DIFF_PAYLOAD_PREFIX + diff.toString();
+            return encoded.length() < payload.length() ? encoded : payload;
+        } catch (JSONException e) {
+            return payload;
+        }
+    }
+
+    private static boolean isReferencePayload(String payload) {
+        return payload != null && (payload.equals(REFERENCE_PAYLOAD) || payload.startsWith(DIFF_PAYLOAD_PREFIX));
+    }
+
+    /**
+     * Rebuilds a referencing ghost from its base, or the object row when the
+     * row hasn't changed since the ghost was saved
+     */
+    private JSONObject dereferencePayload(Bucket bucket, String key, String payload, String base)
+    throws GhostMissingException {
+        if (base == null) {
+            base = queryObjectData(bucket, key);
+        }
+        if (base == null) {
+            throw(new GhostMissingException(String.format("Object row for ghost %s in bucket %s is missing", key, bucket.getName())));
+        }
+        if (payload.equals(REFERENCE_PAYLOAD)) {
+            return deserializeGhostData(base);
+        }
+        try {
+            JSONObject diff = new JSONObject(payload.substring(DIFF_PAYLOAD_PREFIX.length()));
+            return (JSONObject) JSONDiff.apply(new JSONObject(base), diff);
+        } catch (JSONException e) {
+            throw(new GhostMissingException(String.format("Ghost %s for bucket %s could not be rebuilt", key, bucket.getName()), e));
+        }
+    }
+
+    private String queryObjectData(Bucket bucket, String key) {
+        String[] columns = { "data" };
+        String[] args = { bucket.getName(), key };
+        Cursor cursor = database.query(PersistentStore.OBJECTS_TABLE, columns, "bucket=? AND key=?", args, null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
     }
 
     private String serializeGhostData(Ghost ghost) {
@@ -0,0 +1,176 @@
+package com.simperium.android;
+
+/**
+ * Maps the simperium keys of a bucket's ghosts to their versions. Keys and
+ * versions are kept in parallel arrays (open addressing, linear probing) so
+ * there is no entry object or boxed Integer per ghost. A Bloom filter in
+ * front of the table answers most lookups for keys that don't exist, like the
+ * ones made by Bucket.uuid(), without probing. Not thread safe.
+ */
+final class GhostVersionIndex {
+
+    public static final int NO_VERSION = -1;
+
+    private static final int MIN_CAPACITY = 64;
+    private static final int BLOOM_HASHES = 3;
+    // placeholder for removed keys so probe chains stay intact
+    private static final String REMOVED = new String("removed");
+
+    private String[] mKeys;
+    private int[] mVersions;
+    private long[] mBloom;
+    private int mBloomBits;
+    private int mSize = 0;
+    // used slots, including removed ones
+    private int mUsed = 0;
+    // keys removed since the filter was built, their bits are still set
+    private int mBloomRemoved = 0;
+
+    GhostVersionIndex(){
+        this(0);
+    }
+
+    GhostVersionIndex(int expectedSize){
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Returns the version stored for key or NO_VERSION
+     */
+    public int get(String key){
+        if (!mightContain(key)) return NO_VERSION;
+        int slot = find(key);
+        return slot < 0 ? NO_VERSION : mVersions[slot];
+    }
+
+    public boolean contains(String key){
+        return get(key) != NO_VERSION;
+    }
+
+    /**
+     * False means the key is definitely not in the index
+     */
+    public boolean mightContain(String key){
+        int h1 = key.hashCode();
+        int h2 = secondaryHash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % mBloomBits;
+            if ((mBloom[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public void put(String key, int version){
+        int slot = find(key);
+        if (slot >= 0) {
+            mVersions[slot] = version;
+            return;
+        }
+        if ((mUsed + 1) * 4 > mKeys.length * 3) {
+            // grow when live keys fill half of the table, otherwise just clear removed slots
+            rehash(mSize * 2 >= mKeys.length ? mKeys.length * 2 : mKeys.length);
+        }
+        insert(key, version);
+        mSize ++;
+    }
+
+    public void remove(String key){
+        int slot = find(key);
+        if (slot < 0) return;
+        mKeys[slot] = REMOVED;
+        mVersions[slot] = NO_VERSION;
+        mSize --;
+        mBloomRemoved ++;
+        // too many stale bits make the filter useless, rebuild it
+        if (mBloomRemoved > MIN_CAPACITY && mBloomRemoved > mSize) {
+            rehash(mKeys.length);
+        }
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+    public void clear(){
+        allocate(MIN_CAPACITY);
+        mSize = 0;
+    }
+
+    private int find(String key){
+        int mask = mKeys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        String existing;
+        while ((existing = mKeys[slot]) != null) {
+            if (existing != REMOVED && existing.equals(key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(String key, int version){
+        int mask = mKeys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        while (mKeys[slot] != null && mKeys[slot] != REMOVED) {
+            slot = (slot + 1) & mask;
+        }
+        if (mKeys[slot] == null) mUsed ++;
+        mKeys[slot] = key;
+        mVersions[slot] = version;
+        addToBloom(key);
+    }
+
+    private void rehash(int capacity){
+        String[] keys = mKeys;
+        int[] versions = mVersions;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && keys[i] != REMOVED) {
+                insert(keys[i], versions[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity){
+        mKeys = new String[capacity];
+        mVersions = new int[capacity];
+        // about 8 bits per slot, at most half the slots hold keys
+        mBloomBits = capacity * 8;
+        mBloom = new long[mBloomBits / 64];
+        mUsed = 0;
+        mBloomRemoved = 0;
+    }
+
+    private void addToBloom(String key){
+        int h1 = key.hashCode();
+        int h2 = secondaryHash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % mBloomBits;
+            mBloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static int capacityFor(int size){
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int spread(int hash){
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * FNV-1a, independent of String.hashCode() for the double hashing
+     */
+    private static int secondaryHash(String key){
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+
+}
@@ -5,31 +5,280 @@ import android.util.LruCache;
 import com.simperium.client.ObjectCacheProvider;
 import com.simperium.client.Syncable;
 
-public class LruCacheProvider implements ObjectCacheProvider {
+import org.json.JSONArray;
+import org.json.JSONObject;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Builds an LRU object cache for each bucket. Caches are bounded either by
+ * entry count or by the estimated size of each object's JSON and can keep
+ * evicted objects in a soft reference tier until the VM needs the memory.
+ *
+ *    LruCacheProvider caches = new LruCacheProvider();
+ *    caches.configureBucket("notes", LruCacheProvider.Config.bytes(2 * 1024 * 1024).softReferences(true));
+ */
+public class LruCacheProvider implements ObjectCacheProvider.BucketCacheProvider {
+
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Bounds for a bucket's cache
+     */
+    public static class Config {
+
+        final int maxSize;
+        final boolean weighByBytes;
+        final boolean softReferences;
+
+        private Config(int maxSize, boolean weighByBytes, boolean softReferences){
+            this.maxSize = maxSize;
+            this.weighByBytes = weighByBytes;
+            this.softReferences = softReferences;
+        }
+
+        /**
+         * Holds at most maxEntries objects
+         */
+        public static Config entries(int maxEntries){
+            return new Config(maxEntries, false, false);
+        }
+
+        /**
+         * Holds objects until their estimated size exceeds maxBytes
+         */
+        public static Config bytes(int maxBytes){
+            return new Config(maxBytes, true, false);
+        }
+
+        /**
+         * Keep evicted objects reachable through soft references
+         */
+        public Config softReferences(boolean enabled){
+            return new Config(maxSize, weighByBytes, enabled);
+        }
+
+    }
+
+    private Config mDefaultConfig;
+    private Map<String,Config> mBucketConfigs = Collections.synchronizedMap(new HashMap<String,Config>());
+    private Map<String,LruObjectCache<?>> mCaches = Collections.synchronizedMap(new HashMap<String,LruObjectCache<?>>());
+
+    /**
+     * Caches hold DEFAULT_MAX_ENTRIES objects unless configured otherwise
+     */
+    public LruCacheProvider(){
+        this(Config.entries(DEFAULT_MAX_ENTRIES));
+    }
+
+    public LruCacheProvider(Config defaultConfig){
+        mDefaultConfig = defaultConfig;
+    }
+
+    /**
+     * Set the bounds used for the named bucket's cache, must be called before
+     * the bucket is created
+     */
+    public void configureBucket(String bucketName, Config config){
+        mBucketConfigs.put(bucketName, config);
+    }
+
+    /**
+     * The cache built for the named bucket, used to read its statistics
+     */
+    public LruObjectCache<?> getCache(String bucketName){
+        return mCaches.get(bucketName);
+    }
+
+    @Override
     public <T extends Syncable> LruObjectCache<T> buildCache(){
-        return new LruObjectCache<T>();
+        return new LruObjectCache<T>(mDefaultConfig);
+    }
+
+    @Override
+    public <T extends Syncable> LruObjectCache<T> buildCache(String bucketName){
+        Config config = mBucketConfigs.get(bucketName);
+        LruObjectCache<T> cache = new LruObjectCache<T>(config == null ? mDefaultConfig : config);
+        mCaches.put(bucketName, cache);
+        return cache;
     }
 
-    private class LruObjectCache<T extends Syncable> implements ObjectCache<T> {
+    public static class LruObjectCache<T extends Syncable> implements ObjectCache<T> {
+
+        final private Config mConfig;
+        final private LruCache<String, Entry<T>> mCache;
+        final private Map<String, SoftEntry<T>> mSoftCache = new HashMap<String, SoftEntry<T>>();
+        final private ReferenceQueue<T> mSoftQueue = new ReferenceQueue<T>();
+
+        private int mHitCount = 0, mSoftHitCount = 0, mMissCount = 0, mEvictionCount = 0;
+
+        LruObjectCache(Config config){
+            mConfig = config;
+            mCache = new LruCache<String, Entry<T>>(config.maxSize) {
+
+                @Override
+                protected int sizeOf(String key, Entry<T> entry){
+                    return entry.weight;
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Entry<T> oldEntry, Entry<T> newEntry){
+                    if (!evicted) return;
+                    mEvictionCount ++;
+                    if (mConfig.softReferences) {
+                        mSoftCache.put(key, new SoftEntry<T>(key, oldEntry.object, mSoftQueue));
+                    }
+                }
+
+            };
+        }
 
-        private static final int MAX_ENTRIES=32;
+        @Override
+        synchronized public T get(String key){
+            Entry<T> entry = mCache.get(key);
+            if (entry != null) {
+                mHitCount ++;
+                return entry.object;
+            }
 
-        LruCache<String, T> mCache = new LruCache<String, T>(MAX_ENTRIES);
+            purgeSoftEntries();
+            SoftEntry<T> softEntry = mSoftCache.remove(key);
+            T object = softEntry == null ? null : softEntry.get();
+            if (object != null) {
+                // promote back into the LRU tier
+                mSoftHitCount ++;
+                mCache.put(key, new Entry<T>(object, weigh(object)));
+                return object;
+            }
 
-        public T get(String key){
-            return mCache.get(key);
+            mMissCount ++;
+            return null;
         }
 
-        public void put(String key, T object){
-            mCache.put(key, object);
+        @Override
+        synchronized public void put(String key, T object){
+            mSoftCache.remove(key);
+            mCache.put(key, new Entry<T>(object, weigh(object)));
         }
 
-        public void remove(String key){
+        @Override
+        synchronized public void remove(String key){
+            mSoftCache.remove(key);
             mCache.remove(key);
         }
 
+        synchronized public int hitCount(){
+            return mHitCount;
+        }
+
+        /**
+         * Hits served from the soft reference tier
+         */
+        synchronized public int softHitCount(){
+            return mSoftHitCount;
+        }
+
+        synchronized public int missCount(){
+            return mMissCount;
+        }
+
+        synchronized public int evictionCount(){
+            return mEvictionCount;
+        }
+
+        /**
+         * Current size in entries or estimated bytes depending on the config
+         */
+        synchronized public int size(){
+            return mCache.size();
+        }
+
+        public int maxSize(){
+            return mConfig.maxSize;
+        }
+
+        private int weigh(T object){
+            if (!mConfig.weighByBytes) return 1;
+            // objects larger than the whole cache are still cached on their own
+            return Math.max(1, Math.min(mConfig.maxSize, estimateSize(object.getDiffableValue())));
+        }
+
+        private void purgeSoftEntries(){
+            Reference<? extends T> reference;
+            while ((reference = mSoftQueue.poll()) != null) {
+                SoftEntry<?> entry = (SoftEntry<?>) reference;
+                // only remove the map entry if it hasn't been replaced
+                if (mSoftCache.get(entry.key) == entry) {
+                    mSoftCache.remove(entry.key);
+                }
+            }
+        }
+
     }
 
-}
+    private static class Entry<T> {
 
+        final T object;
+        final int weight;
+
+        Entry(T object, int weight){
+            this.object = object;
+            this.weight = weight;
+        }
+
+    }
+
+    private static class SoftEntry<T> extends SoftReference<T> {
+
+        final String key;
+
+        SoftEntry(String key, T object, ReferenceQueue<T> queue){
+            super(object, queue);
+            this.key = key;
+        }
+
+    }
+
+    // rough per value heap costs in bytes
+    static final int OBJECT_OVERHEAD = 48;
+    static final int ENTRY_OVERHEAD = 32;
+    static final int STRING_OVERHEAD = 40;
+    static final int VALUE_SIZE = 16;
+
+    /**
+     * Estimates the heap used by a JSON value without serializing it
+     */
+    public static int estimateSize(Object value){
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            int size = OBJECT_OVERHEAD;
+            Iterator<?> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next().toString();
+                size += ENTRY_OVERHEAD + STRING_OVERHEAD + key.length() * 2;
+                size += estimateSize(object.opt(key));
+            }
+            return size;
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            int length = array.length();
+            int size = OBJECT_OVERHEAD + length * 4;
+            for (int i = 0; i < length; i++) {
+                size += estimateSize(array.opt(i));
+            }
+            return size;
+        } else if (value instanceof String) {
+            return STRING_OVERHEAD + ((String) value).length() * 2;
+        } else {
+            return VALUE_SIZE;
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.simperium.client.Bucket;
 import com.simperium.client.BucketObjectMissingException;
@@ -16,20 +17,38 @@ import com.simperium.client.Syncable;
 import com.simperium.storage.StorageProvider;
 import com.simperium.util.Logger;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class PersistentStore implements StorageProvider {
     public static final String TAG="Simperium.Store";
     public static final String OBJECTS_TABLE="objects";
     public static final String INDEXES_TABLE="indexes";
     public static final String REINDEX_QUEUE_TABLE="reindex_queue";
+    public static final String INDEX_FINGERPRINTS_TABLE="index_fingerprints";
+    // objects reindexed per transaction
+    public static final int REINDEX_BATCH_SIZE=500;
+    // upper bound on reindex worker threads, one per core below it
+    public static final int REINDEX_MAX_THREADS=4;
+    // query shapes whose SQL is kept per bucket
+    public static final int COMPILED_QUERY_CACHE_SIZE=32;
 
     private SQLiteDatabase database;
 
@@ -47,26 +66,112 @@ public class PersistentStore implements StorageProvider {
         return new DataStore<T>(bucketName, schema);
     }
 
-    protected class DataStore<T extends Syncable> implements BucketStore<T> {
+    protected class DataStore<T extends Syncable> implements TransactionalBucketStore<T> {
 
         protected BucketSchema<T> schema;
         protected String bucketName;
         private Reindexer mReindexer;
 
+        // compiled statements are shared by every thread writing to this store so
+        // they may only be used while holding mStatementLock inside a transaction
+        private final Object mStatementLock = new Object();
+        private SQLiteStatement mUpsertStatement;
+        private SQLiteStatement mInsertIndexStatement;
+        private SQLiteStatement mDeleteIndexStatement;
+        private SQLiteStatement mUpsertMaterializedStatement;
+        // materialized index names in column order
+        private final String[] mMaterializedNames;
+        // queries use the materialized table once every object has a row in it
+        private volatile boolean mMaterializedReady = false;
+        // compiled SQL by query shape, least recently used first
+        private final Map<String,CompiledQuery> mCompiledQueries = new LinkedHashMap<String,CompiledQuery>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CompiledQuery> eldest){
+                return size() > COMPILED_QUERY_CACHE_SIZE;
+            }
+        };
+
         DataStore(String bucketName, BucketSchema<T> schema){
             this.schema = schema;
             this.bucketName = bucketName;
+            mMaterializedNames = schema.getMaterializedIndexes().clone();
         }
 
         public void reindex(final Bucket<T> bucket){
             mReindexer = new Reindexer(bucket);
-            mReindexer.start();
+            mReindexer.start(true);
         }
 
+        /**
+         * Reindexes only when the schema's indexers changed since the indexes
+         * were built or an earlier reindex didn't finish
+         */
         @Override
         public void prepare(Bucket<T> bucket){
-            setupFullText();
-            reindex(bucket);
+            boolean rebuilt = setupFullText();
+            rebuilt = setupMaterializedIndexes() || rebuilt;
+            String fingerprint = schema.getIndexFingerprint();
+            if (rebuilt || !fingerprint.equals(getIndexFingerprint())) {
+                Logger.log(TAG, String.format("Index fingerprint changed, reindexing %s", bucketName));
+                reindex(bucket);
+            } else if (hasQueuedReindex()) {
+                Logger.log(TAG, String.format("Resuming reindex of %s", bucketName));
+                mReindexer = new Reindexer(bucket);
+                mReindexer.start(false);
+            } else {
+                mMaterializedReady = mMaterializedNames.length > 0;
+            }
+        }
+
+        CompiledQuery getCompiledQuery(String shape){
+            synchronized(mCompiledQueries) {
+                return mCompiledQueries.get(shape);
+            }
+        }
+
+        void putCompiledQuery(String shape, CompiledQuery compiled){
+            synchronized(mCompiledQueries) {
+                mCompiledQueries.put(shape, compiled);
+            }
+        }
+
+        boolean isMaterializedReady(){
+            return mMaterializedReady;
+        }
+
+        /**
+         * True when queries can read the materialized index columns
+         */
+        boolean isMaterialized(String name){
+            if (!mMaterializedReady || name == null) return false;
+            for (String materialized : mMaterializedNames) {
+                if (materialized.equals(name)) return true;
+            }
+            return false;
+        }
+
+        private String getIndexFingerprint(){
+            Cursor cursor = database.query(INDEX_FINGERPRINTS_TABLE, new String[]{ "fingerprint" },
+                "bucket=?", new String[]{ bucketName }, null, null, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private void setIndexFingerprint(String fingerprint){
+            database.execSQL(String.format(Locale.US, "INSERT OR REPLACE INTO %s (bucket, fingerprint) VALUES (?, ?)", INDEX_FINGERPRINTS_TABLE),
+                new Object[]{ bucketName, fingerprint });
+        }
+
+        private boolean hasQueuedReindex(){
+            Cursor cursor = database.query(REINDEX_QUEUE_TABLE, new String[]{ "key" }, "bucket=?", new String[]{ bucketName }, null, null, null, "1");
+            try {
+                return cursor.getCount() > 0;
+            } finally {
+                cursor.close();
+            }
         }
 
         /**
@@ -75,18 +180,40 @@ public class PersistentStore implements StorageProvider {
         @Override
         public void save(T object, List<Index> indexes){
             String key = object.getSimperiumKey();
-            mReindexer.skip(key);
-            ContentValues values = new ContentValues();
-            values.put("bucket", bucketName);
-            values.put("key", key);
-            values.put("data", object.getDiffableValue().toString());
-            Cursor cursor = queryObject(bucketName, key);
-            if (cursor.getCount() == 0) {
-                database.insert(OBJECTS_TABLE, null, values);
-            } else {
-                database.update(OBJECTS_TABLE, values, "bucket=? AND key=?", new String[]{bucketName, key});
+            // a transaction must be held before the statement lock, see mStatementLock
+            database.beginTransaction();
+            try {
+                if (mReindexer != null) mReindexer.skip(key);
+                synchronized(mStatementLock) {
+                    // keeps the existing rowid so cursor _id values stay stable
+                    SQLiteStatement upsert = getUpsertStatement();
+                    upsert.bindString(1, bucketName);
+                    upsert.bindString(2, key);
+                    upsert.bindString(3, bucketName);
+                    upsert.bindString(4, key);
+                    upsert.bindString(5, object.getDiffableValue().toString());
+                    upsert.executeInsert();
+                }
+                index(object, indexes);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
             }
-            index(object, indexes);
+        }
+
+        @Override
+        public void beginTransaction(){
+            database.beginTransaction();
+        }
+
+        @Override
+        public void setTransactionSuccessful(){
+            database.setTransactionSuccessful();
+        }
+
+        @Override
+        public void endTransaction(){
+            database.endTransaction();
         }
 
         /**
@@ -95,7 +222,7 @@ public class PersistentStore implements StorageProvider {
         @Override
         public void delete(T object){
             String key = object.getSimperiumKey();
-            mReindexer.skip(key);
+            if (mReindexer != null) mReindexer.skip(key);
             database.delete(OBJECTS_TABLE, "bucket=? AND key=?", new String[]{bucketName, key});
             deleteIndexes(object);
         }
@@ -163,43 +290,33 @@ public class PersistentStore implements StorageProvider {
         }
         
         protected void index(T object, List<Index> indexValues){
-            // delete all current idexes
-            deleteIndexes(object);
-            Iterator<Index> indexes = indexValues.iterator();
-            while(indexes.hasNext()){
-                Index index = indexes.next();
-                ContentValues values = new ContentValues(4);
-                values.put("bucket", bucketName);
-                values.put("key", object.getSimperiumKey());
-                values.put("name", index.getName());
-                String key = "value";
-                // figure out the type of value
-                Object value = index.getValue();
-                if (value instanceof Byte) {
-                    values.put(key, (Byte) value);
-                } else if(value instanceof Integer){
-                    values.put(key, (Integer) value);
-                } else if(value instanceof Float){
-                    values.put(key, (Float) value);
-                } else if(value instanceof Short){
-                    values.put(key, (Short) value);
-                } else if(value instanceof String){
-                    values.put(key, (String) value);
-                } else if(value instanceof Double){
-                    values.put(key, (Double) value);
-                } else if(value instanceof Long){
-                    values.put(key, (Long) value);
-                } else if(value instanceof Boolean){
-                    values.put(key, (Boolean) value);
-                } else if(value != null) {
-                    values.put(key, value.toString());
-                }
-                database.insertOrThrow(INDEXES_TABLE, key, values);
+            Map<String,String> fullTextValues = null;
+            if (schema.hasFullTextIndex()) {
+                fullTextValues = schema.getFullTextIndex().index(object);
+            }
+            database.beginTransaction();
+            try {
+                writeIndexes(object.getSimperiumKey(), indexValues, fullTextValues);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        /**
+         * Store the index and full text values for the key, caller must be in
+         * a transaction
+         */
+        private void writeIndexes(String key, List<Index> indexValues, Map<String,String> fullTextValues){
+            synchronized(mStatementLock) {
+                updateIndexes(key, indexValues);
+                if (mMaterializedNames.length > 0) {
+                    updateMaterializedIndexes(key, indexValues);
+                }
             }
 
             // If we have a fulltext index, let's add a record
-            if (schema.hasFullTextIndex()) {
-                Map<String,String> fullTextValues = schema.getFullTextIndex().index(object);
+            if (fullTextValues != null) {
                 ContentValues fullTextIndexes = new ContentValues(fullTextValues.size());
 
                 for(Map.Entry<String,String> entry : fullTextValues.entrySet()) {
@@ -207,17 +324,128 @@ public class PersistentStore implements StorageProvider {
                 }
 
                 String ftTableName = getFullTextTableName();
-                database.delete(ftTableName, "key=?", new String[]{ object.getSimperiumKey() });
+                database.delete(ftTableName, "key=?", new String[]{ key });
                 if (fullTextIndexes.size() > 0) {
-                    fullTextIndexes.put("key", object.getSimperiumKey());
+                    fullTextIndexes.put("key", key);
                     database.insertOrThrow(ftTableName, null, fullTextIndexes);
                 }
+            }
+        }
 
+        /**
+         * Compares the stored index rows for the key with the new index values and
+         * only deletes and inserts the (name, value) pairs that changed.
+         */
+        private void updateIndexes(String key, List<Index> indexValues){
+            // stored rows by identity, whatever is left after matching is stale
+            Map<String,List<Long>> stored = new HashMap<String,List<Long>>();
+            Cursor rows = database.rawQuery("SELECT rowid, name, typeof(value), value FROM indexes WHERE bucket=? AND key=?",
+                new String[]{ bucketName, key });
+            try {
+                while (rows.moveToNext()) {
+                    String identity = indexIdentity(rows.getString(1), rows.getString(2), rows.getString(3));
+                    List<Long> rowIds = stored.get(identity);
+                    if (rowIds == null) {
+                        rowIds = new ArrayList<Long>(1);
+                        stored.put(identity, rowIds);
+                    }
+                    rowIds.add(rows.getLong(0));
+                }
+            } finally {
+                rows.close();
             }
+
+            SQLiteStatement insert = null;
+            for (Index index : indexValues) {
+                List<Long> rowIds = stored.get(indexIdentity(index));
+                if (rowIds != null && !rowIds.isEmpty()) {
+                    // unchanged, leave the row alone
+                    rowIds.remove(rowIds.size() - 1);
+                    continue;
+                }
+                if (insert == null) insert = getInsertIndexStatement();
+                insert.clearBindings();
+                insert.bindString(1, bucketName);
+                insert.bindString(2, key);
+                insert.bindString(3, index.getName());
+                bindIndexValue(insert, 4, index.getValue());
+                insert.executeInsert();
+            }
+
+            SQLiteStatement delete = null;
+            for (List<Long> rowIds : stored.values()) {
+                for (Long rowId : rowIds) {
+                    if (delete == null) delete = getDeleteIndexStatement();
+                    delete.bindLong(1, rowId);
+                    delete.execute();
+                }
+            }
+        }
+
+        /**
+         * Replace the key's row in the materialized table, the first value of
+         * each materialized name is stored and missing names are null
+         */
+        private void updateMaterializedIndexes(String key, List<Index> indexValues){
+            SQLiteStatement upsert = getUpsertMaterializedStatement();
+            upsert.clearBindings();
+            upsert.bindString(1, key);
+            boolean[] bound = new boolean[mMaterializedNames.length];
+            for (Index index : indexValues) {
+                for (int i = 0; i < mMaterializedNames.length; i++) {
+                    if (!bound[i] && mMaterializedNames[i].equals(index.getName())) {
+                        bindIndexValue(upsert, i + 2, index.getValue());
+                        bound[i] = true;
+                    }
+                }
+            }
+            upsert.executeInsert();
+        }
+
+        private SQLiteStatement getUpsertMaterializedStatement(){
+            if (mUpsertMaterializedStatement == null) {
+                StringBuilder columns = new StringBuilder("`key`");
+                StringBuilder values = new StringBuilder("?");
+                for (String name : mMaterializedNames) {
+                    columns.append(", ").append(materializedColumn(name));
+                    values.append(", ?");
+                }
+                mUpsertMaterializedStatement = database.compileStatement(String.format(Locale.US,
+                    "INSERT OR REPLACE INTO `%s` (%s) VALUES (%s)", getMaterializedTableName(), columns, values));
+            }
+            return mUpsertMaterializedStatement;
+        }
+
+        private SQLiteStatement getUpsertStatement(){
+            if (mUpsertStatement == null) {
+                mUpsertStatement = database.compileStatement(String.format(Locale.US,
+                    "INSERT OR REPLACE INTO %s (rowid, bucket, key, data) VALUES ((SELECT rowid FROM %s WHERE bucket=? AND key=?), ?, ?, ?)",
+                    OBJECTS_TABLE, OBJECTS_TABLE));
+            }
+            return mUpsertStatement;
+        }
+
+        private SQLiteStatement getInsertIndexStatement(){
+            if (mInsertIndexStatement == null) {
+                mInsertIndexStatement = database.compileStatement(String.format(Locale.US,
+                    "INSERT INTO %s (bucket, key, name, value) VALUES (?, ?, ?, ?)", INDEXES_TABLE));
+            }
+            return mInsertIndexStatement;
+        }
+
+        private SQLiteStatement getDeleteIndexStatement(){
+            if (mDeleteIndexStatement == null) {
+                mDeleteIndexStatement = database.compileStatement(String.format(Locale.US,
+                    "DELETE FROM %s WHERE rowid=?", INDEXES_TABLE));
+            }
+            return mDeleteIndexStatement;
         }
 
         private void deleteIndexes(T object){
             database.delete(INDEXES_TABLE, "bucket=? AND key=?", new String[]{bucketName, object.getSimperiumKey()});
+            if (mMaterializedNames.length > 0) {
+                database.delete(getMaterializedTableName(), "key=?", new String[]{ object.getSimperiumKey() });
+            }
             if (schema.hasFullTextIndex()) {
                 String tableName = getFullTextTableName();
                 database.delete(tableName, "key=?", new String[]{ object.getSimperiumKey() });
@@ -226,9 +454,15 @@ public class PersistentStore implements StorageProvider {
 
         private void deleteAllIndexes(){
             database.delete(INDEXES_TABLE, "bucket=?", new String[]{bucketName});
+            if (mMaterializedNames.length > 0) {
+                database.delete(getMaterializedTableName(), null, null);
+            }
         }
 
-        private void setupFullText() {
+        /**
+         * Returns true if the full text table was (re)created and is empty
+         */
+        private boolean setupFullText() {
             if (schema.hasFullTextIndex()) {
                 boolean rebuild = false;
 
@@ -263,27 +497,106 @@ public class PersistentStore implements StorageProvider {
                     String query = String.format(Locale.US, "CREATE VIRTUAL TABLE `%s` USING fts3(%s)", tableName, fields.toString());
                     database.execSQL(query);
                 }
+                return rebuild;
+            }
+            return false;
+        }
+
+        /**
+         * Creates the materialized index table when it is missing or its
+         * columns don't match the schema. Returns true if it was (re)created.
+         * Columns have no type affinity so values keep the storage class they
+         * have in the indexes table and compare the same way.
+         */
+        private boolean setupMaterializedIndexes() {
+            String tableName = getMaterializedTableName();
+            if (mMaterializedNames.length == 0) {
+                database.execSQL(String.format(Locale.US, "DROP TABLE IF EXISTS `%s`", tableName));
+                return false;
+            }
+
+            List<String> expected = new ArrayList<String>(mMaterializedNames.length + 1);
+            expected.add("key");
+            for (String name : mMaterializedNames) {
+                expected.add(materializedColumnName(name));
+            }
+            List<String> existing = new ArrayList<String>();
+            Cursor tableInfo = tableInfo(tableName);
+            int nameColumn = tableInfo.getColumnIndex("name");
+            while (tableInfo.moveToNext()) {
+                existing.add(tableInfo.getString(nameColumn));
+            }
+            tableInfo.close();
+            if (existing.equals(expected)) return false;
+
+            database.execSQL(String.format(Locale.US, "DROP TABLE IF EXISTS `%s`", tableName));
+            StringBuilder columns = new StringBuilder("`key` PRIMARY KEY");
+            for (String name : mMaterializedNames) {
+                columns.append(", ").append(materializedColumn(name));
+            }
+            database.execSQL(String.format(Locale.US, "CREATE TABLE `%s` (%s)", tableName, columns));
+            for (int i = 0; i < mMaterializedNames.length; i++) {
+                database.execSQL(String.format(Locale.US, "CREATE INDEX `%s_%d` ON `%s` (%s)",
+                    tableName, i, tableName, materializedColumn(mMaterializedNames[i])));
             }
+            return true;
+        }
+
+        protected String getMaterializedTableName(){
+            return String.format(Locale.US, "%s_idx", bucketName);
         }
 
         protected String getFullTextTableName(){
             return String.format(Locale.US, "%s_ft", bucketName);
         }
 
+        /**
+         * Rows computed for one object by a reindex worker
+         */
+        private class IndexedObject {
+
+            final String key;
+            final List<Index> indexes;
+            final Map<String,String> fullText;
+
+            IndexedObject(String key, List<Index> indexes, Map<String,String> fullText){
+                this.key = key;
+                this.indexes = indexes;
+                this.fullText = fullText;
+            }
+
+        }
+
+        /**
+         * Reads queued objects a page at a time, computes their index and full
+         * text values on a pool of worker threads and writes each page in a
+         * single transaction from the reindex thread. Indexers must be safe to
+         * call from several threads at once.
+         */
         private class Reindexer implements Runnable {
 
             final private Thread mReindexThread;
             final private Bucket<T> mBucket;
+            private volatile boolean mRunning = false;
+            // keys saved or deleted while reindexing, their computed rows are stale
+            private final Set<String> mSkipped = Collections.synchronizedSet(new HashSet<String>());
 
             Reindexer(Bucket<T> bucket){
                 mBucket = bucket;
                 mReindexThread = new Thread(this, String.format("%s-reindexer", bucket.getName()));
-                mReindexThread.setPriority(Thread.MIN_PRIORITY);
             }
 
-            public void start(){
-                String query = String.format(Locale.US, "INSERT INTO reindex_queue SELECT bucket, key FROM objects WHERE bucket = '%s'", mBucket.getName());
-                database.execSQL(query);
+            /**
+             * Queue every object of the bucket when fill is true, otherwise
+             * continue with the keys already queued
+             */
+            public void start(boolean fill){
+                if (fill) {
+                    database.delete(REINDEX_QUEUE_TABLE, "bucket=?", new String[]{ mBucket.getName() });
+                    database.execSQL("INSERT INTO reindex_queue SELECT bucket, key FROM objects WHERE bucket = ?",
+                        new Object[]{ mBucket.getName() });
+                }
+                mRunning = true;
                 mReindexThread.start();
             }
 
@@ -292,47 +605,169 @@ public class PersistentStore implements StorageProvider {
             }
 
             public void skip(String key){
+                // saved objects are indexed with the current indexers
+                if (!mRunning) return;
+                mSkipped.add(key);
                 database.delete(REINDEX_QUEUE_TABLE, "bucket=? AND key=?", new String[]{ mBucket.getName(), key});
             }
 
             @Override
             public void run(){
                 String bucketName = mBucket.getName();
-                String[] fields = new String[]{ "key" };
-                String[] args = new String[]{ bucketName };
-                String conditions = "bucket=?";
-                String deleteConditions = "bucket=? AND key=?";
-                String limit = "1";
+                int threads = Math.max(1, Math.min(REINDEX_MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+                ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+
+                    int mCount = 0;
+
+                    @Override
+                    public Thread newThread(Runnable task){
+                        Thread thread = new Thread(task, String.format(Locale.US, "%s-reindexer-%d", mBucket.getName(), ++mCount));
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+                boolean complete = false;
                 try {
+                    long lastRowId = 0;
+                    List<Future<List<IndexedObject>>> writing = null;
+                    long writingRowId = 0;
                     while(true){
                         if (Thread.interrupted()) throw new InterruptedException();
 
-                        Cursor next = database.query(REINDEX_QUEUE_TABLE, fields, conditions, args, null, null, null, limit);
-                        if (next.getCount() == 0){
-                            next.close();
-                            break;
+                        // read the next page while the workers compute the previous one
+                        List<String[]> page = new ArrayList<String[]>(REINDEX_BATCH_SIZE);
+                        lastRowId = readPage(lastRowId, page);
+
+                        List<Future<List<IndexedObject>>> computing = null;
+                        if (!page.isEmpty()) {
+                            computing = new ArrayList<Future<List<IndexedObject>>>(threads);
+                            int chunk = (page.size() + threads - 1) / threads;
+                            for (int i = 0; i < page.size(); i += chunk) {
+                                computing.add(workers.submit(new IndexTask(mBucket, page.subList(i, Math.min(page.size(), i + chunk)))));
+                            }
+                        }
+
+                        if (writing != null) {
+                            writePage(writing, writingRowId);
+                            mBucket.notifyOnNetworkChangeListeners(Bucket.ChangeType.INDEX);
                         }
-                        next.moveToFirst();
-                        String key = next.getString(0);
-                        try {
-                            T object = mBucket.get(key);
-                            index(object, schema.indexesFor(object));
-                        } catch (BucketObjectMissingException e) {
-                            // object is gone
+
+                        if (computing == null) {
+                            complete = true;
+                            break;
                         }
-                        database.delete(REINDEX_QUEUE_TABLE, deleteConditions, new String[]{bucketName, key});
-                        Thread.currentThread().sleep(1);
+                        writing = computing;
+                        writingRowId = lastRowId;
                     }
                 } catch (InterruptedException e) {
                     Logger.log(TAG, String.format("Indexing interrupted %s", bucketName), e);
-                    database.delete(REINDEX_QUEUE_TABLE, conditions, args);
+                    database.delete(REINDEX_QUEUE_TABLE, "bucket=?", new String[]{ bucketName });
+                } catch (ExecutionException e) {
+                    Logger.log(TAG, String.format("Indexer failed %s", bucketName), e.getCause());
                 } catch (SQLException e) {
                     Logger.log(TAG, String.format("SQL Error %s", bucketName), e);
+                } finally {
+                    workers.shutdownNow();
+                }
+                mRunning = false;
+                mSkipped.clear();
+                if (complete) {
+                    setIndexFingerprint(schema.getIndexFingerprint());
+                    mMaterializedReady = mMaterializedNames.length > 0;
                 }
                 Logger.log(TAG, String.format("Done indexing %s", bucketName));
                 mBucket.notifyOnNetworkChangeListeners(Bucket.ChangeType.INDEX);
             }
 
+            /**
+             * Adds the key and data of queued objects after the rowid to the page,
+             * data is null when the object no longer exists. Returns the last rowid read.
+             */
+            private long readPage(long afterRowId, List<String[]> page){
+                Cursor cursor = database.rawQuery(String.format(Locale.US,
+                    "SELECT q.rowid, q.key, o.data FROM %s q LEFT JOIN %s o ON o.bucket = q.bucket AND o.key = q.key " +
+                    "WHERE q.bucket=? AND q.rowid>? ORDER BY q.rowid LIMIT %d", REINDEX_QUEUE_TABLE, OBJECTS_TABLE, REINDEX_BATCH_SIZE),
+                    new String[]{ mBucket.getName(), String.valueOf(afterRowId) });
+                long lastRowId = afterRowId;
+                try {
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        page.add(new String[]{ cursor.getString(1), cursor.getString(2) });
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return lastRowId;
+            }
+
+            /**
+             * Writes the computed rows in one transaction and removes the page
+             * from the queue
+             */
+            private void writePage(List<Future<List<IndexedObject>>> results, long lastRowId)
+            throws InterruptedException, ExecutionException {
+                List<List<IndexedObject>> computed = new ArrayList<List<IndexedObject>>(results.size());
+                for (Future<List<IndexedObject>> result : results) {
+                    computed.add(result.get());
+                }
+                database.beginTransaction();
+                try {
+                    for (List<IndexedObject> objects : computed) {
+                        for (IndexedObject object : objects) {
+                            // saves and deletes hold a transaction while skipping so
+                            // this check can't race with them
+                            if (mSkipped.contains(object.key)) continue;
+                            writeIndexes(object.key, object.indexes, object.fullText);
+                        }
+                    }
+                    database.delete(REINDEX_QUEUE_TABLE, "bucket=? AND rowid<=?",
+                        new String[]{ mBucket.getName(), String.valueOf(lastRowId) });
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+
+        }
+
+        /**
+         * Builds objects from their stored data and computes their index rows
+         */
+        private class IndexTask implements Callable<List<IndexedObject>> {
+
+            final private Bucket<T> mBucket;
+            final private List<String[]> mObjects;
+
+            IndexTask(Bucket<T> bucket, List<String[]> objects){
+                mBucket = bucket;
+                mObjects = objects;
+            }
+
+            @Override
+            public List<IndexedObject> call(){
+                List<IndexedObject> indexed = new ArrayList<IndexedObject>(mObjects.size());
+                for (String[] row : mObjects) {
+                    // object is gone
+                    if (row[1] == null) continue;
+                    JSONObject data;
+                    try {
+                        data = new JSONObject(row[1]);
+                    } catch (JSONException e) {
+                        data = new JSONObject();
+                    }
+                    T object = schema.buildWithDefaults(row[0], data);
+                    mBucket.attachStoredObject(object);
+                    Map<String,String> fullText = null;
+                    if (schema.hasFullTextIndex()) {
+                        fullText = schema.getFullTextIndex().index(object);
+                    }
+                    indexed.add(new IndexedObject(row[0], schema.indexesFor(object), fullText));
+                }
+                return indexed;
+            }
+
         }
 
     }
@@ -369,6 +804,61 @@ public class PersistentStore implements StorageProvider {
 
     }
 
+    /**
+     * Identity of an index value as SQLite stores it: name, storage class and text
+     */
+    static String indexIdentity(Index index){
+        Object value = index.getValue();
+        String type, text;
+        if (value == null) {
+            type = "null";
+            text = null;
+        } else if (value instanceof Boolean) {
+            type = "integer";
+            text = (Boolean) value ? "1" : "0";
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            type = "integer";
+            text = value.toString();
+        } else if (value instanceof Float || value instanceof Double) {
+            // SQLite may format reals differently which only costs a rewrite
+            type = "real";
+            text = value.toString();
+        } else {
+            type = "text";
+            text = value.toString();
+        }
+        return indexIdentity(index.getName(), type, text);
+    }
+
+    static String indexIdentity(String name, String type, String text){
+        return String.format(Locale.US, "%s\0%s\0%s", name, type, text == null ? "" : text);
+    }
+
+    static String materializedColumnName(String indexName){
+        return "i_" + indexName;
+    }
+
+    /**
+     * Quoted column of the materialized index table that holds the index name
+     */
+    static String materializedColumn(String indexName){
+        return "`" + materializedColumnName(indexName).replace("`", "``") + "`";
+    }
+
+    static void bindIndexValue(SQLiteStatement statement, int position, Object value){
+        if (value == null) {
+            statement.bindNull(position);
+        } else if (value instanceof Boolean) {
+            statement.bindLong(position, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            statement.bindLong(position, ((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(position, ((Number) value).doubleValue());
+        } else {
+            statement.bindString(position, value.toString());
+        }
+    }
+
     private <T extends Syncable> Bucket.ObjectCursor<T> buildCursor(BucketSchema<T> schema, Cursor cursor){
         return new ObjectCursor<T>(schema, cursor);
     }
@@ -403,12 +893,33 @@ public class PersistentStore implements StorageProvider {
         database.execSQL("CREATE TABLE IF NOT EXISTS reindex_queue (bucket, key)");
         database.execSQL("CREATE INDEX IF NOT EXISTS reindex_bucket ON reindex_queue(bucket)");
         database.execSQL("CREATE INDEX IF NOT EXISTS reindex_key ON reindex_queue(key)");
+        database.execSQL(String.format(Locale.US, "CREATE TABLE IF NOT EXISTS %s (bucket PRIMARY KEY, fingerprint)", INDEX_FINGERPRINTS_TABLE));
     }
 
     protected Cursor tableInfo(String tableName){
         return database.rawQuery(String.format(Locale.US, "PRAGMA table_info(`%s`)", tableName), null);
     }
 
+    /**
+     * SQL compiled for one query shape, every subject is a bound parameter so
+     * queries with the same shape share the SQL text and SQLite's prepared
+     * statement for it
+     */
+    static class CompiledQuery {
+
+        final String selection;
+        final String statement;
+        // index names joined in followed by the bucket name
+        final String[] fixedArgs;
+
+        CompiledQuery(String selection, String statement, String[] fixedArgs){
+            this.selection = selection;
+            this.statement = statement;
+            this.fixedArgs = fixedArgs;
+        }
+
+    }
+
     protected static class QueryBuilder {
 
         private Query query;
@@ -420,17 +931,44 @@ public class PersistentStore implements StorageProvider {
         QueryBuilder(DataStore store, Query query){
             mDataStore = store;
             this.query = query;
-            compileQuery();
+            if (query.hasAfter() && query.getAfterValues().length != sortValueCount(query)) {
+                throw(new IllegalArgumentException(String.format(Locale.US,
+                    "Paging after an object needs %d sort values", sortValueCount(query))));
+            }
+            String shape = queryShape(store, query);
+            CompiledQuery compiled = store.getCompiledQuery(shape);
+            if (compiled == null) {
+                compiled = compileQuery();
+                store.putCompiledQuery(shape, compiled);
+            }
+            selection = new StringBuilder(compiled.selection);
+            statement = compiled.statement;
+            List<String> arguments = new ArrayList<String>(compiled.fixedArgs.length + query.getConditions().size());
+            for (String arg : compiled.fixedArgs) {
+                arguments.add(arg);
+            }
+            addSubjectArgs(query, arguments);
+            addSeekArgs(query, arguments);
+            args = arguments.toArray(new String[arguments.size()]);
         }
 
         protected Cursor query(SQLiteDatabase database){
             String query = selection.append(statement).toString();
+            String[] queryArgs = args;
             if (this.query.hasLimit()) {
-                query += String.format(Locale.US, " LIMIT %d", this.query.getLimit());
-                if (this.query.hasOffset())
-                    query += String.format(Locale.US, ", %d", this.query.getOffset());
+                query += " LIMIT CAST(? AS INTEGER)";
+                List<String> arguments = new ArrayList<String>(args.length + 2);
+                for (String arg : args) {
+                    arguments.add(arg);
+                }
+                arguments.add(String.valueOf(this.query.getLimit()));
+                if (this.query.hasOffset()) {
+                    query += ", CAST(? AS INTEGER)";
+                    arguments.add(String.valueOf(this.query.getOffset()));
+                }
+                queryArgs = arguments.toArray(new String[arguments.size()]);
             }
-            return database.rawQuery(query, args);
+            return database.rawQuery(query, queryArgs);
         }
 
         protected Cursor count(SQLiteDatabase database){
@@ -438,32 +976,222 @@ public class PersistentStore implements StorageProvider {
             return database.rawQuery(selection.append(statement).toString(), args);
         }
 
-        private void compileQuery(){
+        /**
+         * Describes everything about the query that changes its SQL, queries
+         * that only differ in their subjects have the same shape
+         */
+        static String queryShape(DataStore store, Query query){
+            StringBuilder shape = new StringBuilder();
+            shape.append(store.isMaterializedReady() ? 'm' : '-');
+            for (Object item : query.getConditions()) {
+                Query.Condition condition = (Query.Condition) item;
+                shape.append("|c:").append(condition.getKey()).append(':').append(condition.getComparisonType().name())
+                    .append(':').append(subjectKind(condition.getSubject()));
+            }
+            for (Object item : query.getSorters()) {
+                Query.Sorter sorter = (Query.Sorter) item;
+                shape.append(sorter instanceof Query.KeySorter ? "|k:" : "|s:").append(sorter.getKey())
+                    .append(':').append(sorter.getType().name());
+            }
+            if (query.hasAfter()) {
+                shape.append("|a:");
+                for (Object value : query.getAfterValues()) {
+                    shape.append(subjectKind(value));
+                }
+            }
+            if (needsKeyTiebreak(query)) {
+                shape.append("|t");
+            }
+            for (Object item : query.getFields()) {
+                Query.Field field = (Query.Field) item;
+                shape.append("|f:").append(field.getClass().getName()).append(':').append(field.getName());
+                if (field instanceof Query.FullTextSnippet) {
+                    shape.append(':').append(((Query.FullTextSnippet) field).getColumnName());
+                }
+            }
+            return shape.toString();
+        }
+
+        private static char subjectKind(Object subject){
+            if (subject == null) return 'n';
+            if (subject instanceof Float || subject instanceof Double) return 'f';
+            if (subject instanceof Integer || subject instanceof Long || subject instanceof Short
+                || subject instanceof Byte || subject instanceof Boolean) return 'i';
+            return 's';
+        }
+
+        /**
+         * Placeholder for a subject, numbers are cast back from the bound text so
+         * they compare with the stored values as numbers
+         */
+        private static String subjectPlaceholder(Object subject){
+            switch (subjectKind(subject)) {
+                case 'f':
+                    return "CAST(? AS REAL)";
+                case 'i':
+                    return "CAST(? AS INTEGER)";
+                default:
+                    return "?";
+            }
+        }
+
+        /**
+         * Adds the bound value of every subject in the order compileQuery
+         * placed their parameters
+         */
+        static void addSubjectArgs(Query query, List<String> arguments){
+            for (Object item : query.getConditions()) {
+                Query.Condition condition = (Query.Condition) item;
+                Object subject = condition.getSubject();
+                if (condition.getComparisonType() != Query.ComparisonType.MATCH && subject == null) {
+                    continue;
+                }
+                arguments.add(subjectArg(subject));
+            }
+        }
+
+        private static String subjectArg(Object subject){
+            if (subject instanceof Float || subject instanceof Double) {
+                // every digit of the stored double so equality still holds
+                return Double.toString(((Number) subject).doubleValue());
+            } else if (subject instanceof Boolean) {
+                return (Boolean) subject ? "1" : "0";
+            }
+            return subject.toString();
+        }
+
+        /**
+         * Number of sort values Query.after() takes, one per sorter up to the
+         * first key sorter since the key already decides the order
+         */
+        static int sortValueCount(Query query){
+            int count = 0;
+            for (Object item : query.getSorters()) {
+                if (item instanceof Query.KeySorter) break;
+                count ++;
+            }
+            return count;
+        }
+
+        private static boolean hasKeySorter(Query query){
+            for (Object item : query.getSorters()) {
+                if (item instanceof Query.KeySorter) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Paged queries and sorted queries with a limit order ties by key so
+         * every row has one position and pages don't overlap
+         */
+        static boolean needsKeyTiebreak(Query query){
+            if (hasKeySorter(query)) return false;
+            return query.hasAfter() || (query.hasLimit() && query.getSorters().size() > 0);
+        }
+
+        /**
+         * Adds the bound values of the seek predicate in the order compileQuery
+         * placed their parameters
+         */
+        static void addSeekArgs(Query query, List<String> arguments){
+            if (!query.hasAfter()) return;
+            Object[] values = query.getAfterValues();
+            // term i compares the first i - 1 sort values for equality and the ith for order
+            for (int term = 0; term <= values.length; term++) {
+                for (int i = 0; i < term; i++) {
+                    if (values[i] != null) arguments.add(subjectArg(values[i]));
+                }
+                if (term < values.length) {
+                    if (values[term] != null) arguments.add(subjectArg(values[term]));
+                } else {
+                    arguments.add(query.getAfterKey());
+                }
+            }
+        }
+
+        /**
+         * Rows that sort after the row with the given sort values, expanded
+         * into (a > x) OR (a = x AND b > y) OR ... so each term can use an index
+         */
+        private String seekPredicate(List<String> columns, List<Query.SortType> types){
+            Object[] values = query.getAfterValues();
+            StringBuilder predicate = new StringBuilder(" AND (");
+            for (int term = 0; term <= values.length; term++) {
+                if (term > 0) predicate.append(" OR");
+                predicate.append(" (");
+                for (int i = 0; i < term; i++) {
+                    String column = columns.get(i);
+                    predicate.append(values[i] == null ? String.format(Locale.US, "%s IS NULL AND ", column)
+                        : String.format(Locale.US, "%s = %s AND ", column, subjectPlaceholder(values[i])));
+                }
+                if (term == values.length) {
+                    // the key sorter's direction or the ascending tiebreak
+                    String comparison = types.size() > values.length && types.get(values.length) == Query.SortType.DESCENDING ? "<" : ">";
+                    predicate.append(String.format(Locale.US, "objects.key %s ?)", comparison));
+                    continue;
+                }
+                String column = columns.get(term);
+                boolean descending = types.get(term) == Query.SortType.DESCENDING;
+                // nulls sort first ascending and last descending
+                if (values[term] == null) {
+                    predicate.append(descending ? "0)" : String.format(Locale.US, "%s IS NOT NULL)", column));
+                } else if (descending) {
+                    predicate.append(String.format(Locale.US, "%s < %s OR %s IS NULL)", column, subjectPlaceholder(values[term]), column));
+                } else {
+                    predicate.append(String.format(Locale.US, "%s > %s)", column, subjectPlaceholder(values[term])));
+                }
+            }
+            return predicate.append(" )").toString();
+        }
+
+        // joins in statement order and the index names bound in them
+        private StringBuilder mJoins;
+        private List<String> mJoinNames;
+        // value column of every index name that has been joined in
+        private Map<String,String> mColumns;
+        private int mAlias = 0;
+        private boolean mJoinedMaterialized = false;
+
+        /**
+         * Returns the column with the value of the index name. Materialized
+         * names share one join on the bucket's index table, other names join
+         * the indexes table, reusing an earlier join of the name when reuse is true.
+         */
+        private String valueColumn(String name, boolean reuse){
+            if (mDataStore.isMaterialized(name)) {
+                if (!mJoinedMaterialized) {
+                    mJoins.append(String.format(Locale.US, " JOIN `%s` AS m ON m.key = objects.key", mDataStore.getMaterializedTableName()));
+                    mJoinedMaterialized = true;
+                }
+                return "m." + materializedColumn(name);
+            }
+            if (reuse && mColumns.containsKey(name)) {
+                return mColumns.get(name);
+            }
+            String alias = String.format(Locale.US, "i%d", mAlias++);
+            mJoins.append(String.format(Locale.US, " LEFT JOIN indexes AS %s ON objects.bucket = %s.bucket AND objects.key = %s.key AND %s.name=?", alias, alias, alias, alias));
+            mJoinNames.add(name);
+            String column = alias + ".value";
+            mColumns.put(name, column);
+            return column;
+        }
+
+        private CompiledQuery compileQuery(){
             // turn comparators into where statements, each comparator joins
             Iterator<Query.Condition> conditions = query.getConditions().iterator();
-            Iterator<Query.Sorter> sorters = query.getSorters().iterator();
+            Iterator<Query.Sorter> sorters;
             Iterator<Query.Field> fields = query.getFields().iterator();
             String bucketName = mDataStore.bucketName;
             String ftName = mDataStore.getFullTextTableName();
 
             selection = new StringBuilder("SELECT objects.rowid AS `_id`, objects.bucket || objects.key AS `key`, objects.key as `object_key`, objects.data as `object_data` ");
-            StringBuilder filters = new StringBuilder();
+            mJoins = new StringBuilder();
+            mJoinNames = new ArrayList<String>(1);
+            mColumns = new HashMap<String,String>();
             StringBuilder where = new StringBuilder("WHERE objects.bucket = ?");
 
-            List<String> replacements = new ArrayList<String>(1);
-            replacements.add(bucketName);
-            List<String> names = new ArrayList<String>(1);
-            // table include index for alias
-            int i = 0;
-
-            List<String> sortKeys = new ArrayList<String>();
-            Map<String,String> includedKeys = new HashMap<String,String>();
             Boolean includedFullText = false;
 
-            while(sorters.hasNext()){
-                sortKeys.add(sorters.next().getKey());
-            }
-
             String fullTextFilter = null;
             while(conditions.hasNext()){
                 Query.Condition condition = conditions.next();
@@ -478,14 +1206,11 @@ public class PersistentStore implements StorageProvider {
                     // add the condition and argument to the where statement
                     String field = key == null ? ftName : String.format(Locale.US, "`%s`.`%s`", ftName, condition.getKey());
                     where.append(String.format(Locale.US, " AND ( %s %s ? )", field, condition.getComparisonType()));
-                    replacements.add(condition.getSubject().toString());
                     continue;
                 }
 
-                // store which keys have been joined in and which alias
-                includedKeys.put(key, String.format(Locale.US, "i%d", i));
-                names.add(condition.getKey());
-                filters.append(String.format(Locale.US, " LEFT JOIN indexes AS i%d ON objects.bucket = i%d.bucket AND objects.key = i%d.key AND i%d.name=?", i, i, i, i));
+                // every condition gets its own join
+                String column = valueColumn(key, false);
                 Object subject = condition.getSubject();
 
                 // short circuit for null subjects
@@ -495,12 +1220,12 @@ public class PersistentStore implements StorageProvider {
 
                         case EQUAL_TO :
                         case LIKE :
-                            where.append(String.format(Locale.US, " AND ( i%d.value IS NULL ) ", i));
+                            where.append(String.format(Locale.US, " AND ( %s IS NULL ) ", column));
                             break;
 
                         case NOT_EQUAL_TO :
                         case NOT_LIKE :
-                            where.append(String.format(Locale.US, " AND ( i%d.value NOT NULL ) ", i));
+                            where.append(String.format(Locale.US, " AND ( %s NOT NULL ) ", column));
                             break;
 
                         default :
@@ -509,28 +1234,14 @@ public class PersistentStore implements StorageProvider {
 
                     }
 
-                    i++;
-
                     continue;
                 }
 
-                String null_condition = condition.includesNull() ? String.format(Locale.US, " i%d.value IS NULL OR", i) : String.format(Locale.US, " i%d.value IS NOT NULL AND", i);
-                where.append(String.format(Locale.US, " AND ( %s i%d.value %s ", null_condition, i, condition.getComparisonType()));
-                if (subject instanceof Float) {
-                    where.append(String.format(Locale.US, " %f)", (Float)subject));
-                } else if (subject instanceof Integer){
-                    where.append(String.format(Locale.US, " %d)", (Integer)subject));
-                } else if (subject instanceof Boolean){
-                    where.append(String.format(Locale.US, " %d)", ((Boolean)subject ? 1 : 0)));
-                } else if (subject != null) {
-                    where.append(" ?)");
-                    replacements.add(subject.toString());
-                }
-
-                i++;
+                String null_condition = condition.includesNull() ? String.format(Locale.US, " %s IS NULL OR", column) : String.format(Locale.US, " %s IS NOT NULL AND", column);
+                where.append(String.format(Locale.US, " AND ( %s %s %s  %s)", null_condition, column, condition.getComparisonType(), subjectPlaceholder(subject)));
             }
 
-            if(includedFullText) filters.insert(0, fullTextFilter);
+            if(includedFullText) mJoins.insert(0, fullTextFilter);
 
             while(fields.hasNext()){
                 Query.Field field = fields.next();
@@ -546,18 +1257,16 @@ public class PersistentStore implements StorageProvider {
                 }
 
                 String fieldName = field.getName();
-                if (!includedKeys.containsKey(fieldName)) {
-                    includedKeys.put(fieldName, String.format(Locale.US, "i%d", i));
-                    names.add(fieldName);
-                    filters.append(String.format(Locale.US, " LEFT JOIN indexes AS i%d ON objects.bucket = i%d.bucket AND objects.key = i%d.key AND i%d.name=?", i, i, i, i));
-                    i++;
-                }
-                selection.append(String.format(Locale.US, ", %s.value AS `%s`", includedKeys.get(fieldName), fieldName));
+                selection.append(String.format(Locale.US, ", %s AS `%s`", valueColumn(fieldName, true), fieldName));
                 
             }
 
             StringBuilder order = new StringBuilder("ORDER BY");
             int orderLength = order.length();
+            // sort columns up to the first key sorter, used by the seek predicate
+            List<String> seekColumns = new ArrayList<String>();
+            List<Query.SortType> seekTypes = new ArrayList<Query.SortType>();
+            boolean sortedByKey = false;
             if (query.getSorters().size() > 0){
                 sorters = query.getSorters().iterator();
                 while(sorters.hasNext()){
@@ -565,25 +1274,37 @@ public class PersistentStore implements StorageProvider {
                         order.append(", ");
                     }
                     Query.Sorter sorter = sorters.next();
-                    String sortKey = sorter.getKey();
                     if (sorter instanceof Query.KeySorter) {
                         order.append(String.format(Locale.US, " objects.key %s", sorter.getType()));
-                    } else if (includedKeys.containsKey(sortKey)) {
-                        order.append(String.format(Locale.US, " %s.value %s", includedKeys.get(sortKey), sorter.getType()));
+                        if (!sortedByKey) seekTypes.add(sorter.getType());
+                        sortedByKey = true;
                     } else {
-                        // join in the sorting field it wasn't used in a search
-                        filters.append(String.format(Locale.US, " LEFT JOIN indexes AS i%d ON objects.bucket = i%d.bucket AND objects.key = i%d.key AND i%d.name=?", i, i, i, i));
-                        names.add(sorter.getKey());
-                        order.append(String.format(Locale.US, " i%d.value %s", i, sorter.getType()));
-                        i++;
+                        // joins in the sorting field if it wasn't used in a search
+                        String column = valueColumn(sorter.getKey(), true);
+                        order.append(String.format(Locale.US, " %s %s", column, sorter.getType()));
+                        if (!sortedByKey) {
+                            seekColumns.add(column);
+                            seekTypes.add(sorter.getType());
+                        }
                     }
                 }
-            } else {
+            }
+            if (needsKeyTiebreak(query)) {
+                if (order.length() != orderLength) {
+                    order.append(",");
+                }
+                order.append(" objects.key ASC");
+            }
+            if (order.length() == orderLength) {
                 order.delete(0, order.length());
             }
-            statement = String.format(Locale.US, " FROM `objects` %s %s %s", filters.toString(), where.toString(), order.toString());
-            names.addAll(replacements);
-            args = names.toArray(new String[names.size()]);
+            if (query.hasAfter()) {
+                where.append(seekPredicate(seekColumns, seekTypes));
+            }
+            String statement = String.format(Locale.US, " FROM `objects` %s %s %s", mJoins.toString(), where.toString(), order.toString());
+            List<String> fixedArgs = new ArrayList<String>(mJoinNames);
+            fixedArgs.add(bucketName);
+            return new CompiledQuery(selection.toString(), statement, fixedArgs.toArray(new String[fixedArgs.size()]));
         }
 
     }
@@ -13,7 +13,17 @@ import com.simperium.util.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class QueueSerializer implements Channel.Serializer {
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the channel's change queue. State transitions are recorded in a
+ * journal and written behind on a dedicated thread, a queue followed by a
+ * dequeue or ack of the same change cancels out without touching the disk.
+ */
+public class QueueSerializer implements Channel.JournaledSerializer {
 
     public static final String TAG = "Simperium.QueueSerializer";
 
@@ -27,8 +37,17 @@ public class QueueSerializer implements Channel.Serializer {
     static public final String FIELD_TARGET    = "target";
     static public final String FIELD_CCID      = "ccid";
 
+    // wait between attempts to write a journal that failed
+    static public final long JOURNAL_RETRY_MS = 1000;
+
     protected SQLiteDatabase mDatabase;
 
+    // pending state transitions keyed by bucket and ccid
+    private Map<String,JournalEntry> mJournal = new LinkedHashMap<String,JournalEntry>();
+    private long mJournalSequence = 0, mFlushedSequence = 0;
+    private final Object mJournalLock = new Object();
+    private Thread mWriter;
+
     private enum Status {
         QUEUED("Q"), PENDING("P");
 
@@ -72,6 +91,7 @@ public class QueueSerializer implements Channel.Serializer {
     private static final String QUERY_CLAUSE = String.format("%s = ?", FIELD_BUCKET);
     @Override
     public Channel.SerializedQueue restore(Bucket bucket) {
+        sync();
         Channel.SerializedQueue queue = new Channel.SerializedQueue();
         // public Cursor query (String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy)
         String[] args = new String[]{ bucket.getName() };
@@ -137,25 +157,203 @@ public class QueueSerializer implements Channel.Serializer {
     @Override
     public void onQueueChange(Change change) {
         // insert the record into the db
-        insertState(Status.QUEUED, change);
+        synchronized(mJournalLock) {
+            journal(change).insertStatus = Status.QUEUED;
+        }
     }
 
     @Override
     public void onDequeueChange(Change change) {
         // change will not be sent, remove queued status
-        removeState(Status.QUEUED, change);
+        journalRemove(change);
     }
 
     @Override
     public void onSendChange(Change change) {
         // change was sent, mark as pending
-        updateState(Status.PENDING, change);
+        synchronized(mJournalLock) {
+            JournalEntry entry = journal(change);
+            if (entry.insertStatus != null) {
+                entry.insertStatus = Status.PENDING;
+            } else {
+                entry.updateStatus = Status.PENDING;
+            }
+        }
     }
 
     @Override
     public void onAcknowledgeChange(Change change) {
         // change was acknowledge, remove pending status
-        removeState(Status.PENDING, change);
+        journalRemove(change);
+    }
+
+    /**
+     * Blocks until every state transition journaled so far has been written
+     */
+    @Override
+    public void sync() {
+        synchronized(mJournalLock) {
+            long sequence = mJournalSequence;
+            boolean interrupted = false;
+            while (mFlushedSequence < sequence) {
+                try {
+                    mJournalLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class JournalEntry {
+        final Change change;
+        Status insertStatus;
+        Status updateStatus;
+        boolean remove = false;
+
+        JournalEntry(Change change){
+            this.change = change;
+        }
+    }
+
+    /**
+     * Get the journal entry for the change and wake up the writer, caller
+     * must hold mJournalLock
+     */
+    private JournalEntry journal(Change change) {
+        String key = journalKey(change);
+        JournalEntry entry = mJournal.get(key);
+        if (entry == null) {
+            entry = new JournalEntry(change);
+            mJournal.put(key, entry);
+        }
+        mJournalSequence ++;
+        startWriter();
+        mJournalLock.notifyAll();
+        return entry;
+    }
+
+    private void journalRemove(Change change) {
+        synchronized(mJournalLock) {
+            JournalEntry entry = mJournal.get(journalKey(change));
+            if (entry != null && entry.insertStatus != null) {
+                // never written so nothing to delete
+                mJournal.remove(journalKey(change));
+                return;
+            }
+            entry = journal(change);
+            entry.updateStatus = null;
+            entry.remove = true;
+        }
+    }
+
+    private static String journalKey(Change change) {
+        return String.format("%s\0%s", change.getBucketName(), change.getChangeId());
+    }
+
+    private void startWriter() {
+        if (mWriter != null) return;
+        mWriter = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                while(true) {
+                    List<JournalEntry> entries;
+                    long sequence;
+                    synchronized(mJournalLock) {
+                        while (mJournal.isEmpty()) {
+                            try {
+                                mJournalLock.wait();
+                            } catch (InterruptedException e) {
+                                // keep writing, the journal must be flushed
+                            }
+                        }
+                        entries = new ArrayList<JournalEntry>(mJournal.values());
+                        mJournal = new LinkedHashMap<String,JournalEntry>();
+                        sequence = mJournalSequence;
+                    }
+                    boolean written = writeJournal(entries);
+                    synchronized(mJournalLock) {
+                        if (written) {
+                            mFlushedSequence = Math.max(mFlushedSequence, sequence);
+                            mJournalLock.notifyAll();
+                            continue;
+                        }
+                        // retry the entries, ahead of anything journaled since
+                        restoreJournal(entries);
+                        try {
+                            mJournalLock.wait(JOURNAL_RETRY_MS);
+                        } catch (InterruptedException e) {
+                            // keep writing, the journal must be flushed
+                        }
+                    }
+                }
+            }
+        }, "simperium.queue-writer");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Put entries that failed to be written back in front of the journal,
+     * combined with the transitions journaled for the same change since.
+     * Caller must hold mJournalLock.
+     */
+    private void restoreJournal(List<JournalEntry> entries) {
+        Map<String,JournalEntry> journal = new LinkedHashMap<String,JournalEntry>();
+        for (JournalEntry entry : entries) {
+            String key = journalKey(entry.change);
+            JournalEntry newer = mJournal.remove(key);
+            if (newer == null) {
+                journal.put(key, entry);
+            } else if (newer.remove) {
+                // an insert that was never written doesn't need a delete
+                if (entry.insertStatus == null) {
+                    journal.put(key, newer);
+                }
+            } else if (entry.insertStatus != null && newer.updateStatus != null) {
+                entry.insertStatus = newer.updateStatus;
+                journal.put(key, entry);
+            } else {
+                journal.put(key, newer);
+            }
+        }
+        journal.putAll(mJournal);
+        mJournal = journal;
+    }
+
+    /**
+     * Write the journaled transitions in a single transaction, returns false
+     * when nothing was written
+     */
+    private boolean writeJournal(List<JournalEntry> entries) {
+        boolean written = false;
+        mDatabase.beginTransaction();
+        try {
+            for (JournalEntry entry : entries) {
+                if (entry.remove) {
+                    removeState(entry.change);
+                } else if (entry.insertStatus != null) {
+                    insertState(entry.insertStatus, entry.change);
+                } else if (entry.updateStatus != null) {
+                    updateState(entry.updateStatus, entry.change);
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+            written = true;
+        } catch (SQLException e) {
+            Logger.log(TAG, "Unable to write queue journal", e);
+        } finally {
+            try {
+                mDatabase.endTransaction();
+            } catch (SQLException e) {
+                Logger.log(TAG, "Unable to commit queue journal", e);
+                written = false;
+            }
+        }
+        return written;
     }
 
     private void insertState(Status status, Change change) {
@@ -192,7 +390,7 @@ public class QueueSerializer implements Channel.Serializer {
     static private final String REMOVE_CLAUSE = String.format("%s = ? AND %s = ?",
         FIELD_BUCKET, FIELD_CCID );
 
-    private void removeState(Status status, Change change) {
+    private void removeState(Change change) {
         String[] conditions = new String[] { change.getBucketName(), change.getChangeId() };
         mDatabase.delete(TABLE_NAME, REMOVE_CLAUSE, conditions);
     }
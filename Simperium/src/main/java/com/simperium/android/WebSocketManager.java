@@ -13,6 +13,7 @@ import com.simperium.client.Bucket;
 import com.simperium.client.Channel;
 import com.simperium.client.ChannelProvider;
 import com.simperium.util.Logger;
+import com.simperium.util.TimingWheel;
 
 import org.apache.http.message.BasicNameValuePair;
 
@@ -23,8 +24,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.Executor;
 
 import org.json.JSONObject;
@@ -69,7 +68,7 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
     static final long HEARTBEAT_INTERVAL = 20000; // 20 seconds
     static final long DEFAULT_RECONNECT_INTERVAL = 3000; // 3 seconds
 
-    private Timer heartbeatTimer, reconnectTimer;
+    private TimingWheel.Timeout heartbeatTimeout, reconnectTimeout;
     private int heartbeatCount = 0, logLevel = 0;
     private long reconnectInterval = DEFAULT_RECONNECT_INTERVAL;
 
@@ -77,6 +76,7 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
 
     protected Channel.Serializer mSerializer;
     protected Executor mExecutor;
+    protected TimingWheel mScheduler;
 
     public WebSocketManager(Executor executor, String appId, String sessionId, Channel.Serializer channelSerializer) {
         this(executor, appId, sessionId, channelSerializer, new DefaultSocketFactory());
@@ -84,7 +84,21 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
 
     public WebSocketManager(Executor executor, String appId, String sessionId, Channel.Serializer channelSerializer,
         WebSocketFactory socketFactory) {
+        this(executor, new TimingWheel(), appId, sessionId, channelSerializer, socketFactory);
+    }
+
+    public WebSocketManager(Executor executor, TimingWheel scheduler, String appId, String sessionId, Channel.Serializer channelSerializer) {
+        this(executor, scheduler, appId, sessionId, channelSerializer, new DefaultSocketFactory());
+    }
+
+    /**
+     * Heartbeats, reconnects and change retries for every channel are
+     * scheduled on the given scheduler
+     */
+    public WebSocketManager(Executor executor, TimingWheel scheduler, String appId, String sessionId,
+        Channel.Serializer channelSerializer, WebSocketFactory socketFactory) {
         mExecutor = executor;
+        mScheduler = scheduler;
         this.appId = appId;
         this.sessionId = sessionId;
         mSerializer = channelSerializer;
@@ -102,7 +116,9 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
     @Override
     public Channel buildChannel(Bucket bucket) {
         // create a channel
-        Channel channel = new Channel(mExecutor, appId, sessionId, bucket, mSerializer, this);
+        Channel channel = new Channel(mExecutor, mScheduler, appId, sessionId, bucket, mSerializer, this);
+        // index pages carry object data so the index doesn't need an e: per object
+        channel.setIndexInlineData(true);
         int channelId = channels.size();
         channelIndex.put(channel, channelId);
         channels.put(channelId, channel);
@@ -211,14 +227,13 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
     }
 
     private void cancelHeartbeat() {
-        if(heartbeatTimer != null) heartbeatTimer.cancel();
+        if(heartbeatTimeout != null) heartbeatTimeout.cancel();
         heartbeatCount = 0;
     }
 
     private void scheduleHeartbeat() {
         cancelHeartbeat();
-        heartbeatTimer = new Timer();
-        heartbeatTimer.schedule(new TimerTask() {
+        heartbeatTimeout = mScheduler.schedule(new Runnable() {
             public void run() {
                 sendHearbeat();
             }
@@ -236,19 +251,18 @@ public class WebSocketManager implements ChannelProvider, WebSocketClient.Listen
     }
 
     private void cancelReconnect() {
-        if (reconnectTimer != null) {
-            reconnectTimer.cancel();
-            reconnectTimer = null;
+        if (reconnectTimeout != null) {
+            reconnectTimeout.cancel();
+            reconnectTimeout = null;
         }
     }
 
     private void scheduleReconnect() {
         // check if we're not already trying to reconnect
-        if (reconnectTimer != null) return;
-        reconnectTimer = new Timer();
+        if (reconnectTimeout != null) return;
         // exponential backoff
         long retryIn = nextReconnectInterval();
-        reconnectTimer.schedule(new TimerTask() {
+        reconnectTimeout = mScheduler.schedule(new Runnable() {
             public void run() {
                 connect();
             }
@@ -30,16 +30,21 @@ import android.database.CursorWrapper;
 import com.simperium.SimperiumException;
 import com.simperium.client.ObjectCacheProvider.ObjectCache;
 import com.simperium.storage.StorageProvider.BucketStore;
+import com.simperium.storage.StorageProvider.TransactionalBucketStore;
 import com.simperium.util.JSONDiff;
 import com.simperium.util.Logger;
+import com.simperium.util.TimingWheel;
 import com.simperium.util.Uuid;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
@@ -81,6 +86,10 @@ public class Bucket<T extends Syncable> {
     }
 
     public static final String TAG="Simperium.Bucket";
+    // index ghosts are written in batches of this many objects
+    public static final int INDEX_BATCH_SIZE = 100;
+    // or after this many milliseconds, whichever comes first
+    public static final long INDEX_BATCH_DELAY_MS = 500;
     // The name used for the Simperium namespace
     private String name;
     // User provides the access token for authentication
@@ -102,6 +111,21 @@ public class Bucket<T extends Syncable> {
     private GhostStorageProvider ghostStore;
     private ObjectCache<T> cache;
     final private Executor executor;
+    // ghosts received from an index waiting to be written
+    final private List<Ghost> mIndexBatch = new ArrayList<Ghost>();
+    // full batches waiting to be written, oldest first, guarded by mIndexBatch
+    final private LinkedList<List<Ghost>> mIndexWrites = new LinkedList<List<Ghost>>();
+    // held while writing so batches are written one at a time and in order
+    final private Object mIndexWriteLock = new Object();
+    // a queued batch failed to be written, guarded by mIndexBatch
+    private boolean mIndexWriteFailed = false;
+    private int mIndexBatchSize = INDEX_BATCH_SIZE;
+    private long mIndexBatchDelay = INDEX_BATCH_DELAY_MS;
+    private volatile TimingWheel mScheduler;
+    private static TimingWheel sDefaultScheduler;
+    private TimingWheel.Timeout mIndexBatchTimeout;
+    // keys changed by the current batch of remote changes, null outside of one
+    private Set<String> mRemoteChangeKeys;
 
     /**
      * Represents a Simperium bucket which is a namespace where an app syncs a user's data
@@ -182,19 +206,23 @@ public class Bucket<T extends Syncable> {
                 return object;
             }
             object = cursor.getObject();
-            try {
-                Ghost ghost = ghostStore.getGhost(Bucket.this, key);
-                object.setGhost(ghost);
-            } catch (GhostMissingException e) {
-                object.setGhost(new Ghost(key, 0, new JSONObject()));
-            }
-            object.setBucket(Bucket.this);
+            attachStoredObject(object);
             cache.put(key, object);
             return object;
         }
 
     }
 
+    /**
+     * Attach an object storage built from its stored data. Rendering rows and
+     * indexing don't need sync metadata, the ghost is loaded when the object
+     * is diffed or its version is read.
+     */
+    public void attachStoredObject(T object){
+        object.setBucket(this);
+        object.setGhostPending();
+    }
+
     /**
      * Tell the bucket to sync changes.
      */
@@ -287,7 +315,14 @@ public class Bucket<T extends Syncable> {
     }
 
     public void indexComplete(String changeVersion){
-        setChangeVersion(changeVersion);
+        // objects must be stored before the index's change version
+        if (flushIndexBatch()) {
+            setChangeVersion(changeVersion);
+        } else {
+            Logger.log(TAG, String.format("Index objects were not written, not saving cv %s", changeVersion));
+        }
+        clearIndexWriteFailed();
+        ghostStore.setIndexMark(this, changeVersion, null);
         notifyOnNetworkChangeListeners(ChangeType.INDEX);
     }
 
@@ -295,6 +330,77 @@ public class Bucket<T extends Syncable> {
         ghostStore.setChangeVersion(this, version);
     }
 
+    /**
+     * Start applying a batch of remote changes. Their objects and ghosts are
+     * written in a single transaction when the storage supports it and the
+     * change version is saved once, with them, when the batch ends.
+     */
+    public void beginRemoteChanges(){
+        if (storage instanceof TransactionalBucketStore) {
+            ((TransactionalBucketStore<T>) storage).beginTransaction();
+        }
+        ghostStore.beginChangeVersionBatch(this);
+        mRemoteChangeKeys = new HashSet<String>();
+    }
+
+    /**
+     * Finish the batch started by beginRemoteChanges, rolling back its writes
+     * when successful is false. The cached objects the batch changed are
+     * evicted then so they are read again from storage.
+     */
+    public void endRemoteChanges(boolean successful){
+        Set<String> keys = mRemoteChangeKeys;
+        mRemoteChangeKeys = null;
+        try {
+            ghostStore.endChangeVersionBatch(this, successful);
+            if (successful && storage instanceof TransactionalBucketStore) {
+                ((TransactionalBucketStore<T>) storage).setTransactionSuccessful();
+            }
+        } finally {
+            if (storage instanceof TransactionalBucketStore) {
+                ((TransactionalBucketStore<T>) storage).endTransaction();
+            }
+            if (!successful && keys != null && !keys.isEmpty()) {
+                for (String key : keys) {
+                    cache.remove(key);
+                }
+                // listeners were told about changes that are no longer there
+                notifyOnNetworkChangeListeners(ChangeType.INDEX);
+            }
+        }
+    }
+
+    private void rememberRemoteChange(String key){
+        if (mRemoteChangeKeys != null) {
+            mRemoteChangeKeys.add(key);
+        }
+    }
+
+    /**
+     * Save where an unfinished index can resume. Every object from the pages
+     * before the mark has been received so they are written first, including
+     * batches already queued on the executor. The previous mark is kept once
+     * any of them could not be written.
+     */
+    public void saveIndexMark(String changeVersion, String mark){
+        boolean written = flushIndexBatch();
+        if (mark == null) {
+            clearIndexWriteFailed();
+        } else if (!written) {
+            Logger.log(TAG, String.format("Index objects were not written, not saving mark %s", mark));
+            return;
+        }
+        ghostStore.setIndexMark(this, changeVersion, mark);
+    }
+
+    public String getIndexMark(){
+        return ghostStore.getIndexMark(this);
+    }
+
+    public String getIndexChangeVersion(){
+        return ghostStore.getIndexChangeVersion(this);
+    }
+
     // starts tracking the object
     /**
      * Add an object to the bucket so simperium can start syncing it. Must
@@ -317,7 +423,7 @@ public class Bucket<T extends Syncable> {
     }
     
     protected T buildObject(Ghost ghost){
-        T object = schema.buildWithDefaults(ghost.getSimperiumKey(), JSONDiff.deepCopy(ghost.getDiffableValue()));
+        T object = schema.buildWithDefaults(ghost.getSimperiumKey(), ghost.copyDiffableValue());
         object.setGhost(ghost);
         object.setBucket(this);
         return object;
@@ -431,28 +537,197 @@ public class Bucket<T extends Syncable> {
 
     /**
      * Add object from new ghost data, no corresponding change version so this
-     * came from an index request
+     * came from an index request. Ghosts are buffered and written in batches of
+     * mIndexBatchSize or after mIndexBatchDelay milliseconds.
      */
     protected void addObjectWithGhost(final Ghost ghost){
-        executor.execute(new Runnable() {
+        boolean queued = false, started = false;
+        synchronized(mIndexBatch) {
+            mIndexBatch.add(ghost);
+            if (mIndexBatch.size() >= mIndexBatchSize) {
+                queued = queueIndexBatch();
+            } else {
+                started = mIndexBatch.size() == 1;
+            }
+        }
+        if (queued) {
+            executor.execute(mIndexWriter);
+        } else if (started) {
+            scheduleIndexBatch();
+        }
+    }
 
-            @Override
-            public void run(){
-                ghostStore.saveGhost(Bucket.this, ghost);
+    /**
+     * Configure how many index objects are written per transaction and how long
+     * a partial batch waits before it is written.
+     */
+    public void setIndexBatchSize(int size, long delayMs){
+        mIndexBatchSize = Math.max(1, size);
+        mIndexBatchDelay = delayMs;
+    }
+
+    /**
+     * Partial index batches are written by a timeout on the channel's scheduler
+     */
+    public void setScheduler(TimingWheel scheduler){
+        mScheduler = scheduler;
+    }
+
+    private TimingWheel getScheduler(){
+        TimingWheel scheduler = mScheduler;
+        if (scheduler != null) return scheduler;
+        synchronized(Bucket.class) {
+            // shared by buckets whose channel doesn't provide one
+            if (sDefaultScheduler == null) {
+                sDefaultScheduler = new TimingWheel();
+            }
+            return sDefaultScheduler;
+        }
+    }
+
+    /**
+     * Writes every buffered and queued index object on the calling thread and
+     * waits for a batch that is already being written. Returns false when a
+     * batch of the current index failed to be written.
+     */
+    protected boolean flushIndexBatch(){
+        synchronized(mIndexBatch) {
+            queueIndexBatch();
+        }
+        writeIndexBatches();
+        synchronized(mIndexBatch) {
+            return !mIndexWriteFailed;
+        }
+    }
+
+    /**
+     * The next index starts over so earlier failed batches no longer matter
+     */
+    private void clearIndexWriteFailed(){
+        synchronized(mIndexBatch) {
+            mIndexWriteFailed = false;
+        }
+    }
+
+    /**
+     * Moves the buffered ghosts to the write queue, must hold mIndexBatch
+     */
+    private boolean queueIndexBatch(){
+        if (mIndexBatchTimeout != null) {
+            mIndexBatchTimeout.cancel();
+            mIndexBatchTimeout = null;
+        }
+        if (mIndexBatch.isEmpty()) return false;
+        mIndexWrites.add(new ArrayList<Ghost>(mIndexBatch));
+        mIndexBatch.clear();
+        return true;
+    }
+
+    private void scheduleIndexBatch(){
+        TimingWheel.Timeout timeout = getScheduler().schedule(mIndexBatchExpired, mIndexBatchDelay);
+        synchronized(mIndexBatch) {
+            mIndexBatchTimeout = timeout;
+        }
+    }
+
+    private final Runnable mIndexBatchExpired = new Runnable(){
+
+        @Override
+        public void run(){
+            boolean queued;
+            synchronized(mIndexBatch) {
+                queued = queueIndexBatch();
+            }
+            if (queued) {
+                executor.execute(mIndexWriter);
+            }
+        }
+
+    };
+
+    private final Runnable mIndexWriter = new Runnable(){
+
+        @Override
+        public void run(){
+            writeIndexBatches();
+        }
+
+    };
+
+    /**
+     * Drop index objects that have not been written yet and wait for a batch
+     * that is being written
+     */
+    private void clearIndexBatches(){
+        synchronized(mIndexBatch) {
+            if (mIndexBatchTimeout != null) {
+                mIndexBatchTimeout.cancel();
+                mIndexBatchTimeout = null;
+            }
+            mIndexBatch.clear();
+            mIndexWrites.clear();
+            mIndexWriteFailed = false;
+        }
+        synchronized(mIndexWriteLock) {
+            // the batch being written has finished
+        }
+    }
+
+    /**
+     * Writes queued batches in order until the queue is empty
+     */
+    private void writeIndexBatches(){
+        synchronized(mIndexWriteLock) {
+            while (true) {
+                List<Ghost> batch;
+                synchronized(mIndexBatch) {
+                    batch = mIndexWrites.poll();
+                }
+                if (batch == null) return;
+                try {
+                    writeIndexBatch(batch);
+                } catch (RuntimeException e) {
+                    synchronized(mIndexBatch) {
+                        mIndexWriteFailed = true;
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the ghosts and their objects in a single transaction when the storage
+     * supports it
+     */
+    private void writeIndexBatch(List<Ghost> batch){
+        if (batch.isEmpty()) return;
+
+        TransactionalBucketStore<T> transaction = null;
+        if (storage instanceof TransactionalBucketStore) {
+            transaction = (TransactionalBucketStore<T>) storage;
+            transaction.beginTransaction();
+        }
+
+        try {
+            for (Ghost ghost : batch) {
                 T object = buildObject(ghost);
                 addObject(object);
+                ghostStore.saveGhost(Bucket.this, ghost);
             }
-
-        });
+            if (transaction != null) transaction.setTransactionSuccessful();
+        } finally {
+            if (transaction != null) transaction.endTransaction();
+        }
     }
 
     /**
      * Update the ghost data
      */
     protected void updateObjectWithGhost(final Ghost ghost){
-        ghostStore.saveGhost(Bucket.this, ghost);
         T object = buildObject(ghost);
         updateObject(object);
+        ghostStore.saveGhost(Bucket.this, ghost);
     }
 
     protected void updateGhost(final Ghost ghost, final Runnable complete){
@@ -484,6 +759,18 @@ public class Bucket<T extends Syncable> {
     protected Ghost getGhost(String key) throws GhostMissingException {
         return ghostStore.getGhost(this, key);
     }
+
+    /**
+     * Loads the ghost for an object that was built without one, objects that
+     * have never been synced get an empty ghost
+     */
+    protected Ghost loadGhost(String key){
+        try {
+            return ghostStore.getGhost(this, key);
+        } catch (GhostMissingException e) {
+            return new Ghost(key, 0, new JSONObject());
+        }
+    }
     /**
      * Add a new object with corresponding change version
      */
@@ -650,6 +937,7 @@ public class Bucket<T extends Syncable> {
 
 
     public void reset(){
+        clearIndexBatches();
         storage.reset();
         // Clear the ghost store
         ghostStore.resetBucket(this);
@@ -668,20 +956,24 @@ public class Bucket<T extends Syncable> {
      * Ask storage if it has at least the requested version or newer
      */
     public Boolean hasKeyVersion(String key, Integer version){
-        try {
-            Ghost ghost = ghostStore.getGhost(this, key);
-            return ghost.getVersion().equals(version);
-        } catch (GhostMissingException e) {
-            // we don't have the ghost
-            return false;
-        }
+        Integer storedVersion = ghostStore.getGhostVersion(this, key);
+        return storedVersion != null && storedVersion.equals(version);
+    }
+    /**
+     * Calls the callback with every key and version the bucket has a ghost for
+     */
+    public void readKeyVersions(GhostStorageProvider.VersionCallback callback){
+        ghostStore.readVersions(this, callback);
     }
     /**
      * Which version of the key do we have
      */
     public Integer getKeyVersion(String key) throws GhostMissingException {
-        Ghost ghost = ghostStore.getGhost(this, key);
-        return ghost.getVersion();
+        Integer version = ghostStore.getGhostVersion(this, key);
+        if (version == null) {
+            throw(new GhostMissingException(String.format("Ghost %s does not exist for bucket %s", key, getName())));
+        }
+        return version;
     }
 
     /**
@@ -702,6 +994,7 @@ public class Bucket<T extends Syncable> {
     public Ghost acknowledgeChange(RemoteChange remoteChange, Change change)
     throws RemoteChangeInvalidException {
         Ghost ghost = null;
+        rememberRemoteChange(remoteChange.getKey());
         if (!remoteChange.isRemoveOperation()) {
             try {
                 T object = get(remoteChange.getKey());
@@ -725,6 +1018,7 @@ public class Bucket<T extends Syncable> {
     public Ghost applyRemoteChange(RemoteChange change)
     throws RemoteChangeInvalidException {
         Ghost updatedGhost = null;
+        rememberRemoteChange(change.getKey());
         if (change.isRemoveOperation()) {
             try {
                 removeObjectWithKey(change.getKey());
@@ -748,6 +1042,14 @@ public class Bucket<T extends Syncable> {
                 }
 
                 Ghost ghost = object.getGhost();
+                // a prepared change was patched from the ghost saved before the
+                // batch, it's only good if the ghost hasn't been replaced since
+                if (change.isPrepared()) {
+                    Integer baseVersion = change.getBaseGhost().getVersion();
+                    if (baseVersion == null || !baseVersion.equals(ghost.getVersion())) {
+                        change.discardPrepared();
+                    }
+                }
                 JSONObject localModifications = null;
                 JSONObject currentProperties = ghost.getDiffableValue();
 
@@ -758,11 +1060,9 @@ public class Bucket<T extends Syncable> {
                 }
 
                 // updates the ghost and sets it on the object
-                updatedGhost = change.apply(ghost);
-                JSONObject updatedProperties = JSONDiff.deepCopy(updatedGhost.getDiffableValue());
+                updatedGhost = change.isPrepared() ? change.getPreparedGhost() : change.apply(ghost);
+                JSONObject updatedProperties = updatedGhost.getDocument().toJSON();
 
-                // persist the ghost to storage
-                ghostStore.saveGhost(this, updatedGhost);
                 object.setGhost(updatedGhost);
 
                 // allow the schema to update the object instance with the new
@@ -792,6 +1092,10 @@ public class Bucket<T extends Syncable> {
                     updateObject(object);
                 }
 
+                // persist the ghost after the object so the ghost store can
+                // store it as a reference to, or a diff against, the new row
+                ghostStore.saveGhost(this, updatedGhost);
+
             } catch(SimperiumException e) {
                 Logger.log(TAG, String.format("Unable to apply remote change %s", change), e);
                 throw(new RemoteChangeInvalidException(change, e));
@@ -27,6 +27,12 @@ public abstract class BucketSchema<T extends Syncable> {
     public abstract T build(String key, JSONObject properties);
     public abstract void update(T object, JSONObject properties);
 
+    /**
+     * Computes the index values of an object. Reindexing calls indexers on
+     * several worker threads at once so they must be thread safe. The objects
+     * they get there are built from storage, not taken from the bucket's
+     * cache, and load their ghost from the bucket when their version is read.
+     */
     public interface Indexer<S extends Syncable> {
         public List<Index> index(S object);
     }
@@ -56,6 +62,8 @@ public abstract class BucketSchema<T extends Syncable> {
     private List<Indexer<T>> indexers = Collections.synchronizedList(new ArrayList<Indexer<T>>());
     private Map<String,Object> defaultValues = new HashMap<String,Object>();
     private FullTextIndex mFullTextIndex;
+    private int mIndexVersion = 0;
+    private String[] mMaterializedIndexes = new String[0];
 
     public T buildWithDefaults(String key, JSONObject properties) {
         updateDefaultValues(properties);
@@ -105,6 +113,64 @@ public abstract class BucketSchema<T extends Syncable> {
         indexers.remove(indexer);
     }
 
+    /**
+     * Bump when indexers change in a way that their classes don't show, stored
+     * indexes are rebuilt when the version changes
+     */
+    public void setIndexVersion(int version){
+        mIndexVersion = version;
+    }
+
+    public int getIndexVersion(){
+        return mIndexVersion;
+    }
+
+    /**
+     * Index names that storage may keep in a table with one column per name so
+     * queries on them don't need a join per name. Only declare names that have
+     * at most one value per object.
+     */
+    public void setMaterializedIndexes(String ... names){
+        mMaterializedIndexes = names == null ? new String[0] : names;
+    }
+
+    public String[] getMaterializedIndexes(){
+        return mMaterializedIndexes;
+    }
+
+    public boolean hasMaterializedIndexes(){
+        return mMaterializedIndexes.length > 0;
+    }
+
+    /**
+     * Describes the indexer setup, when it differs from the one the indexes
+     * were built with the bucket needs to be reindexed
+     */
+    public String getIndexFingerprint(){
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append("version:").append(mIndexVersion);
+        fingerprint.append(";indexers:");
+        synchronized(indexers) {
+            for (Indexer<T> indexer : indexers) {
+                fingerprint.append(indexer.getClass().getName()).append(',');
+            }
+        }
+        if (mMaterializedIndexes.length > 0) {
+            fingerprint.append(";materialized:");
+            for (String name : mMaterializedIndexes) {
+                fingerprint.append(name).append(',');
+            }
+        }
+        if (mFullTextIndex != null) {
+            fingerprint.append(";fulltext:");
+            fingerprint.append(mFullTextIndex.getIndexer().getClass().getName());
+            for (String key : mFullTextIndex.getKeys()) {
+                fingerprint.append(',').append(key);
+            }
+        }
+        return fingerprint.toString();
+    }
+
     public void autoIndex(){
         indexers.add(0, new AutoIndexer<T>());
     }
@@ -1,14 +1,15 @@
 package com.simperium.client;
 
+import com.simperium.util.Document;
 import com.simperium.util.JSONDiff;
 import com.simperium.util.Logger;
+import com.simperium.util.TimingWheel;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimerTask;
 
 import static com.simperium.util.Uuid.uuid;
 
@@ -16,6 +17,10 @@ public class Change {
 
     public static final String TAG="Simperium.Change";
 
+    // first retry after 5 seconds, doubling up to a minute
+    public static final long RETRY_DELAY_MS = 5000;
+    public static final long MAX_RETRY_DELAY_MS = 60000;
+
     public interface OnRetryListener {
         public void onRetry(Change change);
     }
@@ -41,17 +46,20 @@ public class Change {
     private String operation;
     private String key, bucketName;
     private Integer version;
-    private JSONObject origin;
-    private JSONObject target;
+    // immutable snapshots, the origin is shared with the object's ghost
+    private Document origin;
+    private Document target;
     private String ccid;
     private boolean pending = true, acknowledged = false, sent = false;
     private OnRetryListener retryListener;
     private OnCompleteListener completeListener;
     private OnAcknowledgedListener acknowledgedListener;
     private Change compressed;
-    private JSONDiff jsondiff = new JSONDiff();
     private boolean sendFullObject = false;
-    private TimerTask retryTimer;
+    private TimingWheel.Timeout retryTimeout;
+    private long retryDelay = RETRY_DELAY_MS;
+    // incremented when the timer is reset so stale retries are ignored
+    private int retryGeneration = 0;
     private Integer retryCount = 0;
 
     /**
@@ -73,18 +81,13 @@ public class Change {
         return new Change(operation, ccid, bucketName, key, version, origin, target);
     }
 
-    private Change(String operation, Syncable object, JSONObject origin){
-        this(operation, object.getBucketName(), object.getSimperiumKey(), object.getVersion(),
-            origin, object.getDiffableValue());
-    }
-
-    private Change(String operation, String bucketName, String key, Integer sourceVersion, JSONObject origin, JSONObject target, Change compressed){
-        this(operation, bucketName, key, sourceVersion, origin, target);
-        this.compressed = compressed;
-    }
-
+    /**
+     * The origin is the ghost's document so only the object's value is copied
+     */
     public Change(String operation, Syncable object){
-        this(operation, object, object.getUnmodifiedValue());
+        this(operation, uuid(), object.getBucketName(), object.getSimperiumKey(), object.getVersion(),
+            operation.equals(OPERATION_REMOVE) ? null : object.getGhost().getDocument(),
+            operation.equals(OPERATION_REMOVE) ? null : Document.fromJSON(object.getDiffableValue()), null);
     }
 
     protected Change(String operation, String bucketName, String key, Integer sourceVersion, JSONObject origin, JSONObject target){
@@ -92,15 +95,22 @@ public class Change {
     }
 
     protected Change(String operation, String ccid, String bucketName, String key, Integer sourceVersion, JSONObject origin, JSONObject target){
+        this(operation, ccid, bucketName, key, sourceVersion,
+            operation.equals(OPERATION_REMOVE) ? null : Document.fromJSON(origin),
+            operation.equals(OPERATION_REMOVE) ? null : Document.fromJSON(target), null);
+    }
+
+    private Change(String operation, String ccid, String bucketName, String key, Integer sourceVersion, Document origin, Document target, Change compressed){
         this.operation = operation;
         this.ccid = ccid;
         this.bucketName = bucketName;
         this.key = key;
         if (!operation.equals(OPERATION_REMOVE)) {
             this.version = sourceVersion;
-            this.origin = JSONDiff.deepCopy(origin);
-            this.target = JSONDiff.deepCopy(target);
+            this.origin = origin;
+            this.target = target;
         }
+        this.compressed = compressed;
 
         this.resetTimer();
     }
@@ -173,12 +183,18 @@ public class Change {
         return this.ccid;
     }
 
+    /**
+     * Returns a new copy of the origin, null for remove operations
+     */
     public JSONObject getOrigin(){
-        return origin;
+        return origin == null ? null : origin.toJSON();
     }
 
+    /**
+     * Returns a new copy of the target, null for remove operations
+     */
     public JSONObject getTarget(){
-        return target;
+        return target == null ? null : target.toJSON();
     }
 
     public String getOperation(){
@@ -218,7 +234,7 @@ public class Change {
             }
 
             if (sendFullObject) {
-                json.put(OBJECT_DATA_KEY, target);
+                json.put(OBJECT_DATA_KEY, getTarget());
             }
 
             return json;
@@ -237,8 +253,8 @@ public class Change {
             props.put(SOURCE_VERSION_KEY, version);
         }
         if (operation.equals(OPERATION_MODIFY)) {
-            props.put(ORIGIN_KEY, origin);
-            props.put(TARGET_KEY, target);
+            props.put(ORIGIN_KEY, getOrigin());
+            props.put(TARGET_KEY, getTarget());
         }
         return props;
         
@@ -265,23 +281,55 @@ public class Change {
     }
 
     protected void resetTimer(){
-        if (retryTimer != null) {
-            retryTimer.cancel();
+        synchronized(this){
+            retryGeneration ++;
+            if (retryTimeout != null) {
+                retryTimeout.cancel();
+                retryTimeout = null;
+            }
+            retryDelay = RETRY_DELAY_MS;
+        }
+    }
+
+    /**
+     * Retry the change on the scheduler until the timer is reset, the delay
+     * doubles after every retry
+     */
+    protected void scheduleRetry(TimingWheel scheduler){
+        synchronized(this){
+            resetTimer();
+            scheduleRetry(scheduler, retryGeneration);
         }
+    }
 
-        retryTimer = new TimerTask(){
+    private void scheduleRetry(final TimingWheel scheduler, final int generation){
+        retryTimeout = scheduler.schedule(new Runnable(){
             @Override
             public void run(){
-                Logger.log("Simperium.Channel", String.format("Retry change: %s", Change.this));
-                if (retryListener != null) {
-                    retryListener.onRetry(Change.this);
-                }
+                retry(scheduler, generation);
             }
-        };
+        }, retryDelay);
     }
 
-    protected TimerTask getRetryTimer(){
-        return retryTimer;
+    private void retry(TimingWheel scheduler, int generation){
+        synchronized(this){
+            if (generation != retryGeneration) return;
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+        }
+        Logger.log("Simperium.Channel", String.format("Retry change: %s", Change.this));
+        if (retryListener != null) {
+            retryListener.onRetry(Change.this);
+        }
+        synchronized(this){
+            if (generation != retryGeneration) return;
+            scheduleRetry(scheduler, generation);
+        }
+    }
+
+    protected long getRetryDelay(){
+        synchronized(this){
+            return retryDelay;
+        }
     }
 
     public String toString(){
@@ -296,7 +344,7 @@ public class Change {
 
     public JSONObject getDiff(){
         try {
-            return jsondiff.diff(origin, target);
+            return JSONDiff.diff(origin, target);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -305,9 +353,8 @@ public class Change {
     /**
      * Creates a new change with the given sourceVersion and origin
      */
-    protected Change reapplyOrigin(Integer sourceVersion, JSONObject origin){
-        // protected Change(String operation, String key, Integer sourceVersion, Map<String,Object> origin, Map<String,Object> target){
-        return new Change(operation, bucketName, key, sourceVersion, origin, target, this);
+    protected Change reapplyOrigin(Integer sourceVersion, Document origin){
+        return new Change(operation, uuid(), bucketName, key, sourceVersion, origin, target, this);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package com.simperium.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local changes waiting to be sent, indexed by object key. Keys keep the
+ * order their first change was queued in and each key's changes are kept in
+ * the order they were added. Not thread safe, the change processor guards it
+ * with its lock.
+ */
+class ChangeQueue {
+
+    private final Map<String,LinkedList<Change>> mChanges = new LinkedHashMap<String,LinkedList<Change>>();
+    private int mSize = 0;
+
+    public void add(Change change){
+        LinkedList<Change> changes = mChanges.get(change.getKey());
+        if (changes == null) {
+            changes = new LinkedList<Change>();
+            mChanges.put(change.getKey(), changes);
+        }
+        changes.addLast(change);
+        mSize ++;
+    }
+
+    /**
+     * Put a change back at the head of its key's changes
+     */
+    public void addFirst(Change change){
+        LinkedList<Change> changes = mChanges.get(change.getKey());
+        if (changes == null) {
+            changes = new LinkedList<Change>();
+            mChanges.put(change.getKey(), changes);
+        }
+        changes.addFirst(change);
+        mSize ++;
+    }
+
+    public void addAll(Iterable<Change> changes){
+        for (Change change : changes) {
+            add(change);
+        }
+    }
+
+    /**
+     * Removes and returns all queued changes for the key
+     */
+    public List<Change> removeKey(String key){
+        LinkedList<Change> changes = mChanges.remove(key);
+        if (changes == null) {
+            return Collections.emptyList();
+        }
+        mSize -= changes.size();
+        return changes;
+    }
+
+    /**
+     * Removes the oldest change of every key that isn't pending, at most one
+     * change per key can be in flight
+     */
+    public List<Change> removeSendable(Map<String,Change> pending){
+        List<Change> sendable = new ArrayList<Change>();
+        Iterator<Map.Entry<String,LinkedList<Change>>> entries = mChanges.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String,LinkedList<Change>> entry = entries.next();
+            if (pending.containsKey(entry.getKey())) {
+                continue;
+            }
+            LinkedList<Change> changes = entry.getValue();
+            sendable.add(changes.removeFirst());
+            mSize --;
+            if (changes.isEmpty()) {
+                entries.remove();
+            }
+        }
+        return sendable;
+    }
+
+    /**
+     * Is there a queued change whose key isn't pending
+     */
+    public boolean hasSendable(Map<String,Change> pending){
+        if (mChanges.size() > pending.size()) {
+            return true;
+        }
+        for (String key : mChanges.keySet()) {
+            if (!pending.containsKey(key)) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty(){
+        return mSize == 0;
+    }
+
+    public int size(){
+        return mSize;
+    }
+
+}
@@ -15,6 +15,7 @@ package com.simperium.client;
 import com.simperium.SimperiumException;
 import com.simperium.Version;
 import com.simperium.util.Logger;
+import com.simperium.util.TimingWheel;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -25,12 +26,22 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 public class Channel implements Bucket.Channel {
@@ -94,6 +105,20 @@ public class Channel implements Bucket.Channel {
     static final Integer INDEX_PAGE_SIZE  = 50;
     static final Integer INDEX_BATCH_SIZE = 10;
     static final Integer INDEX_QUEUE_SIZE = 5;
+    static final Integer INDEX_QUEUE_MAX_SIZE = 50;
+    // index pages are sized to be about this many bytes
+    static final int INDEX_PAGE_BYTES = 256 * 1024;
+    static final int INDEX_PAGE_MIN_SIZE = 10;
+    static final int INDEX_PAGE_MAX_SIZE = 500;
+    // initial and retained capacity of the index status buffer, in chars
+    static final int INDEX_STATUS_BUFFER_SIZE = 16 * 1024;
+    static final int INDEX_STATUS_BUFFER_MAX_SIZE = 1024 * 1024;
+    // remote changes applied per transaction and change version write
+    static final int REMOTE_CHANGE_BATCH_SIZE = 100;
+    // remote changes are patched on up to this many threads, batches with
+    // fewer changes to patch are patched while applying them
+    static final int REMOTE_CHANGE_MAX_THREADS = 4;
+    static final int REMOTE_CHANGE_PREPARE_MIN_SIZE = 8;
 
     // Constants for parsing command messages
     static final Integer MESSAGE_PARTS = 2;
@@ -112,10 +137,26 @@ public class Channel implements Bucket.Channel {
     private String appId, sessionId;
     private Serializer serializer;
     protected Executor mExecutor;
+    // runs change retries, shared with the channel provider
+    protected TimingWheel mScheduler;
+    // maximum number of e: requests in flight while downloading an index
+    private int mIndexWindowSize = INDEX_QUEUE_MAX_SIZE;
+    // request object data with each index page instead of e: requests
+    private boolean mIndexInlineData = false;
+    // threads remote change ghosts are patched on, less than 2 disables it
+    private volatile int mRemoteChangeThreads =
+        Math.min(REMOTE_CHANGE_MAX_THREADS, Runtime.getRuntime().availableProcessors());
+    // remote changes applied with a ghost patched ahead of time, written by the processor
+    private volatile int mPreparedChangeCount = 0;
 
     // for sending and receiving changes
     final private ChangeProcessor changeProcessor;
     private IndexProcessor indexProcessor;
+    // reused to build index status responses
+    private StringBuilder mIndexStatusBuffer;
+    private final Object mIndexStatusLock = new Object();
+    // saved position of an interrupted index that the last i: request resumed from
+    private String mResumeIndexCv, mResumeIndexMark;
     
     public interface Serializer {
         // public <T extends Syncable> void save(Bucket<T> bucket, SerializedQueue<T> data);
@@ -127,6 +168,14 @@ public class Channel implements Bucket.Channel {
         public void onAcknowledgeChange(Change change);
     }
 
+    /**
+     * Serializer that writes queue state asynchronously, sync blocks until
+     * the transitions recorded so far are durable
+     */
+    public interface JournaledSerializer extends Serializer {
+        public void sync();
+    }
+
     public static class SerializedQueue {
         final public Map<String,Change> pending;
         final public List<Change> queued;
@@ -142,7 +191,13 @@ public class Channel implements Bucket.Channel {
     }
 
     public Channel(Executor executor, String appId, String sessionId, final Bucket bucket, Serializer serializer, OnMessageListener listener){
+        this(executor, new TimingWheel(), appId, sessionId, bucket, serializer, listener);
+    }
+
+    public Channel(Executor executor, TimingWheel scheduler, String appId, String sessionId, final Bucket bucket, Serializer serializer, OnMessageListener listener){
         mExecutor = executor;
+        mScheduler = scheduler;
+        bucket.setScheduler(scheduler);
         this.serializer = serializer;
         this.appId = appId;
         this.sessionId = sessionId;
@@ -323,6 +378,7 @@ public class Channel implements Bucket.Channel {
         // and top the processor
         changeProcessor.abort();
         haveIndex = false;
+        mResumeIndexCv = mResumeIndexMark = null;
         // initialize the new query for new index data
         IndexQuery query = new IndexQuery();
         // send the i:::: messages
@@ -376,7 +432,7 @@ public class Channel implements Bucket.Channel {
             return;
         }
         // if we don't have a processor or we are getting a different cv
-        if (indexProcessor == null || !indexProcessor.addIndexPage(index)) {
+        if (indexProcessor == null || !indexProcessor.addIndexPage(index, indexJson.length())) {
             // make sure we're not processing changes and clear pending changes
             // TODO: pause the change processor instead of clearing it :(
             changeProcessor.reset();
@@ -389,8 +445,25 @@ public class Channel implements Bucket.Channel {
                 currentIndex = "";
             }
 
-            indexProcessor = new IndexProcessor(getBucket(), currentIndex, indexProcessorListener);
-            indexProcessor.start(index);
+            String startMark = "";
+            if (mResumeIndexMark != null) {
+                boolean sameIndex = currentIndex.equals(mResumeIndexCv);
+                startMark = mResumeIndexMark;
+                mResumeIndexCv = mResumeIndexMark = null;
+                if (!sameIndex) {
+                    // the bucket changed since the mark was saved, objects before
+                    // it may be stale so download from the beginning. Objects that
+                    // are already stored at their index version are not requested again.
+                    Logger.log(TAG, String.format("Saved index mark is for another cv, restarting at %s", currentIndex));
+                    bucket.saveIndexMark(null, null);
+                    indexProcessor = null;
+                    sendMessage(new IndexQuery().toString());
+                    return;
+                }
+            }
+
+            indexProcessor = new IndexProcessor(getBucket(), currentIndex, startMark, indexProcessorListener);
+            indexProcessor.start(index, indexJson.length());
         } else {
             // received an index page for a different change version
             // TODO: reconcile the out of band index cv
@@ -398,6 +471,22 @@ public class Channel implements Bucket.Channel {
 
     }
 
+    /**
+     * Continue an index download that was interrupted, otherwise start from
+     * the first page
+     */
+    private IndexQuery buildIndexQuery(){
+        String mark = bucket.getIndexMark();
+        if (mark == null || mark.length() == 0) {
+            mResumeIndexCv = mResumeIndexMark = null;
+            return new IndexQuery();
+        }
+        mResumeIndexCv = bucket.getIndexChangeVersion();
+        mResumeIndexMark = mark;
+        Logger.log(TAG, String.format("Resuming index %s at %s", mResumeIndexCv, mark));
+        return new IndexQuery(mark);
+    }
+
     private IndexProcessorListener indexProcessorListener = new IndexProcessorListener(){
         @Override
         public void onComplete(String cv){
@@ -406,19 +495,29 @@ public class Channel implements Bucket.Channel {
     };
 
     private void handleRemoteChanges(String changesJson){
-        JSONArray changes;
         if (changesJson.equals(RESPONSE_UNKNOWN)) {
             // noop API 1.1 does not send "?" here
             return;
         }
+        // stream each change into the processor as it is parsed
         try {
-            changes = new JSONArray(changesJson);
+            RemoteChangeParser.parse(changesJson, new RemoteChangeParser.Listener(){
+
+                @Override
+                public void onRemoteChange(RemoteChange change){
+                    changeProcessor.addRemoteChange(change);
+                }
+
+                @Override
+                public void onInvalidChange(JSONException exception){
+                    Logger.log(TAG, "Failed to build remote change", exception);
+                }
+
+            });
         } catch (JSONException e){
             Logger.log(TAG, "Failed to parse remote changes JSON", e);
-            return;
         }
-        // Loop through each change? Convert changes to array list
-        changeProcessor.addChanges(changes);
+        changeProcessor.start();
     }
 
     private static final String ENTITY_DATA_KEY = "data";
@@ -444,8 +543,10 @@ public class Channel implements Bucket.Channel {
 
         } catch (ObjectVersionUnknownException e) {
             log(LOG_DEBUG, String.format(Locale.US, "Object version does not exist %s", e.version));
+            if (indexProcessor != null) indexProcessor.skipObjectVersion(e.version);
         } catch (ObjectVersionDataInvalidException e) {
             log(LOG_DEBUG, String.format(Locale.US, "Object version JSON data malformed %s", e.version));
+            if (indexProcessor != null) indexProcessor.skipObjectVersion(e.version);
         } catch (ObjectVersionParseException e) {
             log(LOG_DEBUG, String.format(Locale.US, "Received invalid object version: %s", e.versionString));
         }
@@ -464,7 +565,9 @@ public class Channel implements Bucket.Channel {
     }
 
     /**
-     * Send index status JSON
+     * Send index status JSON. Keys and versions are read from the ghosts in
+     * pages and written straight into a reused buffer instead of building a
+     * JSON object for every object in the bucket.
      */
     private void sendIndexStatus() {
         mExecutor.execute(new Runnable(){
@@ -472,65 +575,70 @@ public class Channel implements Bucket.Channel {
             @Override
             public void run(){
 
-                int total = bucket.count();
-                JSONArray objectVersions = new JSONArray();
-                String idKey = "id";
-                String versionKey = "v";
-                Bucket.ObjectCursor objects = bucket.allObjects();
+                String message;
+                synchronized(mIndexStatusLock) {
+                    if (mIndexStatusBuffer == null) {
+                        mIndexStatusBuffer = new StringBuilder(INDEX_STATUS_BUFFER_SIZE);
+                    }
+                    final StringBuilder buffer = mIndexStatusBuffer;
+                    buffer.setLength(0);
+                    buffer.append(COMMAND_INDEX_STATE).append(":{\"index\":[");
 
-                // collect all object keys and versions
-                while(objects.moveToNext()) {
-                    try {
-                        JSONObject objectData = new JSONObject();
-                        Syncable object = objects.getObject();
-                        objectData.put(idKey, object.getSimperiumKey());
-                        objectData.put(versionKey, object.getVersion());
-                        objectVersions.put(objectData);
-                    } catch (JSONException e) {
-                        Logger.log(TAG, "Unable to add object version", e);
+                    // collect all object keys and versions
+                    bucket.readKeyVersions(new GhostStorageProvider.VersionCallback(){
+
+                        boolean first = true;
+
+                        @Override
+                        public void onVersion(String key, int version){
+                            if (!first) buffer.append(',');
+                            first = false;
+                            buffer.append("{\"id\":").append(JSONObject.quote(key))
+                                .append(",\"v\":").append(version).append('}');
+                        }
+
+                    });
+
+                    // collect all pending change keys, ccids and source versions
+                    Collection<Change> pending = changeProcessor.pendingChanges();
+                    JSONArray pendingData = new JSONArray();
+                    for (Change change : pending) {
+                        try {
+                            JSONObject changeData = new JSONObject();
+                            changeData.put("id", change.getKey());
+                            changeData.put("sv", change.getVersion());
+                            changeData.put("ccid", change.getChangeId());
+                            pendingData.put(changeData);
+                        } catch (JSONException e) {
+                            Logger.log(TAG, "Unable to add change", e);
+                        }
                     }
-                }
 
-                // collect all pending change keys, ccids and source versions
-                Collection<Change> pending = changeProcessor.pendingChanges();
-                JSONArray pendingData = new JSONArray();
-                for (Change change : pending) {
+                    // add extra debugging info
+                    JSONObject extra = new JSONObject();
                     try {
-                        JSONObject changeData = new JSONObject();
-                        changeData.put("id", change.getKey());
-                        changeData.put("sv", change.getVersion());
-                        changeData.put("ccid", change.getChangeId());
-                        pendingData.put(changeData);
+                        extra.put("bucketName", bucket.getName());
+                        extra.put("build", Version.BUILD);
+                        extra.put("version", Version.NUMBER);
+                        extra.put("client", Version.NAME);
                     } catch (JSONException e) {
-                        Logger.log(TAG, "Unable to add change", e);
+                        Logger.log(TAG, "Unable to add extra info", e);
                     }
-                }
 
-                // set up the index information
-                JSONObject index = new JSONObject();
-                try {
-                    index.put("index", objectVersions);
-                    index.put("current", getChangeVersion());
-                    index.put("pending", pendingData);
-                } catch (JSONException e) {
-                    Logger.log(TAG, "Unable to build index response", e);
-                }
+                    buffer.append("],\"current\":").append(JSONObject.quote(getChangeVersion()))
+                        .append(",\"pending\":").append(pendingData)
+                        .append(",\"extra\":").append(extra)
+                        .append('}');
 
-                // add extra debugging info
-                JSONObject extra = new JSONObject();
-                try {
-                    extra.put("bucketName", bucket.getName());
-                    extra.put("build", Version.BUILD);
-                    extra.put("version", Version.NUMBER);
-                    extra.put("client", Version.NAME);
+                    message = buffer.toString();
 
-                    index.put("extra", extra);
-                } catch (JSONException e) {
-                    Logger.log(TAG, "Unable to add extra info", e);
+                    // don't hold on to the buffer of an unusually large bucket
+                    if (buffer.capacity() > INDEX_STATUS_BUFFER_MAX_SIZE) {
+                        mIndexStatusBuffer = null;
+                    }
                 }
 
-
-                sendMessage(String.format("%s:%s", COMMAND_INDEX_STATE, index));
+                sendMessage(message);
 
             }
 
@@ -560,6 +668,51 @@ public class Channel implements Bucket.Channel {
         return started;
     }
 
+    /**
+     * Maximum number of object requests the channel keeps in flight while
+     * downloading an index. The window starts small and grows toward this
+     * limit while round trip times stay flat.
+     */
+    public void setIndexWindowSize(int size){
+        mIndexWindowSize = size;
+    }
+
+    public int getIndexWindowSize(){
+        return mIndexWindowSize;
+    }
+
+    /**
+     * Request object data inline with index pages so objects are stored
+     * straight from the index without a separate e: request for each one
+     */
+    public void setIndexInlineData(boolean inline){
+        mIndexInlineData = inline;
+    }
+
+    public boolean isIndexInlineData(){
+        return mIndexInlineData;
+    }
+
+    /**
+     * Number of threads that patch the ghosts of a batch of remote changes
+     * ahead of applying them. Defaults to one per processor, up to
+     * REMOTE_CHANGE_MAX_THREADS. Less than 2 patches them while applying.
+     */
+    public void setRemoteChangeThreads(int threads){
+        mRemoteChangeThreads = threads;
+    }
+
+    public int getRemoteChangeThreads(){
+        return mRemoteChangeThreads;
+    }
+
+    /**
+     * Number of remote changes applied with a ghost patched ahead of time
+     */
+    public int getPreparedChangeCount(){
+        return mPreparedChangeCount;
+    }
+
     public boolean isConnected(){
         return connected;
     }
@@ -604,7 +757,7 @@ public class Channel implements Bucket.Channel {
         if (!hasChangeVersion()) {
             // the bucket has never gotten an index
             haveIndex = false;
-            initialCommand = new IndexQuery();
+            initialCommand = buildIndexQuery();
         } else {
             // retive changes since last cv
             haveIndex = true;
@@ -742,7 +895,8 @@ public class Channel implements Bucket.Channel {
         }
     }
 
-    static final String CURSOR_FORMAT = "%s::%s::%s";
+    static final String CURSOR_FORMAT = "%s:%s:%s::%s";
+    static final String INDEX_DATA_FLAG = "1";
     static final String QUERY_DELIMITER = ":";
     // static final Integer INDEX_MARK = 2;
     // static final Integer INDEX_LIMIT = 5;
@@ -754,6 +908,7 @@ public class Channel implements Bucket.Channel {
 
         private String mark = "";
         private Integer limit = INDEX_PAGE_SIZE;
+        private boolean data = mIndexInlineData;
 
         public IndexQuery(){}
 
@@ -775,7 +930,21 @@ public class Channel implements Bucket.Channel {
             if (limit > -1) {
                 limitString = limit.toString();
             }
-            return String.format(CURSOR_FORMAT, COMMAND_INDEX, mark, limitString);
+            return String.format(CURSOR_FORMAT, COMMAND_INDEX, data ? INDEX_DATA_FLAG : "", mark, limitString);
+        }
+
+    }
+
+    /**
+     * An index page and how many of its objects haven't been stored yet
+     */
+    private static class IndexPage {
+
+        final String mark;
+        int remaining = 0;
+
+        IndexPage(String mark){
+            this.mark = mark;
         }
 
     }
@@ -936,29 +1105,61 @@ public class Channel implements Bucket.Channel {
 
         public static final String INDEX_OBJECT_ID_KEY = "id";
         public static final String INDEX_OBJECT_VERSION_KEY = "v";
+        public static final String INDEX_OBJECT_DATA_KEY = "d";
 
         final private String cv;
         final private Bucket bucket;
+        // object versions from the index that have not been requested yet
         private List<String> queue = Collections.synchronizedList(new ArrayList<String>());
+        // object versions that have been requested mapped to when the request was sent
+        private Map<String,Long> inFlight = Collections.synchronizedMap(new HashMap<String,Long>());
         private IndexQuery nextQuery;
+        private boolean pageRequested = false;
+        // mark of the last page requested and the mark that was last saved
+        private String requestedMark, savedMark;
+        // pages with entries that still have to be stored, oldest first
+        private LinkedList<IndexPage> pages = new LinkedList<IndexPage>();
+        private Map<String,IndexPage> pageEntries = new HashMap<String,IndexPage>();
         private boolean complete = false;
         final private IndexProcessorListener listener;
         int indexedCount = 0;
 
+        // the number of e: requests allowed to be in flight, adjusted as replies come in
+        private int window;
+        final private int maxWindow;
+        private int repliesSinceResize = 0;
+        // limit for the next index page, sized from the bytes per entry seen so far
+        private int pageSize = INDEX_PAGE_SIZE;
+        // the last page was requested with object data
+        private boolean requestedData = mIndexInlineData;
+        // round trip times in nanoseconds, baseRtt is the lowest seen
+        private long baseRtt = 0, smoothedRtt = 0;
+
         public IndexProcessor(Bucket bucket, String cv, IndexProcessorListener listener){
+            this(bucket, cv, "", listener);
+        }
+
+        /**
+         * Processor for an index whose first page was requested with startMark
+         */
+        public IndexProcessor(Bucket bucket, String cv, String startMark, IndexProcessorListener listener){
             this.bucket = bucket;
             this.cv = cv;
             this.listener = listener;
+            requestedMark = startMark;
+            savedMark = startMark;
+            maxWindow = Math.max(1, mIndexWindowSize);
+            window = Math.min(INDEX_QUEUE_SIZE, maxWindow);
         }
 
         /**
-         * Receive an object's version data and store it. Send the request for the
-         * next object.
+         * Receive an object's version data and store it. Send requests for the
+         * next objects.
          */
         public void addObjectData(ObjectVersionData objectVersion)
         throws ObjectVersionUnexpectedException {
 
-            if (!queue.remove(objectVersion.toString()))
+            if (!completeRequest(objectVersion.toString()))
                 throw new ObjectVersionUnexpectedException(objectVersion);
 
             // build the ghost and update
@@ -973,43 +1174,82 @@ public class Channel implements Bucket.Channel {
             next();
         }
 
+        private void addInlineObject(String key, Integer version, JSONObject data){
+            if (bucket.hasKeyVersion(key, version)) return;
+            bucket.addObjectWithGhost(new Ghost(key, version, data));
+            indexedCount ++;
+            if(indexedCount % 10 == 0) {
+                notifyProgress();
+            }
+        }
+
+        /**
+         * The requested object version could not be retrieved, release its spot
+         * in the window so the rest of the index can continue.
+         */
+        public void skipObjectVersion(ObjectVersion objectVersion){
+            if (completeRequest(objectVersion.toString())) {
+                next();
+            }
+        }
+
         public void start(JSONObject indexPage){
             addIndexPage(indexPage);
         }
 
-        public void next(){
+        public void start(JSONObject indexPage, int payloadLength){
+            addIndexPage(indexPage, payloadLength);
+        }
 
-            // if queue isn't empty, pull it off the top and send request
-            if (!queue.isEmpty()) {
-                String versionString = queue.get(0);
+        /**
+         * Fill the request window with e: requests for queued object versions,
+         * request the next index page once the queue is drained and finish once
+         * every request has been answered.
+         */
+        synchronized public void next(){
+            sendRequests();
+            savePosition();
+        }
+
+        private void sendRequests(){
+
+            while (!queue.isEmpty() && inFlight.size() < window) {
+                String versionString = queue.remove(0);
                 ObjectVersion version;
                 try {
                     version = ObjectVersion.parseString(versionString);
                 } catch (ObjectVersionParseException e) {
                     Logger.log(TAG, "Failed to parse version string, skipping", e);
-                    queue.remove(versionString);
-                    next();
-                    return;
+                    entryDone(versionString);
+                    continue;
                 }
 
-                if (!bucket.hasKeyVersion(version.getKey(), version.getVersion())) {
-                    sendMessage(String.format("%s:%s", COMMAND_ENTITY, version.toString()));
-                } else {
+                if (bucket.hasKeyVersion(version.getKey(), version.getVersion())) {
                     Logger.log(TAG, String.format("Already have %s requesting next object", version));
-                    queue.remove(versionString);
-                    next();
-                    return;
+                    entryDone(versionString);
+                    continue;
                 }
-                return;
+
+                inFlight.put(versionString, System.nanoTime());
+                sendMessage(String.format("%s:%s", COMMAND_ENTITY, version.toString()));
             }
 
-            // if index is empty and we have a next request, make the request
+            if (!queue.isEmpty()) return;
+
+            // queue is drained, request the next page while the window finishes
             if (nextQuery != null){
-                sendMessage(nextQuery.toString());
+                IndexQuery query = nextQuery;
+                nextQuery = null;
+                pageRequested = true;
+                requestedMark = query.mark;
+                requestedData = query.data;
+                sendMessage(query.toString());
                 return;
             }
 
-            // no queue, no next query, all done!
+            if (complete || pageRequested || !inFlight.isEmpty()) return;
+
+            // no queue, no next query, nothing in flight, all done!
             complete = true;
             notifyDone();
 
@@ -1019,7 +1259,15 @@ public class Channel implements Bucket.Channel {
          * Add the page of data, but only if indexPage cv matches. Detects when it's the
          * last page due to absence of cursor mark
          */
-        public Boolean addIndexPage(JSONObject indexPage){
+        synchronized public Boolean addIndexPage(JSONObject indexPage){
+            return addIndexPage(indexPage, 0);
+        }
+
+        /**
+         * Add the page and size the next page request so it carries about
+         * INDEX_PAGE_BYTES of payload
+         */
+        synchronized public Boolean addIndexPage(JSONObject indexPage, int payloadLength){
 
             String currentIndex;
             try {
@@ -1033,6 +1281,8 @@ public class Channel implements Bucket.Channel {
                 return false;
             }
 
+            pageRequested = false;
+
             JSONArray indexVersions;
             try {
                 indexVersions = indexPage.getJSONArray(INDEX_VERSIONS_KEY);
@@ -1041,21 +1291,30 @@ public class Channel implements Bucket.Channel {
                 return true;
             }
 
+            IndexPage page = new IndexPage(requestedMark);
+            pages.add(page);
+
             if (indexVersions.length() > 0) {
-                // query for each item that we don't have locally in the bucket
+                // queue each item, next() skips the ones we already have locally
                 for (int i=0; i<indexVersions.length(); i++) {
                     try {
 
                         JSONObject version = indexVersions.getJSONObject(i);
                         String key  = version.getString(INDEX_OBJECT_ID_KEY);
                         Integer versionNumber = version.getInt(INDEX_OBJECT_VERSION_KEY);
+                        JSONObject data = version.optJSONObject(INDEX_OBJECT_DATA_KEY);
+                        if (data != null) {
+                            // the page carried the object, store it without an e: request
+                            addInlineObject(key, versionNumber, data);
+                            continue;
+                        }
                         ObjectVersion objectVersion = new ObjectVersion(key, versionNumber);
-                        queue.add(objectVersion.toString());
-                        // if (!bucket.hasKeyVersion(key, versionNumber)) {
-                        //     // we need to get the remote object
-                        //     index.add(objectVersion.toString());
-                        //     // sendMessage(String.format("%s:%s.%d", COMMAND_ENTITY, key, versionNumber));
-                        // }
+                        String versionString = objectVersion.toString();
+                        if (!pageEntries.containsKey(versionString)) {
+                            pageEntries.put(versionString, page);
+                            page.remaining ++;
+                        }
+                        queue.add(versionString);
 
                     } catch (JSONException e) {
                         Logger.log(TAG, String.format("Error processing index: %d", i), e);
@@ -1074,9 +1333,14 @@ public class Channel implements Bucket.Channel {
                 }
             }
 
+            // pages without object data keep the fixed page size
+            if (requestedData && payloadLength > 0 && indexVersions.length() > 0) {
+                long bytesPerEntry = Math.max(1, payloadLength / indexVersions.length());
+                pageSize = (int) Math.max(INDEX_PAGE_MIN_SIZE, Math.min(INDEX_PAGE_MAX_SIZE, INDEX_PAGE_BYTES / bytesPerEntry));
+            }
+
             if (nextMark != null && nextMark.length() > 0) {
-                nextQuery = new IndexQuery(nextMark);
-                // sendMessage(nextQuery.toString());
+                nextQuery = new IndexQuery(nextMark, pageSize);
             } else {
                 nextQuery = null;
             }
@@ -1091,6 +1355,63 @@ public class Channel implements Bucket.Channel {
             return complete;
         }
 
+        /**
+         * Removes the request from the in flight requests and uses its round trip
+         * time to resize the window. Returns false if the version was never requested.
+         */
+        synchronized private boolean completeRequest(String versionString){
+            Long sentAt = inFlight.remove(versionString);
+            if (sentAt == null) return false;
+            entryDone(versionString);
+
+            long rtt = System.nanoTime() - sentAt;
+            if (baseRtt == 0 || rtt < baseRtt) baseRtt = rtt;
+            smoothedRtt = smoothedRtt == 0 ? rtt : (smoothedRtt * 7 + rtt) / 8;
+
+            // resize once per window's worth of replies
+            repliesSinceResize ++;
+            if (repliesSinceResize >= window) {
+                repliesSinceResize = 0;
+                if (smoothedRtt <= baseRtt * 2) {
+                    // replies are not queueing up behind each other, open the window
+                    window = Math.min(maxWindow, window * 2);
+                } else if (smoothedRtt > baseRtt * 4) {
+                    // latency is growing with the window, back off
+                    window = Math.max(1, window / 2);
+                }
+            }
+            return true;
+        }
+
+        private void entryDone(String versionString){
+            IndexPage page = pageEntries.remove(versionString);
+            if (page != null) page.remaining --;
+        }
+
+        /**
+         * Persist the mark of the oldest page that still has objects to store
+         * so an interrupted index can resume there. Only changes once per page.
+         */
+        private void savePosition(){
+            while (!pages.isEmpty() && pages.getFirst().remaining <= 0) {
+                pages.removeFirst();
+            }
+            String mark;
+            if (!pages.isEmpty()) {
+                mark = pages.getFirst().mark;
+            } else if (nextQuery != null) {
+                mark = nextQuery.mark;
+            } else if (pageRequested) {
+                mark = requestedMark;
+            } else {
+                // last page is done, indexComplete clears the saved mark
+                return;
+            }
+            if (mark == null || mark.length() == 0 || mark.equals(savedMark)) return;
+            savedMark = mark;
+            bucket.saveIndexMark(cv, mark);
+        }
+
         private void notifyDone(){
             bucket.indexComplete(cv);
             listener.onComplete(cv);
@@ -1106,6 +1427,47 @@ public class Channel implements Bucket.Channel {
         return haveIndex;
     }
 
+    /**
+     * Patches a lane's remote changes in order. A key's remaining changes are
+     * skipped after it is removed or once one of them can't be patched, they
+     * are left for the processor to apply, or reject, against the saved ghost.
+     */
+    private class PrepareTask implements Callable<Void> {
+
+        private final List<RemoteChange> mChanges;
+
+        PrepareTask(List<RemoteChange> changes){
+            mChanges = changes;
+        }
+
+        @Override
+        public Void call(){
+            Map<String,Ghost> ghosts = new HashMap<String,Ghost>();
+            Set<String> skipped = new HashSet<String>();
+            for (RemoteChange change : mChanges) {
+                String key = change.getKey();
+                if (skipped.contains(key)) continue;
+                if (change.isRemoveOperation()) {
+                    skipped.add(key);
+                    continue;
+                }
+                Ghost ghost = ghosts.get(key);
+                try {
+                    if (ghost == null) {
+                        ghost = change.isAddOperation() ? new Ghost(key, 0, new JSONObject()) : bucket.getGhost(key);
+                    }
+                    ghosts.put(key, change.prepare(ghost));
+                } catch (GhostMissingException e) {
+                    skipped.add(key);
+                } catch (RemoteChangeInvalidException e) {
+                    skipped.add(key);
+                }
+            }
+            return null;
+        }
+
+    }
+
     /**
      * ChangeProcessor should perform operations on a seperate thread as to not block the websocket
      * ideally it will be a FIFO queue processor so as changes are brought in they can be appended.
@@ -1113,13 +1475,13 @@ public class Channel implements Bucket.Channel {
      */
     private class ChangeProcessor implements Runnable, Change.OnRetryListener {
 
-        // wait 5 seconds for retries
-        public static final long RETRY_DELAY_MS = 5000; 
-        private List<JSONObject> remoteQueue = Collections.synchronizedList(new ArrayList<JSONObject>(10));
-        private List<Change> localQueue = Collections.synchronizedList(new ArrayList<Change>());
+        // producers add without taking mLock, the processor drains them
+        private Queue<RemoteChange> remoteQueue = new ConcurrentLinkedQueue<RemoteChange>();
+        private Queue<Change> incomingQueue = new ConcurrentLinkedQueue<Change>();
+        private ChangeQueue localQueue = new ChangeQueue();
         private Map<String,Change> pendingChanges = Collections.synchronizedMap(new HashMap<String,Change>());
-        private Timer mRetryTimer;
         private Thread mThread;
+        private ExecutorService mPrepareWorkers;
         private final Object mLock = new Object();
         private final Object mRunLock = new Object();
 
@@ -1141,42 +1503,54 @@ public class Channel implements Bucket.Channel {
         }
 
         public void addChanges(JSONArray changes) {
-            synchronized(mLock){
-                int length = changes.length();
-                Logger.log(TAG, String.format("Add remote changes to processor %d", length));
-                log(LOG_DEBUG, String.format(Locale.US, "Adding %d remote changes to queue", length));
-                for (int i = 0; i < length; i++) {
-                    JSONObject change = changes.optJSONObject(i);
-                    if (change != null) {
-                        remoteQueue.add(change);
-                    }
+            int length = changes.length();
+            Logger.log(TAG, String.format("Add remote changes to processor %d", length));
+            log(LOG_DEBUG, String.format(Locale.US, "Adding %d remote changes to queue", length));
+            for (int i = 0; i < length; i++) {
+                JSONObject change = changes.optJSONObject(i);
+                if (change == null) continue;
+                try {
+                    remoteQueue.add(RemoteChange.buildFromMap(change));
+                } catch (JSONException e) {
+                    Logger.log(TAG, "Failed to build remote change", e);
                 }
-                start();
             }
+            start();
         }
 
         /**
-         * Local change to be queued
+         * Queue a single remote change, call start once the batch is queued
+         */
+        public void addRemoteChange(RemoteChange change) {
+            remoteQueue.add(change);
+        }
+
+        /**
+         * Local change to be queued, compression against already queued
+         * changes happens on the processor thread
          */
         public void addChange(Change change){
-            synchronized(mLock) {
-                // compress all changes for this same key
-                log(LOG_DEBUG, String.format(Locale.US, "Adding new change to queue %s.%d %s %s",
-                    change.getKey(), change.getVersion(), change.getOperation(), change.getChangeId()));
-
-                Iterator<Change> iterator = localQueue.iterator();
-                boolean isModify = change.isModifyOperation();
-                while(iterator.hasNext() && isModify){
-                    Change queued = iterator.next();
-                    if(queued.getKey().equals(change.getKey())){
+            log(LOG_DEBUG, String.format(Locale.US, "Adding new change to queue %s.%d %s %s",
+                change.getKey(), change.getVersion(), change.getOperation(), change.getChangeId()));
+            serializer.onQueueChange(change);
+            incomingQueue.add(change);
+            start();
+        }
+
+        /**
+         * Move incoming changes into the local queue, a modify replaces all
+         * queued changes for the same key. Caller must hold mLock.
+         */
+        private void drainIncomingChanges(){
+            Change change;
+            while ((change = incomingQueue.poll()) != null) {
+                if (change.isModifyOperation()) {
+                    for (Change queued : localQueue.removeKey(change.getKey())) {
                         serializer.onDequeueChange(queued);
-                        iterator.remove();
                     }
                 }
-                serializer.onQueueChange(change);
                 localQueue.add(change);
             }
-            start();
         }
 
         public void start(){
@@ -1184,9 +1558,6 @@ public class Channel implements Bucket.Channel {
             if (!started) {
                 return;
             }
-            if (mRetryTimer == null) {
-                mRetryTimer = new Timer();
-            }
             if (mThread == null || mThread.getState() == Thread.State.TERMINATED) {
                 mThread = new Thread(this, String.format("simperium.processor.%s", getBucket().getName()));
                 mThread.start();
@@ -1225,21 +1596,17 @@ public class Channel implements Bucket.Channel {
                 Logger.log(TAG, String.format("Checking for queued changes %d", localQueue.size()));
                 // if we have have any remote changes to process we have work to do
                 if (!remoteQueue.isEmpty()) return true;
+                drainIncomingChanges();
                 // if our local queue is empty we don't have work to do
                 if (localQueue.isEmpty()) return false;
                 // if we have queued changes, if there's no corresponding pending change then there's still work to do
-                Iterator<Change> changes = localQueue.iterator();
-                while(changes.hasNext()){
-                    Change change = changes.next();
-                    if (!pendingChanges.containsKey(change.getKey())) return true;
-                }
-                return false;
+                return localQueue.hasSendable(pendingChanges);
             }
         }
 
         protected boolean hasPendingChanges(){
             synchronized(mLock) {
-                return !pendingChanges.isEmpty() || !localQueue.isEmpty();
+                return !pendingChanges.isEmpty() || !localQueue.isEmpty() || !incomingQueue.isEmpty();
             }
         }
 
@@ -1274,8 +1641,16 @@ public class Channel implements Bucket.Channel {
                     }
                 }
             }
-            mRetryTimer.cancel();
-            mRetryTimer = null;
+            if (mPrepareWorkers != null) {
+                mPrepareWorkers.shutdownNow();
+                mPrepareWorkers = null;
+            }
+            // stop retrying until the processor is restarted
+            synchronized(pendingChanges) {
+                for (Change change : pendingChanges.values()) {
+                    change.resetTimer();
+                }
+            }
             Logger.log(TAG, String.format("%s - Queue interrupted", Thread.currentThread().getName()));
         }
 
@@ -1283,82 +1658,163 @@ public class Channel implements Bucket.Channel {
         private void processRemoteChanges()
         throws InterruptedException {
             synchronized(mLock) {
-                Logger.log(TAG, String.format("Processing remote changes %d", remoteQueue.size()));
+                Logger.log(TAG, "Processing remote changes");
                 // bail if thread is interrupted
-                while(remoteQueue.size() > 0){
-                    if (Thread.interrupted()) {
-                        throw new InterruptedException();
-                    }
-                    // take an item off the queue
-                    RemoteChange remoteChange = null;
-                    try {
-                        remoteChange = RemoteChange.buildFromMap(remoteQueue.remove(0));
-                    } catch (JSONException e) {
-                        Logger.log(TAG, "Failed to build remote change", e);
-                        continue;
-                    }
-                    log(LOG_DEBUG, String.format("Processing remote change with cv: %s", remoteChange.getChangeVersion()));
-                    Boolean acknowledged = false;
-                    // synchronizing on pendingChanges since we're looking up and potentially
-                    // removing an entry
-                    Change change = null;
-                    change = pendingChanges.get(remoteChange.getKey());
-                    if (remoteChange.isAcknowledgedBy(change)) {
-                        log(LOG_DEBUG, String.format("Found pending change for remote change <%s>: %s", remoteChange.getChangeVersion(), change.getChangeId()));
-                        serializer.onAcknowledgeChange(change);
-                        // change is no longer pending so remove it
-                        pendingChanges.remove(change.getKey());
-                        if (remoteChange.isError()) {
-                            Logger.log(TAG, String.format("Change error response! %d %s", remoteChange.getErrorCode(), remoteChange.getKey()));
-                            onError(remoteChange, change);
-                        } else {
-                            try {
-                                Ghost ghost = onAcknowledged(remoteChange, change);
-                                Change compressed = null;
-                                Iterator<Change> queuedChanges = localQueue.iterator();
-                                while(queuedChanges.hasNext()){
-                                    Change queuedChange = queuedChanges.next();
-                                    if (queuedChange.getKey().equals(change.getKey())) {
-                                        queuedChanges.remove();
+                RemoteChange remoteChange;
+                int batched = 0;
+                boolean successful = false;
+                // keys whose prepared changes can't be used in this batch
+                Set<String> failedKeys = new HashSet<String>();
+                try {
+                    while(!remoteQueue.isEmpty()){
+                        if (batched == REMOTE_CHANGE_BATCH_SIZE) {
+                            bucket.endRemoteChanges(true);
+                            batched = 0;
+                        }
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        if (batched == 0) {
+                            // ghosts are read before the batch's transaction begins
+                            prepareRemoteChanges();
+                            failedKeys.clear();
+                            bucket.beginRemoteChanges();
+                        }
+                        remoteChange = remoteQueue.poll();
+                        batched ++;
+                        log(LOG_DEBUG, String.format("Processing remote change with cv: %s", remoteChange.getChangeVersion()));
+                        Boolean acknowledged = false;
+                        // synchronizing on pendingChanges since we're looking up and potentially
+                        // removing an entry
+                        Change change = null;
+                        change = pendingChanges.get(remoteChange.getKey());
+                        if (remoteChange.isAcknowledgedBy(change)) {
+                            log(LOG_DEBUG, String.format("Found pending change for remote change <%s>: %s", remoteChange.getChangeVersion(), change.getChangeId()));
+                            serializer.onAcknowledgeChange(change);
+                            // change is no longer pending so remove it
+                            pendingChanges.remove(change.getKey());
+                            if (remoteChange.isError()) {
+                                Logger.log(TAG, String.format("Change error response! %d %s", remoteChange.getErrorCode(), remoteChange.getKey()));
+                                onError(remoteChange, change);
+                            } else {
+                                try {
+                                    Ghost ghost = onAcknowledged(remoteChange, change);
+                                    Change compressed = null;
+                                    drainIncomingChanges();
+                                    for (Change queuedChange : localQueue.removeKey(change.getKey())) {
                                         if (!remoteChange.isRemoveOperation()) {
-                                            compressed = queuedChange.reapplyOrigin(ghost.getVersion(), ghost.getDiffableValue());
+                                            compressed = queuedChange.reapplyOrigin(ghost.getVersion(), ghost.getDocument());
                                         }
                                     }
+                                    if (compressed != null) {
+                                        localQueue.add(compressed);
+                                    }
+                                } catch (RemoteChangeInvalidException e){
+                                    Logger.log(TAG, "Remote change could not be acknowledged", e);
+                                    log(LOG_DEBUG, String.format("Failed to acknowledge change <%s> Reason: %s", remoteChange.getChangeVersion(), e.getMessage()));
                                 }
-                                if (compressed != null) {
-                                    localQueue.add(compressed);
-                                }
-                            } catch (RemoteChangeInvalidException e){
-                                Logger.log(TAG, "Remote change could not be acknowledged", e);
-                                log(LOG_DEBUG, String.format("Failed to acknowledge change <%s> Reason: %s", remoteChange.getChangeVersion(), e.getMessage()));
                             }
-                        }
-                    } else {
-                        if (remoteChange.isError()){
-                            Logger.log(TAG, String.format("Remote change %s was an error but not acknowledged", remoteChange));
-                            log(LOG_DEBUG, String.format("Received error response for change but not waiting for any ccids <%s>", remoteChange.getChangeVersion()));
                         } else {
-                            try {
-                                bucket.applyRemoteChange(remoteChange);
-                                Logger.log(TAG, String.format("Succesfully applied remote change <%s>", remoteChange.getChangeVersion()));
-                            } catch (RemoteChangeInvalidException e) {
-                                Logger.log(TAG, "Remote change could not be applied", e);
-                                log(LOG_DEBUG, String.format("Failed to apply change <%s> Reason: %s", remoteChange.getChangeVersion(), e.getMessage()));
-                                // request the full object for the new version
-                                ObjectVersion version = new ObjectVersion(remoteChange.getKey(), remoteChange.getObjectVersion());
-                                sendMessage(String.format("%s:%s", COMMAND_ENTITY, version));
+                            if (remoteChange.isError()){
+                                Logger.log(TAG, String.format("Remote change %s was an error but not acknowledged", remoteChange));
+                                log(LOG_DEBUG, String.format("Received error response for change but not waiting for any ccids <%s>", remoteChange.getChangeVersion()));
+                            } else {
+                                if (failedKeys.contains(remoteChange.getKey())) {
+                                    remoteChange.discardPrepared();
+                                }
+                                try {
+                                    bucket.applyRemoteChange(remoteChange);
+                                    if (remoteChange.isPrepared()) {
+                                        mPreparedChangeCount ++;
+                                    }
+                                    Logger.log(TAG, String.format("Succesfully applied remote change <%s>", remoteChange.getChangeVersion()));
+                                } catch (RemoteChangeInvalidException e) {
+                                    failedKeys.add(remoteChange.getKey());
+                                    Logger.log(TAG, "Remote change could not be applied", e);
+                                    log(LOG_DEBUG, String.format("Failed to apply change <%s> Reason: %s", remoteChange.getChangeVersion(), e.getMessage()));
+                                    // request the full object for the new version
+                                    ObjectVersion version = new ObjectVersion(remoteChange.getKey(), remoteChange.getObjectVersion());
+                                    sendMessage(String.format("%s:%s", COMMAND_ENTITY, version));
+                                }
                             }
                         }
-                    }
-                    if (!remoteChange.isError() && remoteChange.isRemoveOperation()) {
-                        Iterator<Change> iterator = localQueue.iterator();
-                        while(iterator.hasNext()){
-                            Change queuedChange = iterator.next();
-                            if (queuedChange.getKey().equals(remoteChange.getKey())) {
-                                iterator.remove();
-                            }
+                        if (!remoteChange.isError() && remoteChange.isRemoveOperation()) {
+                            drainIncomingChanges();
+                            localQueue.removeKey(remoteChange.getKey());
                         }
                     }
+                    successful = true;
+                } catch (InterruptedException e) {
+                    // every change applied so far is complete
+                    successful = true;
+                    throw e;
+                } finally {
+                    if (batched > 0) {
+                        bucket.endRemoteChanges(successful);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Patch the ghosts for the next batch of remote changes on worker
+         * threads. Changes are split by key so each object's changes are patched
+         * in order on the same thread, each one from the ghost the previous one
+         * produced. The processor then applies them in the order they were
+         * received. Keys with a pending change are left to the processor since
+         * their changes may be acknowledgements.
+         */
+        private void prepareRemoteChanges()
+        throws InterruptedException {
+            int threads = mRemoteChangeThreads;
+            if (threads < 2) return;
+
+            List<RemoteChange> changes = new ArrayList<RemoteChange>(REMOTE_CHANGE_BATCH_SIZE);
+            Iterator<RemoteChange> queued = remoteQueue.iterator();
+            for (int i = 0; i < REMOTE_CHANGE_BATCH_SIZE && queued.hasNext(); i++) {
+                RemoteChange change = queued.next();
+                if (change.isError() || pendingChanges.containsKey(change.getKey())) {
+                    continue;
+                }
+                changes.add(change);
+            }
+            if (changes.size() < REMOTE_CHANGE_PREPARE_MIN_SIZE) return;
+
+            List<List<RemoteChange>> lanes = new ArrayList<List<RemoteChange>>(threads);
+            for (int i = 0; i < threads; i++) {
+                lanes.add(new ArrayList<RemoteChange>());
+            }
+            for (RemoteChange change : changes) {
+                lanes.get((change.getKey().hashCode() & Integer.MAX_VALUE) % threads).add(change);
+            }
+
+            if (mPrepareWorkers == null) {
+                mPrepareWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+
+                    int mCount = 0;
+
+                    @Override
+                    public Thread newThread(Runnable task){
+                        Thread thread = new Thread(task, String.format(Locale.US, "simperium.processor.%s-%d", bucket.getName(), ++mCount));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+            }
+
+            List<Future<Void>> preparing = new ArrayList<Future<Void>>(threads);
+            for (List<RemoteChange> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    preparing.add(mPrepareWorkers.submit(new PrepareTask(lane)));
+                }
+            }
+            for (Future<Void> lane : preparing) {
+                try {
+                    lane.get();
+                } catch (ExecutionException e) {
+                    // unprepared changes are patched when they are applied
+                    Logger.log(TAG, "Unable to prepare remote changes", e.getCause());
                 }
             }
         }
@@ -1366,54 +1822,51 @@ public class Channel implements Bucket.Channel {
         public void processLocalChanges()
         throws InterruptedException {
             synchronized(mLock) {
+                drainIncomingChanges();
                 if (localQueue.isEmpty()) {
                     return;
                 }
-                final List<Change> sendLater = new ArrayList<Change>();
-                // find the first local change whose key does not exist in the pendingChanges and there are no remote changes
-                while(!localQueue.isEmpty()){
+                // the oldest change of every key without a pending change, keys
+                // with a change that has not been acked are sent later
+                List<Change> sendable = localQueue.removeSendable(pendingChanges);
+                // queued changes must survive a restart once the server can
+                // acknowledge them, pending changes were written before their
+                // first send
+                if (connected && !sendable.isEmpty() && serializer instanceof JournaledSerializer) {
+                    ((JournaledSerializer) serializer).sync();
+                }
+                for (int i = 0; i < sendable.size(); i++) {
                     if (Thread.interrupted()) {
-                        localQueue.addAll(0, sendLater);
+                        for (Change unsent : sendable.subList(i, sendable.size())) {
+                            localQueue.addFirst(unsent);
+                        }
                         throw new InterruptedException();
                     }
 
-                    // take the first change of the queue
-                    Change localChange = localQueue.remove(0);
-                        // check if there's a pending change with the same key
-                    if (pendingChanges.containsKey(localChange.getKey())) {
-                        // we have a change for this key that has not been acked
-                        // so send it later
-                        sendLater.add(localChange);
-                        // let's get the next change
-                    } else {
-                        try {
-                            // add the change to pending changes
-                            pendingChanges.put(localChange.getKey(), localChange);
-                            // send the change to simperium, if the change ends up being empty
-                            // then we'll just skip it
-                            sendChange(localChange);
-                            localChange.setOnRetryListener(this);
-                            // starts up the timer
-                            mRetryTimer.scheduleAtFixedRate(localChange.getRetryTimer(), RETRY_DELAY_MS, RETRY_DELAY_MS);
-                        } catch (ChangeNotSentException e) {
-                            pendingChanges.remove(localChange.getKey());
-                        }
+                    Change localChange = sendable.get(i);
+                    try {
+                        // add the change to pending changes
+                        pendingChanges.put(localChange.getKey(), localChange);
+                        // send the change to simperium, if the change ends up being empty
+                        // then we'll just skip it
+                        sendChange(localChange);
+                        localChange.setOnRetryListener(this);
+                        // starts up the timer
+                        localChange.scheduleRetry(mScheduler);
+                    } catch (ChangeNotSentException e) {
+                        pendingChanges.remove(localChange.getKey());
                     }
                 }
-                localQueue.addAll(0, sendLater);
             }
         }
 
         private void resendPendingChanges(){
-            if (mRetryTimer == null) {
-                mRetryTimer = new Timer();
-            }
             synchronized(mLock){
                 // resend all pending changes
                 for (Map.Entry<String, Change> entry : pendingChanges.entrySet()) {
                     Change change = entry.getValue();
                     change.setOnRetryListener(this);
-                    mRetryTimer.scheduleAtFixedRate(change.getRetryTimer(), RETRY_DELAY_MS, RETRY_DELAY_MS);
+                    change.scheduleRetry(mScheduler);
                 }
             }
         }
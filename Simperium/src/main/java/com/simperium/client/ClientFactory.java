@@ -6,6 +6,7 @@
 package com.simperium.client;
 
 import com.simperium.storage.StorageProvider;
+import com.simperium.util.TimingWheel;
 
 import java.util.concurrent.Executor;
 
@@ -17,5 +18,6 @@ public interface ClientFactory {
     public GhostStorageProvider buildGhostStorageProvider();
     public ObjectCacheProvider buildObjectCacheProvider();
     public Executor buildExecutor();
+    public TimingWheel buildScheduler();
 
 }
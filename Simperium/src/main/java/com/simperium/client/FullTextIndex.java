@@ -21,6 +21,10 @@ public class FullTextIndex<T extends Syncable> {
         return mKeys;
     }
 
+    Indexer getIndexer(){
+        return mIndexer;
+    }
+
     public Map<String,String> index(T object){
         return mIndexer.index(mKeys, object);
     }
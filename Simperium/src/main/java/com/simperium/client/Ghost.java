@@ -1,5 +1,8 @@
 package com.simperium.client;
 
+import com.simperium.util.Document;
+import com.simperium.util.JSONDiff;
+
 import org.json.JSONObject;
 
 import java.util.Locale;
@@ -9,6 +12,7 @@ public class Ghost implements Diffable {
     private String key;
     private Integer version = 0;
     private JSONObject properties;
+    private Document document;
 
     public Ghost(String key){
         this(key, 0, new JSONObject());
@@ -21,6 +25,17 @@ public class Ghost implements Diffable {
         // copy the properties
         this.properties = properties;
     }
+
+    /**
+     * Ghost backed by an immutable document, the JSON value is built when
+     * first requested
+     */
+    public Ghost(String key, Integer version, Document document){
+        super();
+        this.key = key;
+        this.version = version;
+        this.document = document;
+    }
     public String getSimperiumKey(){
         return key;
     }
@@ -28,7 +43,35 @@ public class Ghost implements Diffable {
         return version;
     }
     public JSONObject getDiffableValue(){
-        return properties;
+        synchronized(this){
+            if (properties == null && document != null) {
+                properties = document.toJSON();
+            }
+            return properties;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the ghost's value that can be shared freely
+     */
+    public Document getDocument(){
+        synchronized(this){
+            if (document == null) {
+                document = properties == null ? Document.EMPTY : Document.fromJSON(properties);
+            }
+            return document;
+        }
+    }
+
+    /**
+     * New JSON copy of the ghost's value, made from the document when there
+     * is one so a ghost loaded as JSON isn't converted just to be copied
+     */
+    public JSONObject copyDiffableValue(){
+        synchronized(this){
+            if (document != null) return document.toJSON();
+            return properties == null ? new JSONObject() : JSONDiff.deepCopy(properties);
+        }
     }
     public String getVersionId(){
         return String.format(Locale.US, "%s.%d", key, version);
@@ -1,6 +1,11 @@
 package com.simperium.client;
 
 public interface GhostStorageProvider {
+
+    public interface VersionCallback {
+        public void onVersion(String key, int version);
+    }
+
     /**
      * Check if the store has a change version for the provided bucket
      */
@@ -17,6 +22,29 @@ public interface GhostStorageProvider {
      * Updates the change version for the given bucket
      */
     public void setChangeVersion(Bucket bucket, String version);
+    /**
+     * Hold change versions set for the bucket until the batch ends so a batch
+     * of remote changes saves its change version once
+     */
+    public void beginChangeVersionBatch(Bucket bucket);
+    /**
+     * Save the last change version set during the batch, or discard it when
+     * the batch's writes were rolled back
+     */
+    public void endChangeVersionBatch(Bucket bucket, boolean successful);
+    /**
+     * Remember where an unfinished index download for the change version cv
+     * can resume, a null mark clears it
+     */
+    public void setIndexMark(Bucket bucket, String cv, String mark);
+    /**
+     * Returns the saved index mark or null if there is no unfinished index
+     */
+    public String getIndexMark(Bucket bucket);
+    /**
+     * Returns the change version of the unfinished index
+     */
+    public String getIndexChangeVersion(Bucket bucket);
     /**
      * Checks if there is a ghost for given bucket and key
      */
@@ -25,6 +53,16 @@ public interface GhostStorageProvider {
      * Builds a ghost from the provided bucket and key
      */
     public Ghost getGhost(Bucket bucket, String key) throws GhostMissingException;
+    /**
+     * Returns the version of the ghost with the given key or null if there is
+     * no ghost, without loading the ghost's data
+     */
+    public Integer getGhostVersion(Bucket bucket, String key);
+    /**
+     * Calls the callback with the key and version of every ghost in the
+     * bucket, reading them in pages and without loading ghost data
+     */
+    public void readVersions(Bucket bucket, VersionCallback callback);
     /**
      * Saves the provided ghost to the bucket
      */
@@ -0,0 +1,551 @@
+package com.simperium.client;
+
+import com.simperium.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the keys matched by a query up to date as the bucket changes. Each
+ * changed object is checked against the query's conditions and sorters in
+ * memory and the listener is told exactly where rows were inserted, updated,
+ * moved or removed. The query only runs again when a change can't be decided
+ * in memory: full text matches, offsets, multi-valued index names, removals
+ * from a full limited window and bulk index or reset events.
+ *
+ * Listener methods are called in order, without holding the query's lock, on
+ * the thread that changed the bucket or on another thread that is already
+ * delivering events.
+ */
+public class LiveQuery<T extends Syncable> implements Bucket.OnSaveObjectListener<T>,
+    Bucket.OnDeleteObjectListener<T>, Bucket.OnNetworkChangeListener<T> {
+
+    public static final String TAG = "Simperium.LiveQuery";
+
+    public interface Listener<T extends Syncable> {
+        void onInsert(LiveQuery<T> query, int position, String key);
+        void onUpdate(LiveQuery<T> query, int position, String key);
+        void onMove(LiveQuery<T> query, int from, int to, String key);
+        void onRemove(LiveQuery<T> query, int position, String key);
+        /**
+         * The query ran again, any position may have changed
+         */
+        void onReload(LiveQuery<T> query);
+    }
+
+    /**
+     * Thrown when a change can't be applied without running the query
+     */
+    private static class UndecidedException extends Exception {
+        UndecidedException(String reason){
+            super(reason);
+        }
+    }
+
+    /**
+     * A change to the results waiting to be delivered to the listener
+     */
+    private static class Event {
+
+        static final int INSERT = 0, UPDATE = 1, MOVE = 2, REMOVE = 3, RELOAD = 4;
+
+        final int type;
+        final int from, to;
+        final String key;
+
+        Event(int type, int from, int to, String key){
+            this.type = type;
+            this.from = from;
+            this.to = to;
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * A matched object with the values it is sorted by
+     */
+    private static class Row {
+
+        final String key;
+        final Object[] values;
+
+        Row(String key, Object[] values){
+            this.key = key;
+            this.values = values;
+        }
+
+    }
+
+    /**
+     * A reload that is running and the rows of the keys updated meanwhile,
+     * null for keys that were removed or no longer match
+     */
+    private static class PendingReload {
+
+        final int sequence;
+        final Map<String,Row> updates = new HashMap<String,Row>();
+
+        PendingReload(int sequence){
+            this.sequence = sequence;
+        }
+
+    }
+
+    // times a reload runs the query again when its updates can't be replayed
+    static final int RELOAD_MAX_ATTEMPTS = 3;
+
+    private final Bucket<T> mBucket;
+    private final Query<T> mQuery;
+    private final List<Query.Sorter> mSorters;
+    private final Comparator<Row> mComparator;
+    private final Object mLock = new Object();
+    private final List<Row> mRows = new ArrayList<Row>();
+    private final Map<String,Row> mRowsByKey = new HashMap<String,Row>();
+    // the query can't be evaluated in memory
+    private final boolean mAlwaysReload;
+    // the last result may contain a key more than once
+    private boolean mAmbiguous = false;
+    private Row mAfter;
+    private Listener<T> mListener;
+    private int mReloads = 0;
+    // reloads that are running, updates are recorded on them to be replayed
+    private final List<PendingReload> mPendingReloads = new ArrayList<PendingReload>();
+    // sequence of the last reload started and of the last one installed
+    private int mReloadSequence = 0;
+    private int mInstalledSequence = 0;
+    // events are queued under mLock and delivered by one thread at a time
+    private final List<Event> mEvents = new ArrayList<Event>();
+    private boolean mDispatching = false;
+
+    public LiveQuery(Bucket<T> bucket, Query<T> query){
+        mBucket = bucket;
+        mQuery = query;
+        mSorters = query.getSorters();
+        mComparator = new RowComparator(mSorters);
+        mAlwaysReload = !isDecidable(query);
+        if (query.hasAfter()) {
+            // after values belong to the sorters before the first key sorter
+            Object[] afterValues = query.getAfterValues();
+            Object[] values = new Object[mSorters.size()];
+            for (int i = 0; i < afterValues.length && i < values.length; i++) {
+                values[i] = QueryValues.normalizeSubject(afterValues[i]);
+            }
+            mAfter = new Row(query.getAfterKey(), values);
+        }
+    }
+
+    /**
+     * Runs the query and starts listening to the bucket
+     */
+    public void start(Listener<T> listener){
+        synchronized(mLock){
+            mListener = listener;
+        }
+        mBucket.addOnSaveObjectListener(this);
+        mBucket.addOnDeleteObjectListener(this);
+        mBucket.addOnNetworkChangeListener(this);
+        reload();
+    }
+
+    public void stop(){
+        mBucket.removeOnSaveObjectListener(this);
+        mBucket.removeOnDeleteObjectListener(this);
+        mBucket.removeOnNetworkChangeListener(this);
+        synchronized(mLock){
+            mListener = null;
+        }
+    }
+
+    public Query<T> getQuery(){
+        return mQuery;
+    }
+
+    public int size(){
+        synchronized(mLock){
+            return mRows.size();
+        }
+    }
+
+    public String getKey(int position){
+        synchronized(mLock){
+            return mRows.get(position).key;
+        }
+    }
+
+    /**
+     * Position of the key in the results or -1
+     */
+    public int indexOf(String key){
+        synchronized(mLock){
+            Row row = mRowsByKey.get(key);
+            return row == null ? -1 : position(row);
+        }
+    }
+
+    public List<String> getKeys(){
+        synchronized(mLock){
+            List<String> keys = new ArrayList<String>(mRows.size());
+            for (Row row : mRows) {
+                keys.add(row.key);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Number of times the query ran, including the first time
+     */
+    public int getReloadCount(){
+        synchronized(mLock){
+            return mReloads;
+        }
+    }
+
+    @Override
+    public void onSaveObject(Bucket<T> bucket, T object){
+        update(object.getSimperiumKey(), object);
+    }
+
+    @Override
+    public void onDeleteObject(Bucket<T> bucket, T object){
+        update(object.getSimperiumKey(), null);
+    }
+
+    @Override
+    public void onChange(Bucket<T> bucket, Bucket.ChangeType type, String key){
+        if (key == null || type == Bucket.ChangeType.INDEX || type == Bucket.ChangeType.RESET) {
+            reload();
+            return;
+        }
+        T object = null;
+        if (type == Bucket.ChangeType.MODIFY) {
+            try {
+                object = bucket.getObject(key);
+            } catch (BucketObjectMissingException e) {
+                // treat it as removed
+            }
+        }
+        update(key, object);
+    }
+
+    /**
+     * Runs the query and replaces the results. Keys updated while the query
+     * was running are applied again to the new results. When they can't be
+     * the query runs again, up to RELOAD_MAX_ATTEMPTS times.
+     */
+    public void reload(){
+        for (int attempt = 1; ; attempt++) {
+            PendingReload reload;
+            synchronized(mLock){
+                reload = new PendingReload(++mReloadSequence);
+                mPendingReloads.add(reload);
+            }
+            List<Row> rows = new ArrayList<Row>();
+            boolean ambiguous = false;
+            try {
+                Bucket.ObjectCursor<T> cursor = mBucket.searchObjects(mQuery);
+                try {
+                    while (cursor.moveToNext()) {
+                        T object = cursor.getObject();
+                        Object[] values;
+                        try {
+                            values = sortValues(indexValues(object));
+                        } catch (UndecidedException e) {
+                            ambiguous = true;
+                            values = new Object[mSorters.size()];
+                        }
+                        rows.add(new Row(cursor.getSimperiumKey(), values));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                synchronized(mLock){
+                    mPendingReloads.remove(reload);
+                }
+            }
+            boolean replayed;
+            synchronized(mLock){
+                // a reload that started later already replaced the results
+                if (reload.sequence < mInstalledSequence) return;
+                mInstalledSequence = reload.sequence;
+                mRows.clear();
+                mRowsByKey.clear();
+                for (Row row : rows) {
+                    if (mRowsByKey.put(row.key, row) != null) ambiguous = true;
+                }
+                mAmbiguous = ambiguous;
+                mRows.addAll(rows);
+                if (!mAmbiguous && !mAlwaysReload) {
+                    // use the same order as the changes are positioned with
+                    Collections.sort(mRows, mComparator);
+                }
+                replayed = replay(reload.updates);
+                mReloads ++;
+                mEvents.add(new Event(Event.RELOAD, -1, -1, null));
+            }
+            dispatch();
+            if (replayed) return;
+            if (attempt >= RELOAD_MAX_ATTEMPTS) {
+                Logger.log(TAG, String.format(Locale.US, "Gave up replaying %d updates after %d reloads",
+                    reload.updates.size(), attempt));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the updates made while a reload was running to its results
+     * without queueing events, the reload event covers them. Returns false
+     * when they can't be applied. Must hold mLock.
+     */
+    private boolean replay(Map<String,Row> updates){
+        if (updates.isEmpty()) return true;
+        if (mAmbiguous || mAlwaysReload) return false;
+        int events = mEvents.size();
+        try {
+            for (Map.Entry<String,Row> update : updates.entrySet()) {
+                apply(update.getKey(), update.getValue());
+            }
+            return true;
+        } catch (UndecidedException e) {
+            return false;
+        } finally {
+            mEvents.subList(events, mEvents.size()).clear();
+        }
+    }
+
+    /**
+     * Applies the new state of the object, null when it was removed
+     */
+    private void update(String key, T object){
+        try {
+            synchronized(mLock){
+                if (mAlwaysReload || mAmbiguous) {
+                    throw(new UndecidedException("query is not evaluated in memory"));
+                }
+                Row row = null;
+                if (object != null) {
+                    Map<String,List<Object>> indexes = indexValues(object);
+                    if (matches(indexes)) {
+                        row = new Row(key, sortValues(indexes));
+                        if (mAfter != null && mComparator.compare(row, mAfter) <= 0) {
+                            row = null;
+                        }
+                    }
+                }
+                apply(key, row);
+                for (PendingReload reload : mPendingReloads) {
+                    reload.updates.put(key, row);
+                }
+            }
+        } catch (UndecidedException e) {
+            Logger.log(TAG, String.format(Locale.US, "Reloading %s: %s", key, e.getMessage()));
+            reload();
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Delivers queued events unless another thread already is
+     */
+    private void dispatch(){
+        while (true) {
+            Listener<T> listener;
+            List<Event> events;
+            synchronized(mLock){
+                if (mDispatching || mEvents.isEmpty()) return;
+                mDispatching = true;
+                listener = mListener;
+                events = new ArrayList<Event>(mEvents);
+                mEvents.clear();
+            }
+            try {
+                if (listener != null) {
+                    for (Event event : events) {
+                        deliver(listener, event);
+                    }
+                }
+            } finally {
+                synchronized(mLock){
+                    mDispatching = false;
+                }
+            }
+        }
+    }
+
+    private void deliver(Listener<T> listener, Event event){
+        switch (event.type) {
+            case Event.INSERT:
+                listener.onInsert(this, event.to, event.key);
+                break;
+            case Event.UPDATE:
+                listener.onUpdate(this, event.to, event.key);
+                break;
+            case Event.MOVE:
+                listener.onMove(this, event.from, event.to, event.key);
+                break;
+            case Event.REMOVE:
+                listener.onRemove(this, event.from, event.key);
+                break;
+            default:
+                listener.onReload(this);
+        }
+    }
+
+    /**
+     * Moves the row into place and queues the events, must hold mLock
+     */
+    private void apply(String key, Row row) throws UndecidedException {
+        Row existing = mRowsByKey.get(key);
+        boolean limited = mQuery.hasLimit();
+        boolean full = limited && mRows.size() >= mQuery.getLimit();
+
+        if (existing == null && row == null) {
+            return;
+        }
+
+        if (existing == null) {
+            int position = insertionPoint(row);
+            if (full) {
+                // rows past the window aren't known, neither are the ones it loses
+                if (position >= mRows.size()) return;
+                Row last = mRows.remove(mRows.size() - 1);
+                mRowsByKey.remove(last.key);
+                mEvents.add(new Event(Event.REMOVE, mRows.size(), -1, last.key));
+            }
+            mRows.add(position, row);
+            mRowsByKey.put(key, row);
+            mEvents.add(new Event(Event.INSERT, -1, position, key));
+            return;
+        }
+
+        int from = position(existing);
+        if (row == null) {
+            if (full) {
+                throw(new UndecidedException("row left a full window"));
+            }
+            mRows.remove(from);
+            mRowsByKey.remove(key);
+            mEvents.add(new Event(Event.REMOVE, from, -1, key));
+            return;
+        }
+
+        mRows.remove(from);
+        int to = insertionPoint(row);
+        if (full && to >= mRows.size()) {
+            // a row outside of the window may now sort before it
+            mRows.add(from, existing);
+            throw(new UndecidedException("row moved to the end of a full window"));
+        }
+        mRows.add(to, row);
+        mRowsByKey.put(key, row);
+        mEvents.add(new Event(from == to ? Event.UPDATE : Event.MOVE, from, to, key));
+    }
+
+    private int position(Row row){
+        int position = Collections.binarySearch(mRows, row, mComparator);
+        if (position < 0 || mRows.get(position) != row) {
+            // should not happen since rows are unique by key, fall back to a scan
+            position = mRows.indexOf(row);
+        }
+        return position;
+    }
+
+    private int insertionPoint(Row row){
+        int position = Collections.binarySearch(mRows, row, mComparator);
+        return position < 0 ? -(position + 1) : position;
+    }
+
+    /**
+     * Queries that run again on every change
+     */
+    private static boolean isDecidable(Query<?> query){
+        if (query.hasOffset()) return false;
+        // without sorters the database decides which rows fill the window
+        if (query.hasLimit() && query.getSorters().isEmpty()) return false;
+        for (Query.Condition condition : query.getConditions()) {
+            if (condition.getComparisonType() == Query.ComparisonType.MATCH) return false;
+        }
+        return true;
+    }
+
+    private Map<String,List<Object>> indexValues(T object){
+        Map<String,List<Object>> values = new HashMap<String,List<Object>>();
+        for (BucketSchema.Index index : mBucket.getSchema().indexesFor(object)) {
+            List<Object> list = values.get(index.getName());
+            if (list == null) {
+                list = new ArrayList<Object>(1);
+                values.put(index.getName(), list);
+            }
+            list.add(QueryValues.normalizeValue(index.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * The value an index name joins in, null when the object doesn't have it
+     */
+    private static Object indexValue(Map<String,List<Object>> indexes, String name)
+    throws UndecidedException {
+        List<Object> values = indexes.get(name);
+        if (values == null) return null;
+        if (values.size() > 1) {
+            throw(new UndecidedException(String.format(Locale.US, "%s has %d values", name, values.size())));
+        }
+        return values.get(0);
+    }
+
+    private Object[] sortValues(Map<String,List<Object>> indexes) throws UndecidedException {
+        Object[] values = new Object[mSorters.size()];
+        for (int i = 0; i < values.length; i++) {
+            Query.Sorter sorter = mSorters.get(i);
+            if (!(sorter instanceof Query.KeySorter)) {
+                values[i] = indexValue(indexes, sorter.getKey());
+            }
+        }
+        return values;
+    }
+
+    private boolean matches(Map<String,List<Object>> indexes) throws UndecidedException {
+        for (Query.Condition condition : mQuery.getConditions()) {
+            if (!QueryValues.matches(condition, indexValue(indexes, condition.getKey()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Orders rows by the query's sorters, ties are broken by key like the
+     * database does for paged and limited queries
+     */
+    private static class RowComparator implements Comparator<Row> {
+
+        private final List<Query.Sorter> mSorters;
+
+        RowComparator(List<Query.Sorter> sorters){
+            mSorters = sorters;
+        }
+
+        @Override
+        public int compare(Row a, Row b){
+            for (int i = 0; i < mSorters.size(); i++) {
+                Query.Sorter sorter = mSorters.get(i);
+                int result = sorter instanceof Query.KeySorter ? QueryValues.compareText(a.key, b.key)
+                    : QueryValues.compare(a.values[i], b.values[i]);
+                if (result != 0) {
+                    return sorter.getType() == Query.SortType.DESCENDING ? -result : result;
+                }
+            }
+            return QueryValues.compareText(a.key, b.key);
+        }
+
+    }
+
+}
@@ -4,6 +4,14 @@ public interface ObjectCacheProvider {
 
     public <T extends Syncable> ObjectCache<T> buildCache();
 
+    /**
+     * Providers that size caches per bucket. Buckets are given a cache from
+     * buildCache() when their provider doesn't implement this.
+     */
+    public interface BucketCacheProvider extends ObjectCacheProvider {
+        public <T extends Syncable> ObjectCache<T> buildCache(String bucketName);
+    }
+
     public interface ObjectCache<T extends Syncable> {
         public T get(String key);
         public void put(String key, T object);
@@ -11,4 +19,3 @@ public interface ObjectCacheProvider {
     }
 
 }
-
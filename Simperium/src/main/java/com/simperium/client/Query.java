@@ -212,6 +212,8 @@ public class Query<T extends Syncable> {
     private List<Field> mFields = new ArrayList<Field>();
     private int mLimit = -1;
     private int mOffset = -1;
+    private Object[] mAfterValues;
+    private String mAfterKey;
 
     public Query(Bucket<T> bucket){
         this.bucket = bucket;
@@ -255,6 +257,40 @@ public class Query<T extends Syncable> {
         return offset(-1);
     }
 
+    /**
+     * Only return objects that sort after the object with the given key and
+     * sort values, one value for each sorter that isn't a key sorter in the
+     * order the sorters were added. Paging with after() and limit() costs the
+     * same for every page, unlike offset(). Paged queries and sorted queries
+     * with a limit break sort ties by key so the pages line up.
+     */
+    public Query<T> after(Object[] lastSortValues, String lastKey){
+        if (lastKey == null) {
+            throw(new IllegalArgumentException("Paging after an object requires its key"));
+        }
+        mAfterValues = lastSortValues == null ? new Object[0] : lastSortValues.clone();
+        mAfterKey = lastKey;
+        return this;
+    }
+
+    public boolean hasAfter(){
+        return mAfterKey != null;
+    }
+
+    public Object[] getAfterValues(){
+        return mAfterValues;
+    }
+
+    public String getAfterKey(){
+        return mAfterKey;
+    }
+
+    public Query<T> clearAfter(){
+        mAfterValues = null;
+        mAfterKey = null;
+        return this;
+    }
+
     public Query<T> where(Condition condition){
         conditions.add(condition);
         return this;
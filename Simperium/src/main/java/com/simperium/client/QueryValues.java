@@ -0,0 +1,160 @@
+package com.simperium.client;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Evaluates query conditions and orders index values in memory the same way
+ * SQLite does for the persistent store's indexes table.
+ */
+public final class QueryValues {
+
+    /**
+     * Orders normalized values, nulls first
+     */
+    public static final Comparator<Object> ORDER = new Comparator<Object>(){
+        @Override
+        public int compare(Object a, Object b){
+            return QueryValues.compare(a, b);
+        }
+    };
+
+    private QueryValues(){
+    }
+
+    /**
+     * Index values as the database stores them: Long, Double, String or null
+     */
+    public static Object normalizeValue(Object value){
+        if (value == null) return null;
+        if (value instanceof Boolean) return (Boolean) value ? 1L : 0L;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float || value instanceof Double) return ((Number) value).doubleValue();
+        return value.toString();
+    }
+
+    /**
+     * Subjects as the query binds them, the same as the values they are
+     * compared with
+     */
+    public static Object normalizeSubject(Object subject){
+        return normalizeValue(subject);
+    }
+
+    /**
+     * Does the normalized index value, null when the object doesn't have the
+     * index name, satisfy the condition. Full text matches can't be evaluated.
+     */
+    public static boolean matches(Query.Condition condition, Object value){
+        Query.ComparisonType type = condition.getComparisonType();
+        if (type == Query.ComparisonType.MATCH) {
+            throw(new IllegalArgumentException("Full text conditions are not evaluated in memory"));
+        }
+        if (condition.getSubject() == null) {
+            switch (type) {
+                case EQUAL_TO:
+                case LIKE:
+                    return value == null;
+                case NOT_EQUAL_TO:
+                case NOT_LIKE:
+                    return value != null;
+                default:
+                    return true;
+            }
+        }
+        if (value == null) {
+            return condition.includesNull();
+        }
+        Object subject = normalizeSubject(condition.getSubject());
+        switch (type) {
+            case EQUAL_TO:
+                return compare(value, subject) == 0;
+            case NOT_EQUAL_TO:
+                return compare(value, subject) != 0;
+            case LESS_THAN:
+                return compare(value, subject) < 0;
+            case LESS_THAN_OR_EQUAL:
+                return compare(value, subject) <= 0;
+            case GREATER_THAN:
+                return compare(value, subject) > 0;
+            case GREATER_THAN_OR_EQUAL:
+                return compare(value, subject) >= 0;
+            case LIKE:
+                return like(subject.toString(), value.toString());
+            case NOT_LIKE:
+                return !like(subject.toString(), value.toString());
+            default:
+                throw(new IllegalArgumentException(String.format(Locale.US, "Unknown comparison %s", type)));
+        }
+    }
+
+    /**
+     * SQLite ordering of normalized values: null, then numbers, then text
+     * compared by code point which is the order of their UTF-8 bytes
+     */
+    public static int compare(Object a, Object b){
+        int rankA = rank(a), rankB = rank(b);
+        if (rankA != rankB) return rankA < rankB ? -1 : 1;
+        if (a == null) return 0;
+        if (rankA == 1) {
+            if (a instanceof Long && b instanceof Long) {
+                long x = (Long) a, y = (Long) b;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return compareText(a.toString(), b.toString());
+    }
+
+    private static int rank(Object value){
+        if (value == null) return 0;
+        if (value instanceof Number) return 1;
+        return 2;
+    }
+
+    public static int compareText(String a, String b){
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i), y = b.codePointAt(j);
+            if (x != y) return x < y ? -1 : 1;
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        if (i < a.length()) return 1;
+        if (j < b.length()) return -1;
+        return 0;
+    }
+
+    /**
+     * SQLite's LIKE: % and _ wildcards, case insensitive for ASCII only
+     */
+    public static boolean like(String pattern, String text){
+        return like(pattern, 0, text, 0);
+    }
+
+    private static boolean like(String pattern, int p, String text, int t){
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '%') {
+                while (p < pattern.length() && pattern.charAt(p) == '%') p++;
+                if (p == pattern.length()) return true;
+                for (int i = t; i <= text.length(); i++) {
+                    if (like(pattern, p, text, i)) return true;
+                }
+                return false;
+            }
+            if (t >= text.length()) return false;
+            if (c != '_' && foldAscii(c) != foldAscii(text.charAt(t))) return false;
+            p++;
+            t++;
+        }
+        return t == text.length();
+    }
+
+    private static char foldAscii(char c){
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+}
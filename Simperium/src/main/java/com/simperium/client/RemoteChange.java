@@ -1,5 +1,6 @@
 package com.simperium.client;
 
+import com.simperium.util.Document;
 import com.simperium.util.JSONDiff;
 
 import org.json.JSONArray;
@@ -58,10 +59,14 @@ public class RemoteChange {
     private String changeVersion;
     private String operation;
     private JSONObject value;
+    // unparsed patch from a streamed change, built on first use
+    private String patchSource;
     private Integer errorCode;
     private boolean applied = false;
     private Change change;
-    private JSONDiff jsondiff = new JSONDiff();
+    // ghost patched ahead of time and the ghost it was patched from
+    private Ghost mPreparedGhost;
+    private Ghost mBaseGhost;
 
     /**
      * All remote changes include clientid, key and ccids then these differences:
@@ -114,8 +119,13 @@ public class RemoteChange {
             throw(new RemoteChangeInvalidException(this, "Local instance has version greater than 0 with remote add operation"));
         }
 
+        if (isModifyOperation() && getPatch() == null) {
+            throw new RemoteChangeInvalidException(this, "Missing patch");
+        }
+
         try {
-            JSONObject properties = jsondiff.apply(ghost.getDiffableValue(), getPatch());
+            // unchanged values are shared with the previous ghost
+            Document properties = JSONDiff.apply(ghost.getDocument(), getPatch());
             return new Ghost(getKey(), getObjectVersion(), properties);
         } catch (JSONException e) {
             throw new RemoteChangeInvalidException(this, String.format("Unable to apply patch: %s", getPatch()), e);
@@ -125,6 +135,38 @@ public class RemoteChange {
 
     }
 
+    /**
+     * Patch the ghost ahead of time so the bucket only has to save the result
+     * when the change is applied
+     */
+    protected Ghost prepare(Ghost ghost) throws RemoteChangeInvalidException {
+        Ghost prepared = apply(ghost);
+        mBaseGhost = ghost;
+        mPreparedGhost = prepared;
+        return prepared;
+    }
+
+    protected boolean isPrepared(){
+        return mPreparedGhost != null;
+    }
+
+    protected Ghost getBaseGhost(){
+        return mBaseGhost;
+    }
+
+    protected Ghost getPreparedGhost(){
+        return mPreparedGhost;
+    }
+
+    /**
+     * Forget the prepared ghost when the change it was patched from was not
+     * applied
+     */
+    protected void discardPrepared(){
+        mBaseGhost = null;
+        mPreparedGhost = null;
+    }
+
     public boolean isAcknowledged(){
         return change != null;
     }
@@ -215,9 +257,28 @@ public class RemoteChange {
     }
 
     public JSONObject getPatch(){
+        synchronized(this){
+            if (patchSource != null) {
+                try {
+                    value = new JSONObject(patchSource);
+                } catch (JSONException e) {
+                    android.util.Log.e(TAG, String.format("Invalid patch for %s", key), e);
+                }
+                patchSource = null;
+            }
+        }
         return value;
     }
 
+    protected void setPatchSource(String source){
+        synchronized(this){
+            patchSource = source;
+            if (source != null) {
+                value = null;
+            }
+        }
+    }
+
     public boolean hasChangeId(String ccid){
 
         if (ccid == null) return false;
@@ -0,0 +1,357 @@
+package com.simperium.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streams the changes of a c: response without building a JSONArray of the
+ * whole batch. Each change is handed to the listener as soon as its closing
+ * brace is read. Patch values are not parsed, RemoteChange keeps their source
+ * and builds the JSONObject the first time the patch is used.
+ */
+public class RemoteChangeParser {
+
+    public interface Listener {
+        public void onRemoteChange(RemoteChange change);
+        /**
+         * A change that was valid JSON but missing required fields or with
+         * fields of the wrong type
+         */
+        public void onInvalidChange(JSONException exception);
+    }
+
+    private final String mSource;
+    private final int mLength;
+    private int mPosition = 0;
+
+    // fields of the change being read
+    private String mKey, mClientId, mOperation, mChangeVersion, mPatch;
+    private JSONArray mChangeIds;
+    private Integer mSourceVersion, mEntityVersion, mErrorCode;
+    // first field of the change with a value of the wrong type
+    private JSONException mFieldError;
+
+    /**
+     * A field value of the wrong type, the rest of the batch can still be read
+     */
+    private static class FieldTypeException extends JSONException {
+        FieldTypeException(String message){
+            super(message);
+        }
+    }
+
+    public RemoteChangeParser(String source){
+        mSource = source;
+        mLength = source.length();
+    }
+
+    /**
+     * Parses the changes array calling the listener for every change,
+     * throws if the array itself is malformed, changes emitted before the
+     * error are still delivered
+     */
+    public static void parse(String source, Listener listener)
+    throws JSONException {
+        new RemoteChangeParser(source).parse(listener);
+    }
+
+    public void parse(Listener listener)
+    throws JSONException {
+        expect('[');
+        if (peek() == ']') {
+            mPosition++;
+            return;
+        }
+        while (true) {
+            readChange();
+            try {
+                listener.onRemoteChange(buildChange());
+            } catch (JSONException e) {
+                listener.onInvalidChange(e);
+            }
+            char c = next();
+            if (c == ']') return;
+            if (c != ',') throw syntaxError("Expected , or ]");
+        }
+    }
+
+    private void readChange()
+    throws JSONException {
+        mKey = mClientId = mOperation = mChangeVersion = mPatch = null;
+        mChangeIds = null;
+        mSourceVersion = mEntityVersion = mErrorCode = null;
+        mFieldError = null;
+
+        expect('{');
+        if (peek() == '}') {
+            mPosition++;
+            return;
+        }
+        while (true) {
+            String name = readString();
+            expect(':');
+            int start = skipWhitespace();
+            try {
+                readField(name);
+            } catch (FieldTypeException e) {
+                // skip the value and report the change once it's read
+                mPosition = start;
+                skipValue();
+                if (mFieldError == null) {
+                    mFieldError = new JSONException(String.format("Remote change field %s: %s", name, e.getMessage()));
+                }
+            }
+            char c = next();
+            if (c == '}') return;
+            if (c != ',') throw syntaxError("Expected , or }");
+        }
+    }
+
+    /**
+     * Reads the value of a change field, throws FieldTypeException when it
+     * has the wrong type
+     */
+    private void readField(String name)
+    throws JSONException {
+        if (RemoteChange.ID_KEY.equals(name)) {
+            mKey = readNullableString();
+        } else if (RemoteChange.CLIENT_KEY.equals(name)) {
+            mClientId = readNullableString();
+        } else if (RemoteChange.OPERATION_KEY.equals(name)) {
+            mOperation = readNullableString();
+        } else if (RemoteChange.CHANGE_VERSION_KEY.equals(name)) {
+            mChangeVersion = readNullableString();
+        } else if (RemoteChange.SOURCE_VERSION_KEY.equals(name)) {
+            mSourceVersion = readInteger();
+        } else if (RemoteChange.END_VERSION_KEY.equals(name)) {
+            mEntityVersion = readInteger();
+        } else if (RemoteChange.ERROR_KEY.equals(name)) {
+            mErrorCode = readInteger();
+        } else if (RemoteChange.CHANGE_IDS_KEY.equals(name)) {
+            mChangeIds = readStringArray();
+        } else if (RemoteChange.VALUE_KEY.equals(name)) {
+            int start = skipWhitespace();
+            skipValue();
+            // only object patches are used, matches optJSONObject
+            if (mSource.charAt(start) == '{') {
+                mPatch = mSource.substring(start, mPosition);
+            }
+        } else {
+            skipValue();
+        }
+    }
+
+    private RemoteChange buildChange()
+    throws JSONException {
+        if (mFieldError != null) throw mFieldError;
+        if (mChangeIds == null) throw missing(RemoteChange.CHANGE_IDS_KEY);
+        if (mClientId == null) throw missing(RemoteChange.CLIENT_KEY);
+        if (mKey == null) throw missing(RemoteChange.ID_KEY);
+        if (mErrorCode != null) {
+            return new RemoteChange(mClientId, mKey, mChangeIds, mErrorCode);
+        }
+        if (mOperation == null) throw missing(RemoteChange.OPERATION_KEY);
+        if (mChangeVersion == null) throw missing(RemoteChange.CHANGE_VERSION_KEY);
+        RemoteChange change = new RemoteChange(mClientId, mKey, mChangeIds, mChangeVersion,
+            mSourceVersion == null ? 0 : mSourceVersion,
+            mEntityVersion == null ? 0 : mEntityVersion,
+            mOperation, (JSONObject) null);
+        change.setPatchSource(mPatch);
+        return change;
+    }
+
+    private JSONException missing(String name){
+        return new JSONException(String.format("Remote change %s missing %s", mKey, name));
+    }
+
+    private JSONException syntaxError(String message){
+        return new JSONException(String.format("%s at character %d", message, mPosition));
+    }
+
+    private int skipWhitespace(){
+        while (mPosition < mLength) {
+            char c = mSource.charAt(mPosition);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+            mPosition++;
+        }
+        return mPosition;
+    }
+
+    private char peek()
+    throws JSONException {
+        skipWhitespace();
+        if (mPosition >= mLength) throw syntaxError("Unexpected end of input");
+        return mSource.charAt(mPosition);
+    }
+
+    private char next()
+    throws JSONException {
+        char c = peek();
+        mPosition++;
+        return c;
+    }
+
+    private void expect(char expected)
+    throws JSONException {
+        if (next() != expected) throw syntaxError(String.format("Expected %c", expected));
+    }
+
+    private boolean readNull()
+    throws JSONException {
+        if (peek() == 'n' && mSource.startsWith("null", mPosition)) {
+            mPosition += 4;
+            return true;
+        }
+        return false;
+    }
+
+    private String readNullableString()
+    throws JSONException {
+        if (readNull()) return null;
+        if (peek() != '"') throw typeError("string");
+        return readString();
+    }
+
+    private FieldTypeException typeError(String expected){
+        return new FieldTypeException(String.format("Expected %s at character %d", expected, mPosition));
+    }
+
+    private String readString()
+    throws JSONException {
+        expect('"');
+        int start = mPosition;
+        // fast path for strings without escapes
+        while (mPosition < mLength) {
+            char c = mSource.charAt(mPosition);
+            if (c == '"') {
+                return mSource.substring(start, mPosition++);
+            }
+            if (c == '\\') break;
+            mPosition++;
+        }
+        StringBuilder builder = new StringBuilder(mPosition - start + 16);
+        builder.append(mSource, start, mPosition);
+        while (mPosition < mLength) {
+            char c = mSource.charAt(mPosition++);
+            if (c == '"') return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPosition >= mLength) break;
+            char escaped = mSource.charAt(mPosition++);
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (mPosition + 4 > mLength) throw syntaxError("Invalid unicode escape");
+                    try {
+                        builder.append((char) Integer.parseInt(mSource.substring(mPosition, mPosition + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    mPosition += 4;
+                    break;
+                default: builder.append(escaped);
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private Integer readInteger()
+    throws JSONException {
+        if (readNull()) return null;
+        String number;
+        if (peek() == '"') {
+            number = readString();
+        } else {
+            int start = mPosition;
+            skipValue();
+            number = mSource.substring(start, mPosition);
+        }
+        try {
+            return Integer.valueOf(number);
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(number);
+            } catch (NumberFormatException e2) {
+                throw typeError("number");
+            }
+        }
+    }
+
+    private JSONArray readStringArray()
+    throws JSONException {
+        JSONArray array = new JSONArray();
+        if (readNull()) return array;
+        if (peek() != '[') throw typeError("array");
+        mPosition++;
+        if (peek() == ']') {
+            mPosition++;
+            return array;
+        }
+        while (true) {
+            if (peek() != '"') throw typeError("string");
+            array.put(readString());
+            char c = next();
+            if (c == ']') return array;
+            if (c != ',') throw syntaxError("Expected , or ]");
+        }
+    }
+
+    /**
+     * Moves past the string starting at the current position without decoding it
+     */
+    private void skipString()
+    throws JSONException {
+        mPosition++;
+        while (mPosition < mLength) {
+            char c = mSource.charAt(mPosition++);
+            if (c == '\\') {
+                mPosition++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Moves past the next value without building it
+     */
+    private void skipValue()
+    throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (mPosition < mLength) {
+                c = mSource.charAt(mPosition);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                mPosition++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+            throw syntaxError("Unterminated value");
+        } else {
+            // literal or number
+            while (mPosition < mLength) {
+                c = mSource.charAt(mPosition);
+                if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') break;
+                mPosition++;
+            }
+        }
+    }
+
+}
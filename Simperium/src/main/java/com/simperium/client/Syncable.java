@@ -10,21 +10,47 @@ import com.simperium.util.JSONDiff;
 public abstract class Syncable implements Diffable {
     private Ghost ghost;
     protected Bucket bucket;
+    // ghost is loaded from the bucket the first time it is needed
+    private boolean mGhostPending = false;
 
     public Integer getVersion(){
-        return ghost.getVersion();
+        return getGhost().getVersion();
     }
 
     protected Ghost getGhost(){
-        return ghost;
+        synchronized(this){
+            if (mGhostPending) {
+                mGhostPending = false;
+                ghost = bucket.loadGhost(getSimperiumKey());
+            }
+            return ghost;
+        }
     }
 
     protected void setGhost(Ghost ghost){
         synchronized(this){
+            mGhostPending = false;
             this.ghost = ghost;
         }
     }
 
+    /**
+     * Defer loading the ghost from the bucket until the object's version or
+     * unmodified value is needed
+     */
+    protected void setGhostPending(){
+        synchronized(this){
+            mGhostPending = true;
+            this.ghost = null;
+        }
+    }
+
+    protected boolean isGhostPending(){
+        synchronized(this){
+            return mGhostPending;
+        }
+    }
+
     /**
      * Has this ever been synced
      */
@@ -36,7 +62,7 @@ public abstract class Syncable implements Diffable {
      * Does the local object have modifications?
      */
     public Boolean isModified(){
-        return !JSONDiff.equals(getDiffableValue(), ghost.getDiffableValue());
+        return !JSONDiff.equals(getDiffableValue(), getGhost().getDiffableValue());
     }
 
     public String getBucketName(){
@@ -1,27 +1,86 @@
 package com.simperium.storage;
 
+import android.database.AbstractCursor;
+
 import com.simperium.client.Bucket;
 import com.simperium.client.BucketSchema;
 import com.simperium.client.BucketSchema.Index;
 import com.simperium.client.Query;
+import com.simperium.client.QueryValues;
 import com.simperium.client.Syncable;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
- * Naive implementation of a StorageProvider in memory.
+ * StorageProvider that keeps every bucket in memory. Each index name has a
+ * sorted map from value to keys so conditions can narrow the objects down
+ * before they are checked one by one. Values are compared the way SQLite
+ * compares them so queries return what the PersistentStore would, except that
+ * an object with several values for an index name is returned once and
+ * sorted by its first value, and full text conditions only check that every
+ * term (or term* prefix) appears in the indexed text.
  */
 public class MemoryStore implements StorageProvider {
-    
+
     public <T extends Syncable> BucketStore<T> createStore(String bucketName, BucketSchema<T> schema){
-        return new Storage<T>();
+        return new Storage<T>(bucketName, schema);
+    }
+
+    /**
+     * What an object looked like when it was saved
+     */
+    private static class Entry {
+
+        final String key;
+        // order the key was first saved in, like a rowid
+        final long sequence;
+        final String data;
+        final Map<String,List<Object>> indexes;
+        final Map<String,String> fullText;
+
+        Entry(String key, long sequence, String data, Map<String,List<Object>> indexes, Map<String,String> fullText){
+            this.key = key;
+            this.sequence = sequence;
+            this.data = data;
+            this.indexes = indexes;
+            this.fullText = fullText;
+        }
+
+        Object firstValue(String name){
+            List<Object> values = indexes.get(name);
+            return values == null ? null : values.get(0);
+        }
+
     }
-    
+
     class Storage<T extends Syncable> implements StorageProvider.BucketStore<T> {
-        private Map<String, T> objects = Collections.synchronizedMap(new HashMap<String, T>(32));
+
+        private final String mBucketName;
+        private final BucketSchema<T> mSchema;
+        private final Object mLock = new Object();
+        private final Map<String, T> objects = new HashMap<String, T>(32);
+        private final Map<String, Entry> mEntries = new HashMap<String, Entry>(32);
+        private final Map<String, TreeMap<Object, Set<String>>> mIndexes = new HashMap<String, TreeMap<Object, Set<String>>>();
+        private long mSequence = 0;
+
+        Storage(String bucketName, BucketSchema<T> schema){
+            mBucketName = bucketName;
+            mSchema = schema;
+        }
 
         @Override
         public void prepare(Bucket<T> bucket){
@@ -33,7 +92,40 @@ public class MemoryStore implements StorageProvider {
          */
         @Override
         public void save(T object, List<Index> indexes){
-            objects.put(object.getSimperiumKey(), object);
+            String key = object.getSimperiumKey();
+            Map<String,List<Object>> values = new HashMap<String,List<Object>>();
+            for (Index index : indexes) {
+                List<Object> list = values.get(index.getName());
+                if (list == null) {
+                    list = new ArrayList<Object>(1);
+                    values.put(index.getName(), list);
+                }
+                list.add(QueryValues.normalizeValue(index.getValue()));
+            }
+            Map<String,String> fullText = mSchema.hasFullTextIndex() ? mSchema.getFullTextIndex().index(object) : null;
+            String data = object.getDiffableValue().toString();
+            synchronized(mLock){
+                Entry existing = removeEntry(key);
+                long sequence = existing == null ? mSequence++ : existing.sequence;
+                Entry entry = new Entry(key, sequence, data, values, fullText);
+                mEntries.put(key, entry);
+                objects.put(key, object);
+                for (Map.Entry<String,List<Object>> value : values.entrySet()) {
+                    TreeMap<Object, Set<String>> index = mIndexes.get(value.getKey());
+                    if (index == null) {
+                        index = new TreeMap<Object, Set<String>>(QueryValues.ORDER);
+                        mIndexes.put(value.getKey(), index);
+                    }
+                    for (Object item : value.getValue()) {
+                        Set<String> keys = index.get(item);
+                        if (keys == null) {
+                            keys = new HashSet<String>(2);
+                            index.put(item, keys);
+                        }
+                        keys.add(key);
+                    }
+                }
+            }
         }
 
         /**
@@ -41,7 +133,27 @@ public class MemoryStore implements StorageProvider {
          */
         @Override
         public void delete(T object){
-            objects.remove(object.getSimperiumKey());
+            synchronized(mLock){
+                removeEntry(object.getSimperiumKey());
+            }
+        }
+
+        private Entry removeEntry(String key){
+            objects.remove(key);
+            Entry entry = mEntries.remove(key);
+            if (entry == null) return null;
+            for (Map.Entry<String,List<Object>> value : entry.indexes.entrySet()) {
+                TreeMap<Object, Set<String>> index = mIndexes.get(value.getKey());
+                if (index == null) continue;
+                for (Object item : value.getValue()) {
+                    Set<String> keys = index.get(item);
+                    if (keys == null) continue;
+                    keys.remove(key);
+                    if (keys.isEmpty()) index.remove(item);
+                }
+                if (index.isEmpty()) mIndexes.remove(value.getKey());
+            }
+            return entry;
         }
 
         /**
@@ -49,7 +161,11 @@ public class MemoryStore implements StorageProvider {
          */
         @Override
         public void reset(){
-            objects.clear();
+            synchronized(mLock){
+                objects.clear();
+                mEntries.clear();
+                mIndexes.clear();
+            }
         }
 
         /**
@@ -57,29 +173,372 @@ public class MemoryStore implements StorageProvider {
          */
         @Override
         public T get(String key){
-            return objects.get(key);
+            synchronized(mLock){
+                return objects.get(key);
+            }
         }
 
         /**
          * Get a cursor to all the objects
          */
         public Bucket.ObjectCursor<T> all(){
-            return null;
+            List<Entry> entries;
+            synchronized(mLock){
+                entries = new ArrayList<Entry>(mEntries.values());
+            }
+            Collections.sort(entries, SEQUENCE_ORDER);
+            return new MemoryCursor<T>(mSchema, mBucketName, entries, Collections.<Query.Field>emptyList());
         }
 
         /**
          * Search
          */
         public Bucket.ObjectCursor<T> search(Query query){
-            return null;
+            List<Entry> entries;
+            synchronized(mLock){
+                entries = select(query);
+            }
+            if (query.hasLimit()) {
+                int from = Math.min(query.hasOffset() ? query.getOffset() : 0, entries.size());
+                int to = Math.min(from + query.getLimit(), entries.size());
+                entries = entries.subList(from, to);
+            }
+            return new MemoryCursor<T>(mSchema, mBucketName, entries, query.getFields());
         }
 
         /**
          * Count
          */
         public int count(Query query){
-            return 0;
+            synchronized(mLock){
+                return select(query).size();
+            }
+        }
+
+        /**
+         * Sorted entries matching the query's conditions and after(), without
+         * applying the limit
+         */
+        private List<Entry> select(Query<T> query){
+            List<Entry> entries = new ArrayList<Entry>();
+            for (String key : candidates(query)) {
+                Entry entry = mEntries.get(key);
+                if (entry != null && matches(entry, query)) {
+                    entries.add(entry);
+                }
+            }
+            List<Query.Sorter> sorters = query.getSorters();
+            if (sorters.isEmpty() && !query.hasAfter()) {
+                Collections.sort(entries, SEQUENCE_ORDER);
+                return entries;
+            }
+            EntryComparator comparator = new EntryComparator(sorters);
+            Collections.sort(entries, comparator);
+            if (query.hasAfter()) {
+                int start = 0;
+                while (start < entries.size() && comparator.compareToAfter(entries.get(start), query) <= 0) {
+                    start ++;
+                }
+                entries = entries.subList(start, entries.size());
+            }
+            return entries;
+        }
+
+        /**
+         * Keys from the narrowest range of an index name a condition selects,
+         * every key when no condition can use an index
+         */
+        private Collection<String> candidates(Query<T> query){
+            Collection<String> narrowest = null;
+            for (Query.Condition condition : query.getConditions()) {
+                Object subject = condition.getSubject();
+                if (subject == null || condition.includesNull()) continue;
+                Query.ComparisonType type = condition.getComparisonType();
+                if (type != Query.ComparisonType.EQUAL_TO && type != Query.ComparisonType.LESS_THAN
+                    && type != Query.ComparisonType.LESS_THAN_OR_EQUAL && type != Query.ComparisonType.GREATER_THAN
+                    && type != Query.ComparisonType.GREATER_THAN_OR_EQUAL) {
+                    continue;
+                }
+                TreeMap<Object, Set<String>> index = mIndexes.get(condition.getKey());
+                if (index == null) {
+                    // no object has a value for the name
+                    return Collections.emptyList();
+                }
+                subject = QueryValues.normalizeSubject(subject);
+                Set<String> keys = new HashSet<String>();
+                switch (type) {
+                    case EQUAL_TO:
+                        addKeys(keys, index.get(subject));
+                        break;
+                    case LESS_THAN:
+                        addKeys(keys, index.headMap(subject));
+                        break;
+                    case LESS_THAN_OR_EQUAL:
+                        addKeys(keys, index.headMap(subject));
+                        addKeys(keys, index.get(subject));
+                        break;
+                    default:
+                        // the bound itself is checked with the other conditions
+                        addKeys(keys, index.tailMap(subject));
+                        break;
+                }
+                if (narrowest == null || keys.size() < narrowest.size()) {
+                    narrowest = keys;
+                }
+            }
+            return narrowest == null ? new ArrayList<String>(mEntries.keySet()) : narrowest;
+        }
+
+        private void addKeys(Set<String> keys, Set<String> values){
+            if (values != null) keys.addAll(values);
+        }
+
+        private void addKeys(Set<String> keys, SortedMap<Object, Set<String>> range){
+            for (Set<String> values : range.values()) {
+                keys.addAll(values);
+            }
+        }
+
+        private boolean matches(Entry entry, Query<T> query){
+            for (Query.Condition condition : query.getConditions()) {
+                if (condition.getComparisonType() == Query.ComparisonType.MATCH) {
+                    if (!matchesFullText(entry, condition)) return false;
+                    continue;
+                }
+                List<Object> values = entry.indexes.get(condition.getKey());
+                if (values == null) {
+                    if (!QueryValues.matches(condition, null)) return false;
+                    continue;
+                }
+                boolean matched = false;
+                for (Object value : values) {
+                    if (QueryValues.matches(condition, value)) {
+                        matched = true;
+                        break;
+                    }
+                }
+                if (!matched) return false;
+            }
+            return true;
+        }
+
+        private boolean matchesFullText(Entry entry, Query.Condition condition){
+            if (entry.fullText == null || condition.getSubject() == null) return false;
+            Set<String> tokens = new HashSet<String>();
+            if (condition.getKey() == null) {
+                for (String text : entry.fullText.values()) {
+                    addTokens(tokens, text);
+                }
+            } else {
+                addTokens(tokens, entry.fullText.get(condition.getKey()));
+            }
+            for (String term : condition.getSubject().toString().split("\\s+")) {
+                term = term.replace("\"", "").toLowerCase(Locale.US);
+                if (term.length() == 0) continue;
+                if (!term.endsWith("*")) {
+                    if (!tokens.contains(term)) return false;
+                    continue;
+                }
+                String prefix = term.substring(0, term.length() - 1);
+                boolean found = false;
+                for (String token : tokens) {
+                    if (token.startsWith(prefix)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) return false;
+            }
+            return true;
+        }
+
+        private void addTokens(Set<String> tokens, String text){
+            if (text == null) return;
+            for (String token : text.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+                if (token.length() > 0) tokens.add(token);
+            }
+        }
+
+    }
+
+    private static final Comparator<Entry> SEQUENCE_ORDER = new Comparator<Entry>(){
+        @Override
+        public int compare(Entry a, Entry b){
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    /**
+     * Orders entries by the query's sorters and then by key like the
+     * persistent store does for paged queries
+     */
+    private static class EntryComparator implements Comparator<Entry> {
+
+        private final List<Query.Sorter> mSorters;
+
+        EntryComparator(List<Query.Sorter> sorters){
+            mSorters = sorters;
+        }
+
+        @Override
+        public int compare(Entry a, Entry b){
+            for (Query.Sorter sorter : mSorters) {
+                int result = sorter instanceof Query.KeySorter ? QueryValues.compareText(a.key, b.key)
+                    : QueryValues.compare(a.firstValue(sorter.getKey()), b.firstValue(sorter.getKey()));
+                if (result != 0) return direction(sorter, result);
+            }
+            return QueryValues.compareText(a.key, b.key);
+        }
+
+        /**
+         * Compares the entry to the object the query pages after, the after
+         * values belong to the sorters before the first key sorter
+         */
+        int compareToAfter(Entry entry, Query query){
+            Object[] values = query.getAfterValues();
+            String key = query.getAfterKey();
+            for (int i = 0; i < mSorters.size(); i++) {
+                Query.Sorter sorter = mSorters.get(i);
+                int result;
+                if (sorter instanceof Query.KeySorter) {
+                    return direction(sorter, QueryValues.compareText(entry.key, key));
+                }
+                Object value = i < values.length ? QueryValues.normalizeSubject(values[i]) : null;
+                result = QueryValues.compare(entry.firstValue(sorter.getKey()), value);
+                if (result != 0) return direction(sorter, result);
+            }
+            return QueryValues.compareText(entry.key, key);
+        }
+
+        private static int direction(Query.Sorter sorter, int result){
+            return sorter.getType() == Query.SortType.DESCENDING ? -result : result;
+        }
+
+    }
+
+    /**
+     * Cursor over saved entries with the same columns as the persistent
+     * store's cursors. Full text snippets and offsets are null.
+     */
+    private static class MemoryCursor<T extends Syncable> extends AbstractCursor implements Bucket.ObjectCursor<T> {
+
+        private static final int OBJECT_KEY_COLUMN = 2;
+        private static final int OBJECT_DATA_COLUMN = 3;
+
+        private final BucketSchema<T> mSchema;
+        private final String mBucketName;
+        private final List<Entry> mEntries;
+        private final List<Query.Field> mFields;
+        private final String[] mColumns;
+
+        MemoryCursor(BucketSchema<T> schema, String bucketName, List<Entry> entries, List<Query.Field> fields){
+            mSchema = schema;
+            mBucketName = bucketName;
+            mEntries = entries;
+            mFields = fields;
+            mColumns = new String[4 + fields.size()];
+            mColumns[0] = "_id";
+            mColumns[1] = "key";
+            mColumns[OBJECT_KEY_COLUMN] = "object_key";
+            mColumns[OBJECT_DATA_COLUMN] = "object_data";
+            for (int i = 0; i < fields.size(); i++) {
+                mColumns[4 + i] = fields.get(i).getName();
+            }
+        }
+
+        @Override
+        public String getSimperiumKey(){
+            return getString(OBJECT_KEY_COLUMN);
+        }
+
+        @Override
+        public T getObject(){
+            String key = getSimperiumKey();
+            try {
+                return mSchema.buildWithDefaults(key, new JSONObject(getString(OBJECT_DATA_COLUMN)));
+            } catch (JSONException e) {
+                return mSchema.buildWithDefaults(key, new JSONObject());
+            }
+        }
+
+        @Override
+        public int getCount(){
+            return mEntries.size();
+        }
+
+        @Override
+        public String[] getColumnNames(){
+            return mColumns;
         }
+
+        private Object getValue(int column){
+            Entry entry = mEntries.get(getPosition());
+            switch (column) {
+                case 0:
+                    return entry.sequence + 1;
+                case 1:
+                    return mBucketName + entry.key;
+                case OBJECT_KEY_COLUMN:
+                    return entry.key;
+                case OBJECT_DATA_COLUMN:
+                    return entry.data;
+                default:
+                    Query.Field field = mFields.get(column - 4);
+                    if (field instanceof Query.FullTextSnippet || field instanceof Query.FullTextOffsets) {
+                        return null;
+                    }
+                    return entry.firstValue(field.getName());
+            }
+        }
+
+        @Override
+        public String getString(int column){
+            Object value = getValue(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column){
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column){
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column){
+            Object value = getValue(column);
+            if (value instanceof Number) return ((Number) value).longValue();
+            try {
+                return value == null ? 0 : Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public float getFloat(int column){
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column){
+            Object value = getValue(column);
+            if (value instanceof Number) return ((Number) value).doubleValue();
+            try {
+                return value == null ? 0 : Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public boolean isNull(int column){
+            return getValue(column) == null;
+        }
+
     }
 
-}
\ No newline at end of file
+}
@@ -58,6 +58,30 @@ public interface StorageProvider {
 
     }
 
+    /**
+     * A BucketStore that can group many writes into a single transaction. Ghost
+     * writes made on the same thread are included when the GhostStorageProvider
+     * shares the store's database.
+     */
+    public interface TransactionalBucketStore<T extends Syncable> extends BucketStore<T> {
+
+        /**
+         * Start a transaction on the calling thread
+         */
+        public void beginTransaction();
+
+        /**
+         * Mark the current transaction to be committed
+         */
+        public void setTransactionSuccessful();
+
+        /**
+         * Commit or roll back the current transaction
+         */
+        public void endTransaction();
+
+    }
+
     /**
      * 
      */
@@ -0,0 +1,187 @@
+package com.simperium.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable JSON object. Values are Strings, Numbers, Booleans,
+ * JSONObject.NULL, Documents or unmodifiable Lists of those values. Since a
+ * Document never changes it can be shared instead of copied, and editing one
+ * only copies the objects on the path to the edited keys. Keys keep the
+ * order they had in the JSON object.
+ */
+public final class Document {
+
+    public static final Document EMPTY = new Document(new LinkedHashMap<String,Object>(0));
+
+    private final Map<String,Object> mValues;
+    private int mHashCode = 0;
+
+    private Document(Map<String,Object> values){
+        mValues = values;
+    }
+
+    public static Document fromJSON(JSONObject json){
+        if (json == null) return null;
+        Map<String,Object> values = new LinkedHashMap<String,Object>(json.length());
+        Iterator keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next().toString();
+            values.put(key, fromJSONValue(json.opt(key)));
+        }
+        return new Document(values);
+    }
+
+    /**
+     * Convert a JSON value into the equivalent document value
+     */
+    public static Object fromJSONValue(Object value){
+        if (value instanceof JSONObject) {
+            return fromJSON((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            int length = array.length();
+            List<Object> list = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                list.add(fromJSONValue(array.opt(i)));
+            }
+            return Collections.unmodifiableList(list);
+        } else if (value == null) {
+            return JSONObject.NULL;
+        }
+        return value;
+    }
+
+    /**
+     * Build a new JSONObject, changes to it don't affect the document
+     */
+    public JSONObject toJSON(){
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String,Object> entry : mValues.entrySet()) {
+                json.put(entry.getKey(), toJSONValue(entry.getValue()));
+            }
+        } catch (JSONException e) {
+            // keys are never null and numbers were valid JSON
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    /**
+     * Convert a document value into a new JSON value
+     */
+    public static Object toJSONValue(Object value){
+        if (value instanceof Document) {
+            return ((Document) value).toJSON();
+        } else if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List) value) {
+                array.put(toJSONValue(item));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    public Object get(String key){
+        return mValues.get(key);
+    }
+
+    public boolean has(String key){
+        return mValues.containsKey(key);
+    }
+
+    public Set<String> keys(){
+        return Collections.unmodifiableSet(mValues.keySet());
+    }
+
+    public int size(){
+        return mValues.size();
+    }
+
+    /**
+     * Returns a document with key set to value, the receiver is unchanged
+     */
+    public Document with(String key, Object value){
+        return edit().put(key, value).build();
+    }
+
+    /**
+     * Returns a document without key, the receiver is unchanged
+     */
+    public Document without(String key){
+        if (!has(key)) return this;
+        return edit().remove(key).build();
+    }
+
+    public Builder edit(){
+        return new Builder(this);
+    }
+
+    /**
+     * Copies the top level of a document, nested values are shared
+     */
+    public static class Builder {
+
+        private Map<String,Object> mValues;
+
+        private Builder(Document document){
+            mValues = new LinkedHashMap<String,Object>(document.mValues);
+        }
+
+        /**
+         * JSON values are converted so the document doesn't share them
+         */
+        public Builder put(String key, Object value){
+            mValues.put(key, fromJSONValue(value));
+            return this;
+        }
+
+        public Builder remove(String key){
+            mValues.remove(key);
+            return this;
+        }
+
+        public Document build(){
+            Document document = new Document(mValues);
+            mValues = new LinkedHashMap<String,Object>(mValues);
+            return document;
+        }
+
+    }
+
+    @Override
+    public boolean equals(Object other){
+        if (other == this) return true;
+        if (!(other instanceof Document)) return false;
+        Document document = (Document) other;
+        if (mHashCode != 0 && document.mHashCode != 0 && mHashCode != document.mHashCode) {
+            return false;
+        }
+        return mValues.equals(document.mValues);
+    }
+
+    @Override
+    public int hashCode(){
+        if (mHashCode == 0) {
+            mHashCode = mValues.hashCode();
+        }
+        return mHashCode;
+    }
+
+    @Override
+    public String toString(){
+        return toJSON().toString();
+    }
+
+}
@@ -256,6 +256,64 @@ public class JSONDiff {
         return diff;
 	}
 
+    /**
+     * Diff two documents, values shared by both documents are skipped without
+     * comparing their contents
+     */
+    public static JSONObject diff(Document a, Document b)
+    throws JSONException {
+        JSONObject diffs = new JSONObject();
+        if (a == null || b == null || a == b) {
+            return diffs;
+        }
+
+        for (String key : a.keys()) {
+            if (b.has(key)) {
+                Object a_value = a.get(key);
+                Object b_value = b.get(key);
+                if (a_value != b_value && !a_value.equals(b_value)) {
+                    diffs.put(key, diffDocumentValue(a_value, b_value));
+                }
+            } else {
+                JSONObject remove = new JSONObject();
+                remove.put(DIFF_OPERATION_KEY, OPERATION_REMOVE);
+                diffs.put(key, remove);
+            }
+        }
+
+        for (String key : b.keys()) {
+            if (!a.has(key)) {
+                JSONObject add = new JSONObject();
+                add.put(DIFF_OPERATION_KEY, OPERATION_INSERT);
+                add.put(DIFF_VALUE_KEY, Document.toJSONValue(b.get(key)));
+                diffs.put(key, add);
+            }
+        }
+
+        JSONObject diff = new JSONObject();
+        if (diffs.length() > 0) {
+            diff.put(DIFF_OPERATION_KEY, OPERATION_OBJECT);
+            diff.put(DIFF_VALUE_KEY, diffs);
+        }
+
+        return diff;
+    }
+
+    private static JSONObject diffDocumentValue(Object a, Object b)
+    throws JSONException {
+        if (a instanceof Document && b instanceof Document) {
+            return diff((Document) a, (Document) b);
+        } else if (a instanceof String && b instanceof String) {
+            return diff((String) a, (String) b);
+        } else if (a instanceof List && b instanceof List) {
+            return diff((JSONArray) Document.toJSONValue(a), (JSONArray) Document.toJSONValue(b));
+        }
+        JSONObject m = new JSONObject();
+        m.put(DIFF_OPERATION_KEY, OPERATION_REPLACE);
+        m.put(DIFF_VALUE_KEY, Document.toJSONValue(b));
+        return m;
+    }
+
     public static JSONObject diff(Object a, Object b)
     throws JSONException {
         JSONObject m = new JSONObject();
@@ -432,6 +490,51 @@ public class JSONDiff {
         return transformed;
     }
 
+    /**
+     * Apply a patch to a document, only the objects on the path to a changed
+     * key are copied and everything else is shared with origin
+     */
+    public static Document apply(Document origin, JSONObject patch)
+    throws JSONException {
+        Document.Builder transformed = origin.edit();
+        Iterator<String> keys = patch.keys();
+
+        while (keys.hasNext()) {
+
+            String key = keys.next();
+            JSONObject operation = patch.getJSONObject(key);
+            String method = operation.getString(DIFF_OPERATION_KEY);
+
+            if (method.equals(OPERATION_INSERT) || method.equals(OPERATION_REPLACE)) {
+                transformed.put(key, Document.fromJSONValue(operation.get(DIFF_VALUE_KEY)));
+            } else if(method.equals(OPERATION_REMOVE)){
+                transformed.remove(key);
+            } else if(method.equals(OPERATION_OBJECT)){
+                Object child = origin.get(key);
+                if (!(child instanceof Document)) {
+                    throw new JSONException(String.format("Value at %s is not an object", key));
+                }
+                transformed.put(key, apply((Document) child, operation.getJSONObject(DIFF_VALUE_KEY)));
+            } else if(method.equals(OPERATION_LIST)) {
+                Object child = origin.get(key);
+                if (!(child instanceof List)) {
+                    throw new JSONException(String.format("Value at %s is not an array", key));
+                }
+                JSONArray list = (JSONArray) Document.toJSONValue(child);
+                transformed.put(key, Document.fromJSONValue(apply(list, operation.getJSONObject(DIFF_VALUE_KEY))));
+            } else if(method.equals(OPERATION_DIFF)){
+                Object child = origin.get(key);
+                if (!(child instanceof String)) {
+                    throw new JSONException(String.format("Value at %s is not a string", key));
+                }
+                transformed.put(key, apply((String) child, operation.getString(DIFF_VALUE_KEY)));
+            }
+
+        }
+
+        return transformed.build();
+    }
+
     public static String apply(String origin, String patch){
         LinkedList<Diff> diffs = dmp.diff_fromDelta(origin, patch);
         LinkedList<Patch> patches = dmp.patch_make(origin, diffs);
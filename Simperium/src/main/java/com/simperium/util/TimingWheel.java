@@ -0,0 +1,218 @@
+package com.simperium.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel, runs delayed tasks for any number of timeouts on a
+ * single daemon thread. Scheduling and cancelling are O(1) and timeouts fire
+ * with a precision of one tick. Tasks run on the wheel's thread and should
+ * hand off anything slow to an executor.
+ */
+public class TimingWheel {
+
+    public static final String TAG = "Simperium.TimingWheel";
+
+    public static final long DEFAULT_TICK_MS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * A scheduled task that can be cancelled
+     */
+    public static class Timeout {
+
+        private final Runnable mTask;
+        private Bucket mBucket;
+        private Timeout mNext, mPrevious;
+        // full turns of the wheel left before the timeout expires
+        private long mRounds;
+        private boolean mCancelled = false, mExpired = false;
+        private final TimingWheel mWheel;
+
+        private Timeout(TimingWheel wheel, Runnable task){
+            mWheel = wheel;
+            mTask = task;
+        }
+
+        /**
+         * Returns false if the task already ran or was cancelled
+         */
+        public boolean cancel(){
+            synchronized(mWheel.mLock){
+                if (mCancelled || mExpired) return false;
+                mCancelled = true;
+                if (mBucket != null) {
+                    mBucket.remove(this);
+                    mWheel.mPending --;
+                }
+                return true;
+            }
+        }
+
+        public boolean isCancelled(){
+            synchronized(mWheel.mLock){
+                return mCancelled;
+            }
+        }
+
+        public boolean isExpired(){
+            synchronized(mWheel.mLock){
+                return mExpired;
+            }
+        }
+
+    }
+
+    private static class Bucket {
+
+        private Timeout mHead, mTail;
+
+        void add(Timeout timeout){
+            timeout.mBucket = this;
+            timeout.mPrevious = mTail;
+            timeout.mNext = null;
+            if (mTail == null) {
+                mHead = timeout;
+            } else {
+                mTail.mNext = timeout;
+            }
+            mTail = timeout;
+        }
+
+        void remove(Timeout timeout){
+            if (timeout.mPrevious == null) {
+                mHead = timeout.mNext;
+            } else {
+                timeout.mPrevious.mNext = timeout.mNext;
+            }
+            if (timeout.mNext == null) {
+                mTail = timeout.mPrevious;
+            } else {
+                timeout.mNext.mPrevious = timeout.mPrevious;
+            }
+            timeout.mBucket = null;
+            timeout.mNext = timeout.mPrevious = null;
+        }
+
+    }
+
+    private final Object mLock = new Object();
+    private final Bucket[] mWheel;
+    private final long mTickMs;
+    private final String mName;
+    private long mTick = 0;
+    private long mStartTime;
+    private int mPending = 0;
+    private Thread mThread;
+
+    public TimingWheel(){
+        this("simperium.timer", DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    public TimingWheel(String name, long tickMs, int wheelSize){
+        mName = name;
+        mTickMs = tickMs;
+        mWheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            mWheel[i] = new Bucket();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        return schedule(task, unit.toMillis(delay));
+    }
+
+    /**
+     * Run the task once after delayMs milliseconds
+     */
+    public Timeout schedule(Runnable task, long delayMs){
+        Timeout timeout = new Timeout(this, task);
+        synchronized(mLock){
+            start();
+            if (mPending == 0) {
+                // wheel is empty, restart the clock instead of catching up on idle ticks
+                mStartTime = now();
+                mTick = 0;
+            }
+            long elapsed = now() - mStartTime;
+            // the tick the timeout expires on, at least the next one
+            long deadline = Math.max((elapsed + Math.max(delayMs, 0) + mTickMs - 1) / mTickMs, mTick + 1);
+            timeout.mRounds = (deadline - mTick - 1) / mWheel.length;
+            mWheel[(int) (deadline % mWheel.length)].add(timeout);
+            mPending ++;
+            mLock.notify();
+        }
+        return timeout;
+    }
+
+    private void start(){
+        if (mThread != null) return;
+        mStartTime = now();
+        mTick = 0;
+        mThread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                runWheel();
+            }
+        }, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void runWheel(){
+        while (true) {
+            Timeout expired = null, last = null;
+            synchronized(mLock){
+                try {
+                    // nothing scheduled, sleep until there is
+                    while (mPending == 0) {
+                        mLock.wait();
+                    }
+                    // sleep until the next tick
+                    long wait;
+                    while ((wait = mStartTime + (mTick + 1) * mTickMs - now()) > 0) {
+                        mLock.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    mThread = null;
+                    return;
+                }
+                mTick ++;
+                Bucket bucket = mWheel[(int) (mTick % mWheel.length)];
+                Timeout timeout = bucket.mHead;
+                while (timeout != null) {
+                    Timeout next = timeout.mNext;
+                    if (timeout.mRounds <= 0) {
+                        bucket.remove(timeout);
+                        timeout.mExpired = true;
+                        mPending --;
+                        // collect expired timeouts to run outside the lock
+                        if (last == null) {
+                            expired = timeout;
+                        } else {
+                            last.mNext = timeout;
+                        }
+                        last = timeout;
+                    } else {
+                        timeout.mRounds --;
+                    }
+                    timeout = next;
+                }
+            }
+            while (expired != null) {
+                Timeout next = expired.mNext;
+                expired.mNext = null;
+                try {
+                    expired.mTask.run();
+                } catch (RuntimeException e) {
+                    Logger.log(TAG, "Scheduled task failed", e);
+                }
+                expired = next;
+            }
+        }
+    }
+
+    private static long now(){
+        return System.nanoTime() / 1000000;
+    }
+
+}
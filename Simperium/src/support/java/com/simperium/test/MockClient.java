@@ -5,6 +5,7 @@ package com.simperium.test;
 
 import com.simperium.client.ClientFactory;
 import com.simperium.storage.MemoryStore;
+import com.simperium.util.TimingWheel;
 
 public class MockClient implements ClientFactory {
 
@@ -41,4 +42,9 @@ public class MockClient implements ClientFactory {
         return MockExecutor.immediate();
     }
 
+    @Override
+    public TimingWheel buildScheduler(){
+        return new TimingWheel();
+    }
+
 }
\ No newline at end of file
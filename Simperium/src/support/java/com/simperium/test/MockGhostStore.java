@@ -11,6 +11,7 @@ import java.util.Map;
 public class MockGhostStore implements GhostStorageProvider {
     private Map<String,Map<String,Ghost>> data = new HashMap<String,Map<String,Ghost>>();
     private Map<String,String> versions = new HashMap<String,String>();
+    private Map<String,String[]> indexMarks = new HashMap<String,String[]>();
     /**
      * Check if the store has a change version for the provided bucket
      */
@@ -43,6 +44,37 @@ public class MockGhostStore implements GhostStorageProvider {
         versions.put(bucket.getName(), version);
     }
 
+    @Override
+    public void beginChangeVersionBatch(Bucket bucket){
+        // versions are kept in memory
+    }
+
+    @Override
+    public void endChangeVersionBatch(Bucket bucket, boolean successful){
+        // versions are kept in memory
+    }
+
+    @Override
+    public void setIndexMark(Bucket bucket, String cv, String mark){
+        if (mark == null) {
+            indexMarks.remove(bucket.getName());
+        } else {
+            indexMarks.put(bucket.getName(), new String[]{ cv, mark });
+        }
+    }
+
+    @Override
+    public String getIndexMark(Bucket bucket){
+        String[] mark = indexMarks.get(bucket.getName());
+        return mark == null ? null : mark[1];
+    }
+
+    @Override
+    public String getIndexChangeVersion(Bucket bucket){
+        String[] mark = indexMarks.get(bucket.getName());
+        return mark == null ? null : mark[0];
+    }
+
     /**
      * Checks if there is a ghost for given bucket and key
      */
@@ -65,6 +97,22 @@ public class MockGhostStore implements GhostStorageProvider {
         return ghost;
     }
 
+    /**
+     * Returns the version of the ghost or null if it doesn't exist
+     */
+    @Override
+    public Integer getGhostVersion(Bucket bucket, String key){
+        Ghost ghost = ghostsForBucket(bucket).get(key);
+        return ghost == null ? null : ghost.getVersion();
+    }
+
+    @Override
+    public void readVersions(Bucket bucket, VersionCallback callback){
+        for (Ghost ghost : ghostsForBucket(bucket).values()) {
+            callback.onVersion(ghost.getSimperiumKey(), ghost.getVersion());
+        }
+    }
+
     /**
      * Saves the provided ghost to the bucket
      */
@@ -89,9 +137,10 @@ public class MockGhostStore implements GhostStorageProvider {
     @Override
     public void resetBucket(Bucket bucket){
         data.put(bucket.getName(), new HashMap<String,Ghost>());
+        indexMarks.remove(bucket.getName());
     }
     
-    protected Map<String,Ghost> ghostsForBucket(Bucket bucket){
+    protected synchronized Map<String,Ghost> ghostsForBucket(Bucket bucket){
         String name = bucket.getName();
         Map<String,Ghost> ghosts = data.get(name);
         if (ghosts == null) {
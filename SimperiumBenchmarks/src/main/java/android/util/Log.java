@@ -0,0 +1,13 @@
+package android.util;
+
+/**
+ * Minimal stand in for the Android logger so library sources compile on the JVM
+ */
+public final class Log {
+
+    public static int e(String tag, String msg, Throwable tr){
+        System.err.println(String.format("%s: %s", tag, msg));
+        return 0;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.simperium.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+/**
+ * Builds the documents used by the benchmarks. Each scenario has an origin
+ * document and two independently modified targets so diffs can be applied
+ * and transformed against each other. Documents are generated from a fixed
+ * seed so runs are comparable.
+ */
+public class Corpus {
+
+    public static final String NOTE = "note";
+    public static final String TEXT = "text";
+    public static final String NESTED = "nested";
+    public static final String ARRAY = "array";
+
+    static final int TEXT_SIZE = 100 * 1024;
+    static final int NESTED_DEPTH = 8;
+    static final int NESTED_WIDTH = 4;
+    static final int ARRAY_SIZE = 1000;
+
+    static final String[] WORDS = {
+        "simperium", "sync", "note", "bucket", "change", "ghost", "version",
+        "the", "a", "of", "and", "to", "in", "is", "for", "on", "with"
+    };
+
+    final public JSONObject origin;
+    final public JSONObject target;
+    final public JSONObject otherTarget;
+
+    private Corpus(JSONObject origin, JSONObject target, JSONObject otherTarget){
+        this.origin = origin;
+        this.target = target;
+        this.otherTarget = otherTarget;
+    }
+
+    public static Corpus build(String scenario)
+    throws JSONException {
+        Random random = new Random(42);
+        if (NOTE.equals(scenario)) {
+            JSONObject origin = note(random, 400);
+            JSONObject target = new JSONObject(origin.toString());
+            target.put("content", edit(random, origin.getString("content")));
+            target.getJSONArray("tags").put("edited");
+            JSONObject other = new JSONObject(origin.toString());
+            other.put("content", edit(random, origin.getString("content")));
+            other.put("pinned", true);
+            return new Corpus(origin, target, other);
+        } else if (TEXT.equals(scenario)) {
+            JSONObject origin = note(random, TEXT_SIZE);
+            JSONObject target = new JSONObject(origin.toString());
+            target.put("content", edit(random, origin.getString("content")));
+            JSONObject other = new JSONObject(origin.toString());
+            other.put("content", edit(random, origin.getString("content")));
+            return new Corpus(origin, target, other);
+        } else if (NESTED.equals(scenario)) {
+            JSONObject origin = nested(random, NESTED_DEPTH);
+            JSONObject target = new JSONObject(origin.toString());
+            leaf(target).put("value", "target");
+            JSONObject other = new JSONObject(origin.toString());
+            leaf(other).put("other", "other target");
+            return new Corpus(origin, target, other);
+        } else if (ARRAY.equals(scenario)) {
+            JSONObject origin = new JSONObject();
+            JSONArray items = new JSONArray();
+            for (int i = 0; i < ARRAY_SIZE; i++) {
+                items.put(words(random, 3));
+            }
+            origin.put("items", items);
+            JSONObject target = new JSONObject(origin.toString());
+            target.getJSONArray("items").put(ARRAY_SIZE / 2, "replaced");
+            target.getJSONArray("items").put("appended");
+            JSONObject other = new JSONObject(origin.toString());
+            other.getJSONArray("items").put(0, "first");
+            return new Corpus(origin, target, other);
+        }
+        throw new IllegalArgumentException(String.format("Unknown scenario %s", scenario));
+    }
+
+    static JSONObject note(Random random, int size)
+    throws JSONException {
+        JSONObject note = new JSONObject();
+        note.put("content", text(random, size));
+        note.put("tags", new JSONArray().put("work").put("ideas"));
+        note.put("deleted", false);
+        note.put("modificationDate", 1397000000.0);
+        return note;
+    }
+
+    static JSONObject nested(Random random, int depth)
+    throws JSONException {
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < NESTED_WIDTH; i++) {
+            if (depth > 0 && i == 0) {
+                object.put("child", nested(random, depth - 1));
+            } else {
+                object.put(String.format("key%d", i), words(random, 4));
+            }
+        }
+        return object;
+    }
+
+    static JSONObject leaf(JSONObject object)
+    throws JSONException {
+        while (object.has("child")) {
+            object = object.getJSONObject("child");
+        }
+        return object;
+    }
+
+    static String text(Random random, int size){
+        StringBuilder builder = new StringBuilder(size + 16);
+        while (builder.length() < size) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+            builder.append(random.nextInt(12) == 0 ? "\n" : " ");
+        }
+        return builder.toString();
+    }
+
+    static String words(Random random, int count){
+        return text(random, count * 4).trim();
+    }
+
+    /**
+     * Inserts a sentence at a random position in the text
+     */
+    static String edit(Random random, String text){
+        int position = random.nextInt(text.length());
+        return text.substring(0, position) + words(random, 8) + text.substring(position);
+    }
+
+}
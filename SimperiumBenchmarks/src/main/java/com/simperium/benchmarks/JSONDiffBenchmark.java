@@ -0,0 +1,90 @@
+package com.simperium.benchmarks;
+
+import com.simperium.util.JSONDiff;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the JSONDiff operations used for every local save and
+ * remote change. Run with the gc profiler to report allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JSONDiffBenchmark {
+
+    @Param({Corpus.NOTE, Corpus.TEXT, Corpus.NESTED, Corpus.ARRAY})
+    public String scenario;
+
+    @Param({"false", "true"})
+    public boolean arrayDiff;
+
+    private Corpus mCorpus;
+    private JSONObject mDiff;
+    private JSONObject mOtherDiff;
+
+    @Setup
+    public void setup()
+    throws JSONException {
+        JSONDiff.enableArrayDiff = arrayDiff;
+        mCorpus = Corpus.build(scenario);
+        mDiff = valueOf(JSONDiff.diff(mCorpus.origin, mCorpus.target));
+        mOtherDiff = valueOf(JSONDiff.diff(mCorpus.origin, mCorpus.otherTarget));
+    }
+
+    @Benchmark
+    public JSONObject diff()
+    throws JSONException {
+        return JSONDiff.diff(mCorpus.origin, mCorpus.target);
+    }
+
+    @Benchmark
+    public JSONObject apply()
+    throws JSONException {
+        return JSONDiff.apply(mCorpus.origin, mDiff);
+    }
+
+    /**
+     * transform writes into nested operations of its second argument so it
+     * gets a fresh copy, compare against the deepCopy benchmark
+     */
+    @Benchmark
+    public JSONObject transform()
+    throws JSONException {
+        return JSONDiff.transform(mDiff, JSONDiff.deepCopy(mOtherDiff), mCorpus.origin);
+    }
+
+    @Benchmark
+    public JSONObject deepCopy(){
+        return JSONDiff.deepCopy(mCorpus.origin);
+    }
+
+    /**
+     * Object diffs are wrapped in an "O" operation, benchmarks work with the
+     * key level operations like Channel does
+     */
+    static JSONObject valueOf(JSONObject diff)
+    throws JSONException {
+        if (diff.length() == 0) {
+            return diff;
+        }
+        return diff.getJSONObject(JSONDiff.DIFF_VALUE_KEY);
+    }
+
+}